@@ -0,0 +1,52 @@
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.SecretKey;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * AES 加解密在不同载荷大小下的单线程开销，不涉及网络。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoBenchmark {
+    @Param({ "64", "1024", "65536", "1048576" })
+    public int payloadSize;
+
+    private SecretKey key;
+    private byte[] plain;
+    private byte[] encrypted;
+    private CipherSession session;
+    private byte[] sealed;
+
+    @Setup
+    public void setup() throws Exception {
+        key = CryptoUtil.generateAESKey();
+        plain = new byte[payloadSize];
+        new Random(1).nextBytes(plain);
+        encrypted = CryptoUtil.encryptAESBytes(plain, key);
+        session = new CipherSession(key, true);
+        sealed = new byte[CipherSession.sealedLength(payloadSize)];
+    }
+
+    @Benchmark
+    public byte[] encryptAESBytes() throws Exception {
+        return CryptoUtil.encryptAESBytes(plain, key);
+    }
+
+    @Benchmark
+    public byte[] decryptAESBytes() throws Exception {
+        return CryptoUtil.decryptAESBytes(encrypted, key);
+    }
+
+    /**
+     * 连接上实际使用的帧加密：复用 Cipher 和输出缓冲区。
+     */
+    @Benchmark
+    public int cipherSessionEncrypt() throws Exception {
+        return session.encrypt(plain, 0, plain.length, sealed, 0);
+    }
+}
@@ -0,0 +1,77 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * 回环上发送一个文件直到接收方写完的耗时，按不同的帧大小和执行方式测量。
+ * 结果中的每次操作是一个 {@value #FILE_MB} MB 的文件，吞吐量为 {@value #FILE_MB} 除以平均耗时。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileTransferBenchmark {
+    static final int FILE_MB = 64;
+
+    @Param({ "65536", "1048576", "8388608" })
+    public int frameSize;
+
+    @Param({ "true", "false" })
+    public boolean pipelined;
+
+    private LoopbackPair pair;
+    private ExecutorService sender;
+    private File file;
+    private File received;
+
+    @Setup
+    public void setup() throws Exception {
+        System.setProperty(FileTransfer.PIPELINE_PROPERTY, String.valueOf(pipelined));
+        // 每次都完整发送，不从检查点续传
+        System.setProperty(FileTransfer.RESUMABLE_PROPERTY, "false");
+        pair = new LoopbackPair();
+        pair.client.setFileFrameSize(frameSize);
+        sender = Executors.newSingleThreadExecutor();
+
+        file = File.createTempFile("bench", ".bin");
+        byte[] block = new byte[1024 * 1024];
+        Random random = new Random(1);
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (int i = 0; i < FILE_MB; i++) {
+                random.nextBytes(block);
+                out.write(block);
+            }
+        }
+        received = new File("received_" + file.getName());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        sender.shutdown();
+        pair.close();
+        file.delete();
+        received.delete();
+    }
+
+    /**
+     * 发送在另一个线程上进行，本线程作为接收方读取，直到文件接收完整。
+     */
+    @Benchmark
+    public String sendFile() throws Exception {
+        Future<?> sent = sender.submit(() -> {
+            pair.client.sendFile(file);
+            return null;
+        });
+        String result = pair.server.receiveMessage();
+        sent.get();
+        return result;
+    }
+}
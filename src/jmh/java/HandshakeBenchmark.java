@@ -0,0 +1,53 @@
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * 回环上一次完整的 {@link SecureClient}/{@link SecureServer} 握手（含 TCP 建连和关闭）的耗时。
+ * <p>
+ * mode 为 rsa、ecdhe 或 resume；resume 时客户端持有上一次连接的票据，只需一次往返。
+ * RSA 密钥对池由 build.gradle 中 jmh 配置的 {@code jvmArgs}（{@code -Dsecure.rsa.pool=16}）启用。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class HandshakeBenchmark {
+    @Param({ "rsa", "ecdhe", "resume" })
+    public String mode;
+
+    private ServerSocket listener;
+    private String host;
+
+    @Setup
+    public void setup() throws Exception {
+        boolean resume = mode.equals("resume");
+        System.setProperty(HandshakeMode.PROPERTY, resume ? "ecdhe" : mode);
+        System.setProperty(SessionTicket.PROPERTY, String.valueOf(resume));
+        SessionTicket.clear();
+        listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        host = "localhost";
+        if (resume) {
+            handshake(); // 取得第一张票据，之后每次握手都用上一次签发的票据恢复
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        listener.close();
+        SessionTicket.clear();
+    }
+
+    @Benchmark
+    public void handshake() throws Exception {
+        CompletableFuture<SecureServer> accepted = LoopbackPair.acceptOne(listener);
+        SecureClient client = new SecureClient(host, listener.getLocalPort());
+        SecureServer server = accepted.get();
+        client.close();
+        server.close();
+    }
+}
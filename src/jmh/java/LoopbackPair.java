@@ -0,0 +1,43 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 基准测试用的回环连接：在临时端口上监听，建立一对已完成握手的 {@link SecureClient} 和 {@link SecureServer}。
+ */
+public class LoopbackPair implements Closeable {
+    private final ServerSocket listener;
+    final SecureClient client;
+    final SecureServer server;
+
+    public LoopbackPair() throws Exception {
+        listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        CompletableFuture<SecureServer> accepted = acceptOne(listener);
+        client = new SecureClient("localhost", listener.getLocalPort());
+        server = accepted.get();
+    }
+
+    /**
+     * 在后台接受一个连接并完成服务端握手。
+     */
+    static CompletableFuture<SecureServer> acceptOne(ServerSocket listener) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                Socket socket = listener.accept();
+                return new SecureServer(socket);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+        server.close();
+        listener.close();
+    }
+}
@@ -0,0 +1,52 @@
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * 已建立连接上一条消息的往返耗时：客户端发送，服务端原样回复，客户端收到回复为止。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageBenchmark {
+    @Param({ "16", "1024", "65536" })
+    public int messageLength;
+
+    private LoopbackPair pair;
+    private Thread echo;
+    private String message;
+
+    @Setup
+    public void setup() throws Exception {
+        pair = new LoopbackPair();
+        char[] chars = new char[messageLength];
+        Arrays.fill(chars, 'x');
+        message = new String(chars);
+        echo = new Thread(() -> {
+            try {
+                while (true) {
+                    pair.server.sendMessage(pair.server.receiveMessage());
+                }
+            } catch (Exception e) {
+                // 连接在 tearDown 中关闭
+            }
+        }, "echo");
+        echo.setDaemon(true);
+        echo.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        pair.close();
+        echo.join(1000);
+    }
+
+    @Benchmark
+    public String roundTrip() throws Exception {
+        pair.client.sendMessage(message);
+        return pair.client.receiveMessage();
+    }
+}
@@ -0,0 +1,48 @@
+import java.security.KeyPair;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * RSA 握手中各项运算的开销：生成密钥对、对公钥签名和验证签名。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RsaBenchmark {
+    private KeyPair keyPair;
+    private String publicKey;
+    private String signature;
+
+    @Setup
+    public void setup() throws Exception {
+        keyPair = CryptoUtil.generateRSAKeyPair();
+        publicKey = Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded());
+        signature = CryptoUtil.sign(publicKey, keyPair.getPrivate());
+    }
+
+    /**
+     * 耗时以数十到数百毫秒计且波动很大，逐次计时。
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, batchSize = 1)
+    @Measurement(iterations = 30, batchSize = 1)
+    public KeyPair generateRSAKeyPair() throws Exception {
+        return CryptoUtil.generateRSAKeyPair();
+    }
+
+    @Benchmark
+    public String sign() throws Exception {
+        return CryptoUtil.sign(publicKey, keyPair.getPrivate());
+    }
+
+    @Benchmark
+    public boolean verify() throws Exception {
+        return CryptoUtil.verify(publicKey, signature, keyPair.getPublic());
+    }
+}
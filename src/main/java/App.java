@@ -1,9 +1,20 @@
 
 /*
  * 灵活的双模式安全通信系统
+ *
+ * 收发线程的类型由 -Dsecure.threads=virtual|platform 选择，见 ThreadMode。
+ * 设置 -Dsecure.history.dir 后保存加密的聊天记录，连接建立时回放最近的记录，见 MessageHistory。
  */
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class App {
@@ -16,12 +27,16 @@ public class App {
         System.out.println("请选择模式: ");
         System.out.println("1. 作为服务端等待连接");
         System.out.println("2. 作为客户端主动连接");
-        System.out.print("请输入选择(1/2): ");
+        System.out.println("3. 作为多客户端服务端(NIO)");
+        System.out.println("4. 作为多客户端服务端(每连接一线程)");
+        System.out.print("请输入选择(1/2/3/4): ");
 
         int choice = scanner.nextInt();
         scanner.nextLine(); // 消耗换行符
 
+        MessageHistory history = null;
         try {
+            history = MessageHistory.fromSystemProperty();
             if (choice == 1) {
                 // 服务端模式
                 SecureServer server = new SecureServer(PORT);
@@ -31,28 +46,216 @@ public class App {
                 System.out.println("客户端已连接");
 
                 // 通信完成后释放服务端
-                communicate(server, null);
+                communicate(server, null, history, "*:" + PORT);
             } else if (choice == 2) {
                 // 客户端模式
                 SecureClient client = new SecureClient(HOST, PORT);
                 System.out.println("已连接到服务端");
 
                 // 通信完成后释放客户端
-                communicate(null, client);
+                communicate(null, client, history, HOST + ":" + PORT);
+            } else if (choice == 3) {
+                // 多客户端服务端模式
+                serveMany(scanner, history);
+            } else if (choice == 4) {
+                // 每连接一线程的多客户端服务端模式
+                serveThreaded(scanner);
             }
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
             scanner.close();
+            if (history != null) {
+                try {
+                    history.close();
+                } catch (IOException e) {
+                    System.err.println("关闭聊天记录时发生错误: " + e.getMessage());
+                }
+            }
         }
     }
 
-    private static void communicate(SecureServer server, SecureClient client) {
+    /**
+     * 保存一条聊天记录，history 为 null 时什么也不做；保存失败只打印错误，不影响收发。
+     */
+    private static void record(MessageHistory history, String conversation, boolean outgoing, String text) {
+        if (history == null)
+            return;
+        try {
+            history.append(conversation, outgoing, text);
+        } catch (Exception e) {
+            System.err.println("保存聊天记录失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 多客户端模式下以客户端的主机地址作为会话名，同一主机重连后能看到之前的记录。
+     */
+    private static String conversationOf(NioSecureServer.Session session) {
+        return ((InetSocketAddress) session.getRemoteAddress()).getHostString();
+    }
+
+    private static void serveMany(Scanner scanner, MessageHistory history) throws Exception {
+        ThreadMode threadMode = ThreadMode.fromSystemProperty();
+        NioSecureServer server = new NioSecureServer(PORT, new NioSecureServer.Listener() {
+            @Override
+            public void onConnected(NioSecureServer.Session session) {
+                System.out.println("客户端 #" + session.getId() + " 已连接: " + session.getRemoteAddress());
+                if (history == null)
+                    return;
+                // 在后台把最近的记录发给新连接，不占用选择器线程
+                String conversation = conversationOf(session);
+                threadMode.start("secure-history-" + session.getId(), () -> {
+                    try {
+                        history.replay(conversation, MessageHistory.replaySince(), (time, outgoing, text) ->
+                                session.sendMessage("[历史 " + MessageHistory.format(time) + "] "
+                                        + (outgoing ? "服务端: " : "你: ") + text));
+                    } catch (Exception e) {
+                        System.out.println("回放聊天记录到 #" + session.getId() + " 失败: " + e.getMessage());
+                    }
+                });
+            }
+
+            @Override
+            public void onMessage(NioSecureServer.Session session, String message) {
+                if ("exit".equalsIgnoreCase(message)) {
+                    session.close();
+                    return;
+                }
+                System.out.println("收到 #" + session.getId() + ": " + message);
+                record(history, conversationOf(session), false, message);
+            }
+
+            @Override
+            public void onClosed(NioSecureServer.Session session) {
+                System.out.println("客户端 #" + session.getId() + " 已断开");
+            }
+
+            @Override
+            public void onWritabilityChanged(NioSecureServer.Session session, boolean writable) {
+                System.out.println("客户端 #" + session.getId() + (writable ? " 已恢复接收" : " 接收过慢，积压 "
+                        + session.getQueuedBytes() + " 字节"));
+            }
+        });
+        server.start();
+
+        try {
+            while (true) {
+                System.out.print("请输入广播消息(/file 路径 发送文件，或输入'exit'退出): ");
+                String message = scanner.nextLine();
+                if ("exit".equalsIgnoreCase(message)) {
+                    server.broadcast("exit");
+                    Thread.sleep(1000); // 等待一段时间以确保消息发送完毕
+                    break;
+                }
+                if (message.startsWith("/file ")) {
+                    File file = new File(message.substring(6).trim());
+                    if (!file.isFile()) {
+                        System.out.println("文件不存在: " + file);
+                        continue;
+                    }
+                    System.out.println("开始向 " + server.broadcastFile(file) + " 个客户端发送文件: " + file.getName());
+                    continue;
+                }
+                server.broadcast(message);
+                if (history != null) {
+                    Set<String> conversations = new HashSet<>();
+                    for (NioSecureServer.Session session : server.getSessions()) {
+                        if (session.isEstablished() && conversations.add(conversationOf(session))) {
+                            record(history, conversationOf(session), true, message);
+                        }
+                    }
+                }
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    private static void serveThreaded(Scanner scanner) throws Exception {
+        ThreadMode threadMode = ThreadMode.fromSystemProperty();
+        ThreadedSecureServer server = new ThreadedSecureServer(PORT, threadMode);
+        Map<Long, BlockingQueue<String>> outboxes = new ConcurrentHashMap<>();
+
+        threadMode.start("secure-acceptor", () -> {
+            try {
+                server.serve((id, session) -> {
+                    System.out.println("客户端 #" + id + " 已连接");
+                    BlockingQueue<String> outbox = new LinkedBlockingQueue<>();
+                    outboxes.put(id, outbox);
+
+                    // 发送循环
+                    Thread senderThread = threadMode.start("secure-sender-" + id, () -> {
+                        try {
+                            while (true) {
+                                String message = outbox.take();
+                                // 对方接收过慢时在这里等待，积压留在 outbox 中，不再堆进发送队列
+                                session.getFlowControl().awaitWritable();
+                                session.sendMessage(message);
+                                if ("exit".equalsIgnoreCase(message))
+                                    break;
+                            }
+                        } catch (InterruptedException e) {
+                            // 会话结束
+                        } catch (Exception e) {
+                            System.out.println("发送到 #" + id + " 失败: " + e.getMessage());
+                        }
+                    });
+
+                    // 接收循环
+                    try {
+                        while (true) {
+                            String reply = session.receiveMessage();
+                            if ("exit".equalsIgnoreCase(reply))
+                                break;
+                            System.out.println("收到 #" + id + ": " + reply);
+                        }
+                    } finally {
+                        outboxes.remove(id);
+                        senderThread.interrupt();
+                        System.out.println("客户端 #" + id + " 已断开");
+                    }
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+
+        try {
+            while (true) {
+                System.out.print("请输入广播消息(或输入'exit'退出): ");
+                String message = scanner.nextLine();
+                for (BlockingQueue<String> outbox : outboxes.values()) {
+                    outbox.add(message);
+                }
+                if ("exit".equalsIgnoreCase(message)) {
+                    Thread.sleep(1000); // 等待一段时间以确保消息发送完毕
+                    break;
+                }
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    private static void communicate(SecureServer server, SecureClient client, MessageHistory history,
+            String conversation) {
+        ThreadMode threadMode = ThreadMode.fromSystemProperty();
         Scanner scanner = new Scanner(System.in);
         AtomicBoolean exitFlag = new AtomicBoolean(false); // 标志变量，用于指示是否退出
 
+        if (history != null) {
+            try {
+                history.replay(conversation, MessageHistory.replaySince(), (time, outgoing, text) ->
+                        System.out.println("[历史 " + MessageHistory.format(time) + "] "
+                                + (outgoing ? "我: " : "对方: ") + text));
+            } catch (Exception e) {
+                System.out.println("回放聊天记录失败: " + e.getMessage());
+            }
+        }
+
         // 创建一个线程用于发送消息
-        Thread senderThread = new Thread(() -> {
+        Thread senderThread = threadMode.newThread("sender", () -> {
             try {
                 while (!exitFlag.get()) { // 根据退出标志判断是否继续发送消息
                     System.out.print("请输入消息(或输入'exit'退出): ");
@@ -81,6 +284,7 @@ public class App {
                             // 客户端发送消息
                             client.sendMessage(message);
                         }
+                        record(history, conversation, true, message);
                     }
                 }
             } catch (Exception e) {
@@ -106,7 +310,7 @@ public class App {
         });
 
         // 创建一个线程用于接收消息
-        Thread receiverThread = new Thread(() -> {
+        Thread receiverThread = threadMode.newThread("receiver", () -> {
             try {
                 while (!exitFlag.get()) { // 根据退出标志判断是否继续接收消息
                     String reply;
@@ -123,6 +327,7 @@ public class App {
                     }
 
                     System.out.println("收到回复: " + reply);
+                    record(history, conversation, false, reply);
                 }
             } catch (java.io.EOFException e) {
                 // 处理EOFException异常，表示连接已关闭
@@ -2,17 +2,26 @@ import javax.swing.*;
 import java.awt.*;
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class AppWithGUI {
     private static final int PORT = 12345;
     private static SecureServer server = null;
     private static SecureClient client = null;
-    private static JTextArea chatArea;
+    private static ChatLog chatLog;
     private static JTextField inputField;
     private static JButton sendButton;
     private static JButton fileButton;
+    private static JPanel transfersPanel;
+    private static final Map<Integer, JPanel> transferRows = new HashMap<>();
+    private static volatile TransferManager transferManager;
+    /** 未设置 -Dsecure.history.dir 时为 null */
+    private static volatile MessageHistory history;
+    private static volatile String conversation;
     private static AtomicBoolean exitFlag = new AtomicBoolean(false);
+    private static final ThreadMode threadMode = ThreadMode.fromSystemProperty();
 
     public static void main(String[] args) {
         SwingUtilities.invokeLater(AppWithGUI::createAndShowGUI);
@@ -37,9 +46,8 @@ public class AppWithGUI {
         topPanel.add(startButton);
 
         // 聊天显示区域
-        chatArea = new JTextArea();
-        chatArea.setEditable(false);
-        JScrollPane scrollPane = new JScrollPane(chatArea);
+        chatLog = ChatLog.fromSystemProperty();
+        JScrollPane scrollPane = chatLog.createView();
 
         // 输入面板（消息 + 按钮）
         inputField = new JTextField();
@@ -51,7 +59,12 @@ public class AppWithGUI {
         inputPanel.add(inputField, BorderLayout.CENTER);
         inputPanel.add(sendButton, BorderLayout.EAST);
 
+        // 文件发送进度，每个排队或进行中的文件一行
+        transfersPanel = new JPanel();
+        transfersPanel.setLayout(new BoxLayout(transfersPanel, BoxLayout.Y_AXIS));
+
         JPanel bottomPanel = new JPanel(new BorderLayout());
+        bottomPanel.add(transfersPanel, BorderLayout.NORTH);
         bottomPanel.add(inputPanel, BorderLayout.CENTER);
 
         // 布局添加
@@ -67,7 +80,7 @@ public class AppWithGUI {
         startButton.addActionListener(e -> {
             int mode = modeSelector.getSelectedIndex();
             String ip = ipField.getText().trim();
-            new Thread(() -> startCommunication(mode, ip)).start();
+            threadMode.start("connector", () -> startCommunication(mode, ip));
             startButton.setEnabled(false);
             modeSelector.setEnabled(false);
             ipField.setEnabled(false);
@@ -91,12 +104,31 @@ public class AppWithGUI {
                 appendMessage("服务端启动，等待连接...");
                 server.acceptConnection();
                 appendMessage("客户端已连接");
+                conversation = "*:" + PORT;
             } else {
                 client = new SecureClient(ip, PORT);
                 appendMessage("已连接到服务端: " + ip);
+                conversation = ip + ":" + PORT;
+            }
+            history = MessageHistory.fromSystemProperty();
+            if (history != null) {
+                history.replay(conversation, MessageHistory.replaySince(), (time, outgoing, text) ->
+                        appendMessage("[历史 " + MessageHistory.format(time) + "] "
+                                + (outgoing ? "我: " : "对方: ") + text));
             }
+            transferManager = new TransferManager(AppWithGUI::sendFile, new TransferManager.Listener() {
+                @Override
+                public void onProgress(TransferManager.Transfer transfer) {
+                    updateTransferRow(transfer);
+                }
 
-            Thread receiverThread = new Thread(() -> {
+                @Override
+                public void onFinished(TransferManager.Transfer transfer, Exception error) {
+                    removeTransferRow(transfer, error);
+                }
+            }, SwingUtilities::invokeLater);
+
+            Thread receiverThread = threadMode.newThread("receiver", () -> {
                 try {
                     while (!exitFlag.get()) {
                         String msg = (server != null) ? server.receiveMessage() : client.receiveMessage();
@@ -106,6 +138,7 @@ public class AppWithGUI {
                             break;
                         }
                         appendMessage("对方: " + msg);
+                        record(false, msg);
                     }
                 } catch (Exception ex) {
                     if (!"Socket closed".equalsIgnoreCase(ex.getMessage())) {
@@ -147,6 +180,7 @@ public class AppWithGUI {
                     server.sendMessage(text);
                 else
                     client.sendMessage(text);
+                record(true, text);
             }
         } catch (Exception e) {
             appendMessage("发送错误: " + e.getMessage());
@@ -154,34 +188,122 @@ public class AppWithGUI {
         }
     }
 
+    /**
+     * 选择一个或多个文件加入后台发送队列，事件分发线程不等待发送。
+     */
     private static void sendFile() {
+        TransferManager manager = transferManager;
+        if (manager == null) {
+            appendMessage("连接尚未建立");
+            return;
+        }
         JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setMultiSelectionEnabled(true);
         int result = fileChooser.showOpenDialog(null);
         if (result == JFileChooser.APPROVE_OPTION) {
-            File file = fileChooser.getSelectedFile();
-            try {
-                appendMessage("发送文件: " + file.getName());
-                if (server != null)
-                    server.sendFile(file);
-                else
-                    client.sendFile(file);
-            } catch (Exception e) {
-                appendMessage("文件发送失败: " + e.getMessage());
-                e.printStackTrace();
+            for (File file : fileChooser.getSelectedFiles()) {
+                updateTransferRow(manager.submit(file));
             }
         }
     }
 
+    /**
+     * 在文件发送线程上执行的实际发送。
+     */
+    private static void sendFile(File file, FileTransfer.Progress progress) throws Exception {
+        appendMessage("发送文件: " + file.getName());
+        // -Dsecure.file.lanes=N 大于 1 时经由多条子连接并行发送
+        int lanes = Integer.getInteger(ParallelFileTransfer.LANES_PROPERTY, 1);
+        if (lanes > 1) {
+            if (server != null)
+                server.sendFileParallel(file, lanes, progress);
+            else
+                client.sendFileParallel(file, lanes, progress);
+        } else if (server != null)
+            server.sendFile(file, progress);
+        else
+            client.sendFile(file, progress);
+    }
+
+    private static void updateTransferRow(TransferManager.Transfer transfer) {
+        if (transfer.getState() != TransferManager.State.QUEUED
+                && transfer.getState() != TransferManager.State.RUNNING)
+            return; // 结束通知先于这次进度更新到达
+        JPanel row = transferRows.get(transfer.getId());
+        JProgressBar bar;
+        if (row == null) {
+            row = new JPanel(new BorderLayout(5, 0));
+            bar = new JProgressBar(0, 100);
+            bar.setStringPainted(true);
+            JButton cancelButton = new JButton("取消");
+            cancelButton.addActionListener(e -> transfer.cancel());
+            row.add(new JLabel(transfer.getFile().getName()), BorderLayout.WEST);
+            row.add(bar, BorderLayout.CENTER);
+            row.add(cancelButton, BorderLayout.EAST);
+            transferRows.put(transfer.getId(), row);
+            transfersPanel.add(row);
+            transfersPanel.revalidate();
+        } else {
+            bar = (JProgressBar) row.getComponent(1);
+        }
+        if (transfer.getState() == TransferManager.State.QUEUED) {
+            bar.setString("排队中");
+        } else {
+            bar.setValue(transfer.getPercent());
+            bar.setString(String.format("%d%%  %.1f MB/s", transfer.getPercent(),
+                    transfer.getBytesPerSecond() / 1e6));
+        }
+    }
+
+    private static void removeTransferRow(TransferManager.Transfer transfer, Exception error) {
+        JPanel row = transferRows.remove(transfer.getId());
+        if (row != null) {
+            transfersPanel.remove(row);
+            transfersPanel.revalidate();
+            transfersPanel.repaint();
+        }
+        String name = transfer.getFile().getName();
+        switch (transfer.getState()) {
+            case DONE:
+                appendMessage(String.format("文件发送完成: %s（%.1f MB/s）", name, transfer.getBytesPerSecond() / 1e6));
+                break;
+            case CANCELLED:
+                appendMessage("文件发送已取消: " + name);
+                break;
+            default:
+                appendMessage("文件发送失败: " + name + "，" + (error == null ? "" : error.getMessage()));
+                if (error != null)
+                    error.printStackTrace();
+        }
+    }
+
     private static void appendMessage(String message) {
-        SwingUtilities.invokeLater(() -> chatArea.append(message + "\n"));
+        chatLog.append(message);
+    }
+
+    /**
+     * 保存一条聊天记录，失败时只提示，不影响收发。
+     */
+    private static void record(boolean outgoing, String text) {
+        if (history == null)
+            return;
+        try {
+            history.append(conversation, outgoing, text);
+        } catch (Exception e) {
+            appendMessage("保存聊天记录失败: " + e.getMessage());
+        }
     }
 
     private static void closeConnection() {
+        if (transferManager != null)
+            transferManager.close();
         try {
             if (server != null)
                 server.close();
             if (client != null)
                 client.close();
+            if (history != null)
+                history.close();
         } catch (IOException e) {
             appendMessage("关闭连接失败: " + e.getMessage());
         }
@@ -0,0 +1,102 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 固定大小的堆外缓冲区池，供按字节收发消息的接口复用，高消息速率下不再为每帧分配短命的数组。
+ * <p>
+ * 缓冲区大小由 {@code -Dsecure.buffer.size} 指定（默认 {@value #DEFAULT_BUFFER_SIZE} 字节），
+ * 池中最多保留 {@code -Dsecure.buffer.poolSize} 个（默认 {@value #DEFAULT_POOL_SIZE}）。
+ * 池空时新分配，归还时池已满则交给 GC；超过缓冲区大小的请求直接分配，归还时不入池。
+ * 空闲缓冲区存放在数组实现的栈中，借还本身不产生任何对象。
+ */
+public final class BufferPool {
+    public static final String BUFFER_SIZE_PROPERTY = "secure.buffer.size";
+    public static final String POOL_SIZE_PROPERTY = "secure.buffer.poolSize";
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_POOL_SIZE = 256;
+
+    private static final BufferPool SHARED = new BufferPool(
+            Integer.getInteger(BUFFER_SIZE_PROPERTY, DEFAULT_BUFFER_SIZE),
+            Integer.getInteger(POOL_SIZE_PROPERTY, DEFAULT_POOL_SIZE));
+
+    private final int bufferSize;
+    private final ByteBuffer[] free;
+    private int count;
+    private final LongAdder allocated = new LongAdder();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        if (bufferSize <= 0 || maxPooled < 0) {
+            throw new IllegalArgumentException("非法的缓冲区池参数: " + bufferSize + "/" + maxPooled);
+        }
+        this.bufferSize = bufferSize;
+        this.free = new ByteBuffer[maxPooled];
+    }
+
+    /**
+     * 进程内共用的池，按 -Dsecure.buffer.* 创建。
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * 借出一个已清空的缓冲区，容量为 {@link #getBufferSize()}。
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = count > 0 ? free[--count] : null;
+            if (buffer != null)
+                free[count] = null;
+        }
+        if (buffer == null) {
+            allocated.increment();
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * 借出至少能容纳 capacity 字节的缓冲区，limit 为 capacity。
+     */
+    public ByteBuffer acquire(int capacity) {
+        if (capacity > bufferSize) {
+            allocated.increment();
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        ByteBuffer buffer = acquire();
+        buffer.limit(capacity);
+        return buffer;
+    }
+
+    /**
+     * 归还借出的缓冲区，之后调用方不得再使用它。容量不符的缓冲区（超大请求或不是本池分配的）直接丢弃。
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize)
+            return;
+        synchronized (this) {
+            if (count < free.length)
+                free[count++] = buffer;
+        }
+    }
+
+    /**
+     * 当前空闲的缓冲区数。
+     */
+    public synchronized int getPooledCount() {
+        return count;
+    }
+
+    /**
+     * 创建以来新分配的缓冲区总数，稳定运行时不再增长说明借还是平衡的。
+     */
+    public long getAllocatedCount() {
+        return allocated.sum();
+    }
+}
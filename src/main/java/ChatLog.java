@@ -0,0 +1,243 @@
+import java.awt.FontMetrics;
+import java.awt.Insets;
+import java.awt.datatransfer.StringSelection;
+import java.awt.datatransfer.Transferable;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.AbstractListModel;
+import javax.swing.JComponent;
+import javax.swing.JList;
+import javax.swing.JMenuItem;
+import javax.swing.JPopupMenu;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.TransferHandler;
+
+/**
+ * 聊天记录的显示模型：只保留最近 capacity 行的环形缓冲区，配合 {@link JList} 只绘制可见的行。
+ * <p>
+ * {@link #append(String)} 可以在任意线程调用，行先进入待显示队列，事件分发线程每个帧间隔
+ * （{@value #FRAME_INTERVAL} 毫秒）最多合并处理一次，一批只触发一次删除和一次添加事件。
+ * 消息突发时待显示队列也不超过 capacity 行，更早的行反正会被挤出回滚窗口，直接丢弃。
+ * <p>
+ * 列表的行高按字体固定，行宽跟随可见宽度，不必逐行测量。超出可见宽度的行在加入时折成多行，
+ * 之后窗口变窄时出现横向滚动条。选中的行可以用 Ctrl+C 或右键菜单复制，折行处复制时重新连成一行。
+ */
+public class ChatLog extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L;
+    public static final String SCROLLBACK_PROPERTY = "secure.gui.scrollback";
+    public static final int DEFAULT_SCROLLBACK = 10000;
+    /** 两次刷新界面之间的最短间隔（毫秒），约 60 帧每秒 */
+    static final int FRAME_INTERVAL = 16;
+
+    private final String[] lines;
+    /** 对应的行是否是上一行折行后的续行 */
+    private final boolean[] continued;
+    /** 最早一行在 lines 中的下标 */
+    private int head;
+    private int size;
+
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final Timer flushTimer;
+    private JList<String> list;
+    private JScrollPane view;
+    /** 单元格渲染器的边距，以及已加入的行中最宽的一行（像素，含边距） */
+    private Insets cellInsets;
+    private int widest;
+
+    public ChatLog(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("回滚行数必须为正数: " + capacity);
+        }
+        lines = new String[capacity];
+        continued = new boolean[capacity];
+        flushTimer = new Timer(FRAME_INTERVAL, e -> flush());
+        flushTimer.setRepeats(false);
+    }
+
+    /**
+     * 按 -Dsecure.gui.scrollback 创建，默认保留 {@value #DEFAULT_SCROLLBACK} 行。
+     */
+    public static ChatLog fromSystemProperty() {
+        return new ChatLog(Integer.getInteger(SCROLLBACK_PROPERTY, DEFAULT_SCROLLBACK));
+    }
+
+    /**
+     * 创建显示本记录的滚动列表，只能调用一次，且须在事件分发线程上调用。
+     */
+    public JScrollPane createView() {
+        list = new JList<>(this);
+        JComponent cell = (JComponent) list.getCellRenderer().getListCellRendererComponent(list, "", 0, false, false);
+        cellInsets = cell.getInsets();
+        // 固定行高和行宽，列表不必逐行测量
+        list.setFixedCellHeight(metrics().getHeight() + cellInsets.top + cellInsets.bottom);
+        list.setTransferHandler(new TransferHandler() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public int getSourceActions(JComponent c) {
+                return COPY;
+            }
+
+            @Override
+            protected Transferable createTransferable(JComponent c) {
+                return new StringSelection(selectedText());
+            }
+        });
+        JPopupMenu menu = new JPopupMenu();
+        JMenuItem copy = new JMenuItem("复制");
+        copy.addActionListener(e -> list.getTransferHandler().exportToClipboard(list,
+                list.getToolkit().getSystemClipboard(), TransferHandler.COPY));
+        menu.add(copy);
+        list.setComponentPopupMenu(menu);
+        view = new JScrollPane(list);
+        view.getViewport().addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                updateCellWidth();
+            }
+        });
+        return view;
+    }
+
+    /**
+     * 选中的行，折行处不加换行。在事件分发线程上调用。
+     */
+    String selectedText() {
+        StringBuilder sb = new StringBuilder();
+        int[] selected = list.getSelectedIndices();
+        for (int i = 0; i < selected.length; i++) {
+            int index = (head + selected[i]) % lines.length;
+            if (i > 0 && !(continued[index] && selected[i - 1] == selected[i] - 1)) {
+                sb.append('\n');
+            }
+            sb.append(lines[index]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 追加一条消息，可以在任意线程调用，在下一个帧间隔内显示。含换行的消息拆成多行。
+     */
+    public void append(String message) {
+        for (String line : message.split("\n", -1)) {
+            pending.add(line);
+            if (pendingCount.incrementAndGet() > lines.length && pending.poll() != null) {
+                pendingCount.decrementAndGet();
+            }
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(flushTimer::start);
+        }
+    }
+
+    /**
+     * 把待显示的行一次性加入回滚窗口。在事件分发线程上调用。
+     */
+    void flush() {
+        // 先清除标志再取数据：之后追加的行会安排下一次刷新，不会遗漏
+        flushScheduled.set(false);
+        boolean atBottom = isAtBottom();
+        int before = size;
+        int added = 0;
+        int width = wrapWidth();
+        String line;
+        while ((line = pending.poll()) != null) {
+            pendingCount.decrementAndGet();
+            int start = 0;
+            do {
+                int end = width > 0 ? wrap(line, start, width) : line.length();
+                add(line.substring(start, end), start > 0);
+                start = end;
+                added++;
+            } while (start < line.length());
+        }
+        if (added == 0)
+            return;
+        updateCellWidth();
+
+        // 对列表而言：先删去被挤出的旧行，再在末尾加入本批仍留在窗口内的行
+        int evicted = Math.min(before, Math.max(0, before + added - lines.length));
+        if (evicted > 0) {
+            fireIntervalRemoved(this, 0, evicted - 1);
+        }
+        fireIntervalAdded(this, before - evicted, size - 1);
+        if (atBottom && list != null) {
+            list.ensureIndexIsVisible(size - 1);
+        }
+    }
+
+    private void add(String row, boolean continuation) {
+        int index = (head + size) % lines.length;
+        lines[index] = row;
+        continued[index] = continuation;
+        if (size < lines.length) {
+            size++;
+        } else {
+            head = (head + 1) % lines.length;
+        }
+        if (list != null) {
+            widest = Math.max(widest, metrics().stringWidth(row) + cellInsets.left + cellInsets.right);
+        }
+    }
+
+    /**
+     * 折行的可用宽度（像素），列表尚未显示时为 0，不折行。
+     */
+    private int wrapWidth() {
+        if (view == null)
+            return 0;
+        return Math.max(0, view.getViewport().getWidth() - cellInsets.left - cellInsets.right);
+    }
+
+    /**
+     * 从 start 开始放得下 width 像素的一行在哪里结束，至少放一个字符，不拆开代理对。
+     */
+    private int wrap(String line, int start, int width) {
+        FontMetrics metrics = metrics();
+        int end = start;
+        int used = 0;
+        while (end < line.length()) {
+            int cp = line.codePointAt(end);
+            used += metrics.charWidth(cp);
+            if (used > width && end > start)
+                break;
+            end += Character.charCount(cp);
+        }
+        return end;
+    }
+
+    private void updateCellWidth() {
+        if (view != null) {
+            list.setFixedCellWidth(Math.max(view.getViewport().getWidth(), widest));
+        }
+    }
+
+    private FontMetrics metrics() {
+        return list.getFontMetrics(list.getFont());
+    }
+
+    private boolean isAtBottom() {
+        if (view == null)
+            return true;
+        JScrollBar bar = view.getVerticalScrollBar();
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum();
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return lines[(head + index) % lines.length];
+    }
+}
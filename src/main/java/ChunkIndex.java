@@ -0,0 +1,176 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * 按内容切分文件（content-defined chunking），用于增量发送。
+ * <p>
+ * 用 Gear 滚动哈希扫描文件：每读一个字节 hash = (hash &lt;&lt; 1) + GEAR[字节]，哈希只取决于最近 64 个字节，
+ * 高 16 位全为 0 时在此切分。块长度在 {@value #MIN_CHUNK} 到 {@value #MAX_CHUNK} 字节之间，平均约 80 KB。
+ * 切分点只由附近的内容决定，文件中间插入或删除数据只影响附近的一两个块，其余块的 SHA-256 不变。
+ * <p>
+ * 接收方在收到的文件旁保存块索引（received_&lt;文件名&gt;.chunks），记录文件长度、修改时间和各块的长度与哈希，
+ * 文件没有变化时下次直接读索引，不必重新扫描。
+ */
+public final class ChunkIndex {
+    public static final int MIN_CHUNK = 16 * 1024;
+    public static final int MAX_CHUNK = 256 * 1024;
+    private static final long CUT_MASK = 0xFFFFL << 48;
+    private static final int MAGIC = 0x43444331; // "CDC1"
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x5EC0DE);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * 文件中的一个块。
+     */
+    public static final class Chunk {
+        final long offset;
+        final int length;
+        /** 内容的 SHA-256 */
+        final byte[] hash;
+
+        Chunk(long offset, int length, byte[] hash) {
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+
+        /** 按内容比较的哈希，可以作为集合的键 */
+        ByteBuffer key() {
+            return ByteBuffer.wrap(hash);
+        }
+    }
+
+    private ChunkIndex() {
+    }
+
+    /**
+     * 扫描整个文件并切分。
+     */
+    public static List<Chunk> chunk(File file) throws Exception {
+        List<Chunk> chunks = new ArrayList<>();
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[1024 * 1024];
+        long start = 0;
+        int length = 0;
+        long hash = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                int from = 0;
+                for (int i = 0; i < n; i++) {
+                    hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+                    length++;
+                    if ((length >= MIN_CHUNK && (hash & CUT_MASK) == 0) || length == MAX_CHUNK) {
+                        digest.update(buffer, from, i + 1 - from);
+                        chunks.add(new Chunk(start, length, digest.digest()));
+                        start += length;
+                        length = 0;
+                        hash = 0;
+                        from = i + 1;
+                    }
+                }
+                digest.update(buffer, from, n - from);
+            }
+        }
+        if (length > 0) {
+            chunks.add(new Chunk(start, length, digest.digest()));
+        }
+        return chunks;
+    }
+
+    /**
+     * 读取 target 的块索引；索引不存在或与文件不符时重新扫描并保存。target 不存在时返回空列表。
+     */
+    public static List<Chunk> load(File target) throws Exception {
+        if (!target.isFile())
+            return Collections.emptyList();
+        File index = indexFile(target);
+        if (index.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+                if (in.readInt() == MAGIC && in.readLong() == target.length()
+                        && in.readLong() == target.lastModified()) {
+                    int count = in.readInt();
+                    List<Chunk> chunks = new ArrayList<>();
+                    long offset = 0;
+                    for (int i = 0; i < count && offset < target.length(); i++) {
+                        int length = in.readInt();
+                        if (length <= 0 || length > MAX_CHUNK)
+                            break;
+                        byte[] hash = new byte[TreeHash.HASH_LENGTH];
+                        in.readFully(hash);
+                        chunks.add(new Chunk(offset, length, hash));
+                        offset += length;
+                    }
+                    if (offset == target.length() && chunks.size() == count)
+                        return chunks;
+                }
+            } catch (IOException e) {
+                // 索引损坏，重新扫描
+            }
+        }
+        List<Chunk> chunks = chunk(target);
+        save(target, chunks);
+        return chunks;
+    }
+
+    /**
+     * 保存 target 当前内容的块索引，写临时文件后原子替换。
+     */
+    public static void save(File target, List<Chunk> chunks) throws IOException {
+        File index = indexFile(target);
+        File temp = new File(index.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(target.length());
+            out.writeLong(target.lastModified());
+            out.writeInt(chunks.size());
+            for (Chunk chunk : chunks) {
+                out.writeInt(chunk.length);
+                out.write(chunk.hash);
+            }
+        }
+        Files.move(temp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static File indexFile(File target) {
+        return new File(target.getPath() + ".chunks");
+    }
+
+    /**
+     * 从 file 中读出 chunk 并校验哈希。
+     *
+     * @param buffer 至少 chunk.length 字节。
+     */
+    static void read(FileChannel file, Chunk chunk, byte[] buffer) throws Exception {
+        ByteBuffer dst = ByteBuffer.wrap(buffer, 0, chunk.length);
+        while (dst.hasRemaining()) {
+            if (file.read(dst, chunk.offset + dst.position()) < 0) {
+                throw new EOFException("本地文件在读取块时被截断");
+            }
+        }
+        if (!MessageDigest.isEqual(chunk.hash, sha256(buffer, chunk.length))) {
+            throw new IOException("本地块内容已变化: " + chunk.offset);
+        }
+    }
+
+    static byte[] sha256(byte[] data, int len) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(data, 0, len);
+        return digest.digest();
+    }
+}
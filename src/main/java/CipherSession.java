@@ -0,0 +1,170 @@
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * 单个连接的 AES-GCM 加解密会话。
+ * <p>
+ * Cipher 实例在连接建立时创建一次，之后每条消息只更换 IV，省去每次 {@code Cipher.getInstance} 的提供者查找。
+ * IV 由 4 字节方向标识和 8 字节递增计数器组成，双方按收发顺序即可推算，不随消息传输。
+ * 加密和解密分别加锁，可以在不同线程上同时进行，但同一方向的调用顺序必须与数据在网络上的顺序一致。
+ * 各方法都可以附带不加密但参与认证的附加数据（AAD），用于保护明文帧头。
+ */
+public class CipherSession {
+    /** GCM 认证标签长度（字节） */
+    public static final int TAG_LENGTH = 16;
+    public static final int NONCE_LENGTH = 12;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int INITIATOR = 0x434C4E54; // "CLNT"
+    private static final int RESPONDER = 0x53525652; // "SRVR"
+
+    private final SecretKey key;
+    private final boolean initiator;
+    private final Cipher encryptCipher;
+    private final Cipher decryptCipher;
+    private final byte[] encryptNonce = new byte[NONCE_LENGTH];
+    private final byte[] decryptNonce = new byte[NONCE_LENGTH];
+    private long sendCounter;
+    private long receiveCounter;
+
+    /**
+     * @param key       双方协商得到的 AES 密钥。
+     * @param initiator 连接发起方（客户端）为 true，接受方（服务端）为 false。
+     * @throws GeneralSecurityException 如果当前 JDK 不支持 AES-GCM。
+     */
+    public CipherSession(SecretKey key, boolean initiator) throws GeneralSecurityException {
+        this.key = key;
+        this.initiator = initiator;
+        this.encryptCipher = Cipher.getInstance(TRANSFORMATION);
+        this.decryptCipher = Cipher.getInstance(TRANSFORMATION);
+        writeInt(encryptNonce, initiator ? INITIATOR : RESPONDER);
+        writeInt(decryptNonce, initiator ? RESPONDER : INITIATOR);
+    }
+
+    public SecretKey getKey() {
+        return key;
+    }
+
+    public boolean isInitiator() {
+        return initiator;
+    }
+
+    /**
+     * 密文长度：明文长度加上认证标签。
+     */
+    public static int sealedLength(int plainLength) {
+        return plainLength + TAG_LENGTH;
+    }
+
+    /**
+     * 加密 in[inOff, inOff+len) 并写入调用方提供的 out，out 至少需要 {@link #sealedLength(int)} 字节空间。
+     *
+     * @return 写入 out 的密文长度。
+     * @throws GeneralSecurityException 如果加密过程中发生错误。
+     */
+    public int encrypt(byte[] in, int inOff, int len, byte[] out, int outOff) throws GeneralSecurityException {
+        return encrypt(null, in, inOff, len, out, outOff);
+    }
+
+    /**
+     * 同 {@link #encrypt(byte[], int, int, byte[], int)}，aad 参与认证但不加密，为 null 时没有附加数据。
+     */
+    public int encrypt(byte[] aad, byte[] in, int inOff, int len, byte[] out, int outOff)
+            throws GeneralSecurityException {
+        synchronized (encryptCipher) {
+            initEncrypt(aad);
+            return encryptCipher.doFinal(in, inOff, len, out, outOff);
+        }
+    }
+
+    /**
+     * 加密 in 中剩余的全部字节并写入 out，两个缓冲区的位置随之前移。
+     *
+     * @return 写入 out 的密文长度。
+     * @throws GeneralSecurityException 如果加密过程中发生错误。
+     */
+    public int encrypt(ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+        return encrypt(null, in, out);
+    }
+
+    /**
+     * 同 {@link #encrypt(ByteBuffer, ByteBuffer)}，aad 参与认证但不加密，为 null 时没有附加数据。
+     */
+    public int encrypt(byte[] aad, ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+        synchronized (encryptCipher) {
+            initEncrypt(aad);
+            return encryptCipher.doFinal(in, out);
+        }
+    }
+
+    /**
+     * 解密并校验 in[inOff, inOff+len)，明文写入调用方提供的 out。
+     *
+     * @return 写入 out 的明文长度。
+     * @throws GeneralSecurityException 如果密文被篡改、乱序或解密失败。
+     */
+    public int decrypt(byte[] in, int inOff, int len, byte[] out, int outOff) throws GeneralSecurityException {
+        return decrypt(null, in, inOff, len, out, outOff);
+    }
+
+    /**
+     * 同 {@link #decrypt(byte[], int, int, byte[], int)}，aad 必须与加密时的附加数据相同。
+     */
+    public int decrypt(byte[] aad, byte[] in, int inOff, int len, byte[] out, int outOff)
+            throws GeneralSecurityException {
+        synchronized (decryptCipher) {
+            initDecrypt(aad);
+            return decryptCipher.doFinal(in, inOff, len, out, outOff);
+        }
+    }
+
+    /**
+     * 解密并校验 in 中剩余的全部字节，明文写入 out，两个缓冲区的位置随之前移。
+     *
+     * @return 写入 out 的明文长度。
+     * @throws GeneralSecurityException 如果密文被篡改、乱序或解密失败。
+     */
+    public int decrypt(ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+        return decrypt(null, in, out);
+    }
+
+    /**
+     * 同 {@link #decrypt(ByteBuffer, ByteBuffer)}，aad 必须与加密时的附加数据相同。
+     */
+    public int decrypt(byte[] aad, ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+        synchronized (decryptCipher) {
+            initDecrypt(aad);
+            return decryptCipher.doFinal(in, out);
+        }
+    }
+
+    private void initEncrypt(byte[] aad) throws GeneralSecurityException {
+        writeLong(encryptNonce, sendCounter++);
+        encryptCipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, encryptNonce));
+        if (aad != null)
+            encryptCipher.updateAAD(aad);
+    }
+
+    private void initDecrypt(byte[] aad) throws GeneralSecurityException {
+        writeLong(decryptNonce, receiveCounter++);
+        decryptCipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, decryptNonce));
+        if (aad != null)
+            decryptCipher.updateAAD(aad);
+    }
+
+    private static void writeInt(byte[] nonce, int value) {
+        nonce[0] = (byte) (value >>> 24);
+        nonce[1] = (byte) (value >>> 16);
+        nonce[2] = (byte) (value >>> 8);
+        nonce[3] = (byte) value;
+    }
+
+    private static void writeLong(byte[] nonce, long value) {
+        for (int i = 0; i < 8; i++) {
+            nonce[4 + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+}
@@ -1,5 +1,9 @@
 import javax.crypto.*;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
 import java.util.Base64;
 
 public class CryptoUtil {
@@ -26,7 +30,7 @@ public class CryptoUtil {
     public static String sign(String data, PrivateKey privateKey) throws Exception {
         Signature signer = Signature.getInstance("SHA256withRSA");
         signer.initSign(privateKey);
-        signer.update(data.getBytes());
+        signer.update(data.getBytes(StandardCharsets.UTF_8));
         return Base64.getEncoder().encodeToString(signer.sign());
     }
 
@@ -42,7 +46,7 @@ public class CryptoUtil {
     public static boolean verify(String data, String signature, PublicKey publicKey) throws Exception {
         Signature verifier = Signature.getInstance("SHA256withRSA");
         verifier.initVerify(publicKey);
-        verifier.update(data.getBytes());
+        verifier.update(data.getBytes(StandardCharsets.UTF_8));
         return verifier.verify(Base64.getDecoder().decode(signature));
     }
 
@@ -97,7 +101,7 @@ public class CryptoUtil {
     public static byte[] encryptAES(String data, SecretKey key) throws Exception {
         Cipher cipher = Cipher.getInstance("AES");
         cipher.init(Cipher.ENCRYPT_MODE, key);
-        return cipher.doFinal(data.getBytes());
+        return cipher.doFinal(data.getBytes(StandardCharsets.UTF_8));
     }
 
     /**
@@ -111,7 +115,7 @@ public class CryptoUtil {
     public static String decryptAES(byte[] data, SecretKey key) throws Exception {
         Cipher cipher = Cipher.getInstance("AES");
         cipher.init(Cipher.DECRYPT_MODE, key);
-        return new String(cipher.doFinal(data));
+        return new String(cipher.doFinal(data), StandardCharsets.UTF_8);
     }
 
     /**
@@ -142,4 +146,57 @@ public class CryptoUtil {
         return cipher.doFinal(data);
     }
 
+    /**
+     * 使用 HMAC-SHA256 计算消息认证码。
+     *
+     * @param key  用作 HMAC 密钥的密钥。
+     * @param data 要认证的数据。
+     * @return 32 字节的认证码。
+     * @throws Exception 如果计算过程中发生错误。
+     */
+    public static byte[] hmac(SecretKey key, byte[] data) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+        return mac.doFinal(data);
+    }
+
+    /**
+     * 从会话密钥派生一个用途不同的 128 位 AES 子密钥，相同的输入总是得到相同的子密钥。
+     *
+     * @param key   会话密钥。
+     * @param label 用途标签，不同用途必须使用不同标签。
+     * @return 派生出的AES密钥。
+     * @throws Exception 如果派生过程中发生错误。
+     */
+    public static SecretKey deriveKey(SecretKey key, String label) throws Exception {
+        byte[] okm = hmac(key, label.getBytes(StandardCharsets.UTF_8));
+        return new SecretKeySpec(Arrays.copyOf(okm, 16), "AES");
+    }
+
+    /**
+     * 生成一个临时 X25519 密钥对，用于 ECDHE 密钥交换。
+     *
+     * @return 生成的X25519密钥对。
+     * @throws Exception 如果生成密钥对过程中发生错误。
+     */
+    public static KeyPair generateX25519KeyPair() throws Exception {
+        return KeyPairGenerator.getInstance("X25519").generateKeyPair();
+    }
+
+    /**
+     * 用本端 X25519 私钥和对端公钥计算共享秘密。
+     *
+     * @param privateKey 本端私钥。
+     * @param peerPublic 对端公钥的 X.509 编码。
+     * @return 32 字节的共享秘密。
+     * @throws Exception 如果对端公钥非法或计算过程中发生错误。
+     */
+    public static byte[] agreeX25519(PrivateKey privateKey, byte[] peerPublic) throws Exception {
+        PublicKey peerKey = KeyFactory.getInstance("X25519").generatePublic(new X509EncodedKeySpec(peerPublic));
+        KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+        agreement.init(privateKey);
+        agreement.doPhase(peerKey, true);
+        return agreement.generateSecret();
+    }
+
 }
@@ -0,0 +1,325 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 预加密文件的磁盘缓存：同一个文件只用随机生成的内容密钥加密一次，密文写入缓存目录，
+ * 之后发给任意多个接收方都直接从缓存文件用 {@link FileChannel#transferTo} 写到套接字，
+ * 数据不经过 Java 堆，也不再消耗加密运算。内容密钥经每个接收方自己的会话密钥加密后下发（CACHED_OPEN 帧）。
+ * <p>
+ * 文件按 {@value #CHUNK_SIZE} 字节分块独立加密，第 i 块的 nonce 是块序号，附加数据包括内容 ID、
+ * 文件大小和块序号，接收方因此能发现块被调换、截断或混入别的文件。每个内容密钥只用于一个文件，nonce 不会重复。
+ * <p>
+ * 缓存总大小不超过 {@code -Dsecure.cache.maxBytes}（默认 1 GiB），超出时按最近最少使用淘汰；
+ * 正在发送的条目被淘汰时，缓存文件在最后一次发送结束后删除。内容密钥只保存在内存中，
+ * 启动时会删除缓存目录（{@code -Dsecure.cache.dir}，默认 encrypted-cache）中上次遗留的密文。
+ */
+public class EncryptedFileCache {
+    public static final String DIR_PROPERTY = "secure.cache.dir";
+    public static final String MAX_BYTES_PROPERTY = "secure.cache.maxBytes";
+    public static final long DEFAULT_MAX_BYTES = 1L << 30;
+    public static final int CHUNK_SIZE = FileTransfer.DEFAULT_FRAME_SIZE;
+    static final int CONTENT_ID_LENGTH = 16;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String SUFFIX = ".enc";
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * 一个已加密的文件。通过 {@link #acquire(File)} 取得，用完后调用 {@link #release()}。
+     */
+    public final class Entry {
+        final String name;
+        final long size;
+        final int chunkSize;
+        final byte[] contentId;
+        final SecretKey key;
+        final File cacheFile;
+        private int references;
+        private boolean evicted;
+
+        private Entry(String name, long size, int chunkSize, byte[] contentId, SecretKey key, File cacheFile) {
+            this.name = name;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.contentId = contentId;
+            this.key = key;
+            this.cacheFile = cacheFile;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public int chunkCount() {
+            return (int) ((size + chunkSize - 1) / chunkSize);
+        }
+
+        /** 第 index 块密文在缓存文件中的位置 */
+        public long chunkOffset(int index) {
+            return (long) index * CipherSession.sealedLength(chunkSize);
+        }
+
+        /** 第 index 块密文的长度 */
+        public int chunkLength(int index) {
+            return CipherSession.sealedLength((int) Math.min(chunkSize, size - (long) index * chunkSize));
+        }
+
+        /** 缓存文件的大小 */
+        long sealedSize() {
+            return size == 0 ? 0 : chunkOffset(chunkCount() - 1) + chunkLength(chunkCount() - 1);
+        }
+
+        /**
+         * CACHED_OPEN 帧的内容：文件名、大小、分块大小、内容 ID、内容密钥。必须经会话密钥加密后发送。
+         */
+        public byte[] header() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(name);
+            out.writeLong(size);
+            out.writeInt(chunkSize);
+            out.write(contentId);
+            byte[] raw = key.getEncoded();
+            out.writeShort(raw.length);
+            out.write(raw);
+            return bytes.toByteArray();
+        }
+
+        /**
+         * 结束一次使用。
+         */
+        public void release() {
+            synchronized (EncryptedFileCache.this) {
+                if (--references == 0 && evicted) {
+                    cacheFile.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * 接收方解出的 CACHED_OPEN 内容。
+     */
+    static final class Header {
+        final String name;
+        final long size;
+        final int chunkSize;
+        final byte[] contentId;
+        final SecretKey key;
+
+        private Header(String name, long size, int chunkSize, byte[] contentId, SecretKey key) {
+            this.name = name;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.contentId = contentId;
+            this.key = key;
+        }
+
+        static Header decode(byte[] data, int len) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, len));
+            String name = in.readUTF();
+            long size = in.readLong();
+            int chunkSize = in.readInt();
+            if (size < 0 || chunkSize <= 0 || chunkSize > FileTransfer.MAX_FRAME_SIZE) {
+                throw new IOException("非法的预加密文件头: " + size + "/" + chunkSize);
+            }
+            byte[] contentId = new byte[CONTENT_ID_LENGTH];
+            in.readFully(contentId);
+            byte[] raw = new byte[in.readUnsignedShort()];
+            in.readFully(raw);
+            return new Header(name, size, chunkSize, contentId, new SecretKeySpec(raw, "AES"));
+        }
+    }
+
+    private final File directory;
+    private final long maxBytes;
+    /** 按访问顺序排列，最久未用的在前 */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<Entry>> filling = new HashMap<>();
+    private long totalBytes;
+
+    public EncryptedFileCache(File directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("无法创建缓存目录: " + directory);
+        }
+        File[] stale = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (stale != null) {
+            for (File file : stale) {
+                file.delete();
+            }
+        }
+    }
+
+    public static EncryptedFileCache fromSystemProperties() throws IOException {
+        return new EncryptedFileCache(new File(System.getProperty(DIR_PROPERTY, "encrypted-cache")),
+                Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES));
+    }
+
+    /**
+     * 取得文件的加密缓存，没有时（或文件的大小、修改时间已变化）在调用线程上加密一次。
+     * 同一文件的并发请求只加密一次，其余等待。
+     */
+    public Entry acquire(File file) throws Exception {
+        // 文件内容变化时大小或修改时间随之变化，旧条目不再命中，最终被淘汰
+        String id = file.getCanonicalPath() + "|" + file.length() + "|" + file.lastModified();
+        while (true) {
+            CompletableFuture<Entry> pending;
+            boolean owner = false;
+            synchronized (this) {
+                Entry entry = entries.get(id);
+                if (entry != null) {
+                    entry.references++;
+                    return entry;
+                }
+                pending = filling.get(id);
+                if (pending == null) {
+                    pending = new CompletableFuture<>();
+                    filling.put(id, pending);
+                    owner = true;
+                }
+            }
+            if (!owner) {
+                try {
+                    pending.get();
+                } catch (ExecutionException e) {
+                    throw (Exception) e.getCause();
+                }
+                continue; // 重新查找，期间可能已被淘汰
+            }
+            try {
+                Entry entry = fill(file);
+                synchronized (this) {
+                    filling.remove(id);
+                    entries.put(id, entry);
+                    entry.references++;
+                    totalBytes += entry.sealedSize();
+                    evict();
+                }
+                pending.complete(entry);
+                return entry;
+            } catch (Exception e) {
+                synchronized (this) {
+                    filling.remove(id);
+                }
+                pending.completeExceptionally(e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 缓存中的密文总字节数。
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Entry entry = it.next();
+            it.remove();
+            totalBytes -= entry.sealedSize();
+            entry.evicted = true;
+            if (entry.references == 0) {
+                entry.cacheFile.delete();
+            }
+        }
+    }
+
+    private Entry fill(File file) throws Exception {
+        byte[] contentId = new byte[CONTENT_ID_LENGTH];
+        random.nextBytes(contentId);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : contentId) {
+            hex.append(String.format("%02x", b));
+        }
+        Entry entry = new Entry(file.getName(), file.length(), CHUNK_SIZE, contentId, CryptoUtil.generateAESKey(),
+                new File(directory, hex + SUFFIX));
+
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        byte[] plain = new byte[entry.chunkSize];
+        byte[] sealed = new byte[CipherSession.sealedLength(entry.chunkSize)];
+        Metrics metrics = Metrics.global();
+        boolean ok = false;
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                FileChannel sink = FileChannel.open(entry.cacheFile.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int i = 0; i < entry.chunkCount(); i++) {
+                int len = entry.chunkLength(i) - CipherSession.TAG_LENGTH;
+                ByteBuffer dst = ByteBuffer.wrap(plain, 0, len);
+                while (dst.hasRemaining()) {
+                    if (source.read(dst, (long) i * entry.chunkSize + dst.position()) < 0) {
+                        throw new IOException("文件在加密过程中被截断: " + file);
+                    }
+                }
+                long start = System.nanoTime();
+                int n = sealChunk(cipher, entry.key, entry.contentId, entry.size, i, plain, len, sealed);
+                metrics.encrypted(System.nanoTime() - start);
+                ByteBuffer src = ByteBuffer.wrap(sealed, 0, n);
+                while (src.hasRemaining()) {
+                    sink.write(src);
+                }
+            }
+            ok = true;
+        } finally {
+            if (!ok)
+                entry.cacheFile.delete();
+        }
+        return entry;
+    }
+
+    static int sealChunk(Cipher cipher, SecretKey key, byte[] contentId, long size, int index, byte[] plain, int len,
+            byte[] out) throws GeneralSecurityException {
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(CipherSession.TAG_LENGTH * 8, nonce(index)));
+        cipher.updateAAD(aad(contentId, size, index));
+        return cipher.doFinal(plain, 0, len, out, 0);
+    }
+
+    /**
+     * 解密第 index 块，明文写入 out。
+     */
+    static int openChunk(Cipher cipher, SecretKey key, byte[] contentId, long size, int index, byte[] sealed, int len,
+            byte[] out) throws GeneralSecurityException {
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(CipherSession.TAG_LENGTH * 8, nonce(index)));
+        cipher.updateAAD(aad(contentId, size, index));
+        return cipher.doFinal(sealed, 0, len, out, 0);
+    }
+
+    static Cipher newCipher() throws GeneralSecurityException {
+        return Cipher.getInstance(TRANSFORMATION);
+    }
+
+    private static byte[] nonce(int index) {
+        return ByteBuffer.allocate(CipherSession.NONCE_LENGTH).putInt(0).putLong(index).array();
+    }
+
+    private static byte[] aad(byte[] contentId, long size, int index) {
+        return ByteBuffer.allocate(contentId.length + 12).put(contentId).putLong(size).putInt(index).array();
+    }
+}
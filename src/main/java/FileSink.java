@@ -0,0 +1,231 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 接收文件的写盘端。打开时按声明的大小预分配目标文件，每帧直接解密到它提供的堆外缓冲区，
+ * 再按持久化策略刷盘并更新 {@link TransferJournal} 检查点。
+ * <p>
+ * 写入方式由 {@code -Dsecure.file.receiveMode} 选择：
+ * <ul>
+ * <li>channel（默认）：解密到复用的直接缓冲区，再用 {@link FileChannel} 按位置写出，明文不经过 Java 堆；</li>
+ * <li>mmap：按 {@value #WINDOW_SIZE} 字节的窗口映射文件，解密直接写入映射区域，省去一次拷贝。</li>
+ * </ul>
+ * 持久化策略由 {@code -Dsecure.file.sync} 选择：
+ * <ul>
+ * <li>interval（默认）：每写入 {@code -Dsecure.file.syncMB} MB（默认 8）刷一次盘再更新检查点，收完时再刷一次；</li>
+ * <li>end：只在收完时刷一次盘；</li>
+ * <li>none：从不主动刷盘，交给操作系统回写。</li>
+ * </ul>
+ * 后两种策略下检查点仍按同样的间隔更新，此时它只保证进程退出或连接中断后可以续传，
+ * 操作系统崩溃或断电后检查点之前的数据可能不完整。
+ * <p>
+ * 预分配用 {@link RandomAccessFile#setLength}：JDK 没有 fallocate，在支持稀疏文件的文件系统上
+ * 它只一次确定最终长度，不保证分配连续的磁盘块。
+ */
+public abstract class FileSink implements Closeable {
+    public static final String MODE_PROPERTY = "secure.file.receiveMode";
+    public static final String SYNC_PROPERTY = "secure.file.sync";
+    public static final String SYNC_INTERVAL_PROPERTY = "secure.file.syncMB";
+    /** mmap 方式下每个映射窗口的大小 */
+    public static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    public enum Durability {
+        NONE, INTERVAL, END
+    }
+
+    protected final FileChannel channel;
+    protected final long size;
+    protected final Durability durability;
+    private final TransferJournal journal;
+    private final long syncInterval;
+    private long lastCheckpoint;
+
+    protected FileSink(FileChannel channel, long size, long offset, TransferJournal journal, Durability durability,
+            long syncInterval) {
+        this.channel = channel;
+        this.size = size;
+        this.journal = journal;
+        this.durability = durability;
+        this.syncInterval = syncInterval;
+        this.lastCheckpoint = offset;
+    }
+
+    /**
+     * 按 -Dsecure.file.* 打开目标文件。offset 为 0 时丢弃原有内容，否则保留 offset 之前已收到的部分。
+     *
+     * @param frameSize 每次 {@link #buffer(long, int)} 请求的最大长度。
+     * @param journal   续传检查点，不续传时为 null。
+     */
+    public static FileSink open(File target, long size, long offset, int frameSize, TransferJournal journal)
+            throws IOException {
+        String mode = System.getProperty(MODE_PROPERTY, "channel");
+        Durability durability = Durability.valueOf(System.getProperty(SYNC_PROPERTY, "interval").toUpperCase());
+        long interval = Long.getLong(SYNC_INTERVAL_PROPERTY, FileTransfer.CHECKPOINT_INTERVAL >> 20) << 20;
+        if (interval <= 0) {
+            throw new IllegalArgumentException("非法的刷盘间隔: " + interval);
+        }
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            if (offset == 0) {
+                file.setLength(0);
+            }
+            if (file.length() != size) {
+                file.setLength(size);
+            }
+            switch (mode) {
+                case "channel":
+                    return new ChannelSink(file.getChannel(), size, offset, frameSize, journal, durability, interval);
+                case "mmap":
+                    return new MappedSink(file.getChannel(), size, offset, journal, durability, interval);
+                default:
+                    throw new IllegalArgumentException("未知的接收方式: " + mode);
+            }
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 取得存放 [position, position+length) 明文的缓冲区，剩余空间恰好为 length。
+     * 调用方写满后交给 {@link #write(ByteBuffer, long)}。
+     */
+    public abstract ByteBuffer buffer(long position, int length) throws IOException;
+
+    /**
+     * 把 {@link #buffer(long, int)} 取得并已写满的缓冲区落到文件的 position 处，之后调用方不得再使用它。
+     */
+    public abstract void write(ByteBuffer buffer, long position) throws IOException;
+
+    /**
+     * 把已写入的数据刷到磁盘。
+     */
+    protected abstract void force() throws IOException;
+
+    /**
+     * position 之前的数据都已写入：距上次检查点超过刷盘间隔时，按策略刷盘并记录新的检查点。
+     */
+    public synchronized void advance(long position) throws IOException {
+        if (position - lastCheckpoint < syncInterval)
+            return;
+        if (durability == Durability.INTERVAL) {
+            force();
+        }
+        if (journal != null) {
+            journal.checkpoint(position);
+        }
+        lastCheckpoint = position;
+    }
+
+    /**
+     * 全部收到：除 none 策略外刷盘，关闭文件并删除检查点。
+     */
+    public void finish() throws IOException {
+        try {
+            if (channel.size() > size) {
+                channel.truncate(size);
+            }
+            if (durability != Durability.NONE) {
+                synchronized (this) {
+                    force();
+                }
+            }
+        } finally {
+            close();
+        }
+        if (journal != null) {
+            journal.complete();
+        }
+    }
+
+    /**
+     * 关闭文件，已写入的部分和检查点保留，以便续传。
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * 解密到池化的直接缓冲区，再按位置写出。
+     */
+    private static final class ChannelSink extends FileSink {
+        private final BufferPool buffers;
+
+        ChannelSink(FileChannel channel, long size, long offset, int frameSize, TransferJournal journal,
+                Durability durability, long syncInterval) {
+            super(channel, size, offset, journal, durability, syncInterval);
+            // 流水线中同时在途的块数加上接收线程正在填充的一块
+            this.buffers = new BufferPool(frameSize, TransferPipeline.DEFAULT_DEPTH + 1);
+        }
+
+        @Override
+        public ByteBuffer buffer(long position, int length) {
+            return buffers.acquire(length);
+        }
+
+        @Override
+        public void write(ByteBuffer buffer, long position) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffers.release(buffer);
+        }
+
+        @Override
+        protected void force() throws IOException {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * 解密直接写入文件映射。刷盘时逐个强制写回上次刷盘以来映射过的窗口。
+     */
+    private static final class MappedSink extends FileSink {
+        private final List<MappedByteBuffer> unsynced = new ArrayList<>();
+        private MappedByteBuffer window;
+        private long windowStart;
+
+        MappedSink(FileChannel channel, long size, long offset, TransferJournal journal, Durability durability,
+                long syncInterval) {
+            super(channel, size, offset, journal, durability, syncInterval);
+        }
+
+        @Override
+        public synchronized ByteBuffer buffer(long position, int length) throws IOException {
+            if (window == null || position < windowStart || position + length > windowStart + window.capacity()) {
+                long mapLength = Math.max(length, Math.min(WINDOW_SIZE, size - position));
+                window = channel.map(FileChannel.MapMode.READ_WRITE, position, mapLength);
+                windowStart = position;
+                if (durability != Durability.NONE) {
+                    unsynced.add(window);
+                }
+            }
+            return window.slice((int) (position - windowStart), length);
+        }
+
+        @Override
+        public void write(ByteBuffer buffer, long position) {
+            // 数据已在映射区域中
+        }
+
+        @Override
+        protected synchronized void force() {
+            for (MappedByteBuffer mapped : unsynced) {
+                mapped.force();
+            }
+            unsynced.clear();
+            if (window != null && durability != Durability.NONE) {
+                unsynced.add(window); // 当前窗口之后还会继续写入
+            }
+        }
+    }
+}
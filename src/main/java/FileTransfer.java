@@ -0,0 +1,1474 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * 基于 {@link SecureChannel} 的流式文件传输。
+ * <p>
+ * 每个文件是连接上的一个流，有自己的流 ID 和由会话密钥派生的流密钥。文件内容按固定大小的帧发送，
+ * 每帧是一个独立认证的 AES-GCM 密文，IV 随该流的帧序号递增，接收方按顺序解密即可发现帧被篡改、重放或重排。
+ * 发送帧交给 {@link FrameScheduler}，与聊天消息和其他文件流交错写出，多个文件可以同时发送。
+ * 帧大小可在 64 KB 到 8 MB 之间配置。
+ * <p>
+ * 默认以 {@link TransferPipeline} 流水线方式运行，读盘、加解密和网络收发在不同线程上重叠进行，
+ * 各阶段的吞吐量和队列深度见 {@link #getLastStats()}；{@code -Dsecure.file.pipeline=false} 可退回单线程顺序执行。
+ * 连接协商了压缩时，每帧在加密前按 {@link FrameCompressor} 的规则压缩，帧头的压缩标志告诉接收方是否需要解压。
+ * 除最后一帧外每帧的明文都恰好是一个帧大小，接收方据此在解压前就知道每帧的原始长度。
+ * <p>
+ * 双方以帧为叶子边传边计算整个文件的 {@link TreeHash}，接收方收到 FILE_DIGEST 后核对根，
+ * 不一致时删除收到的文件和检查点。续传时已跳过的部分由双方在后台从各自的文件读出计算。
+ * 接收方拒绝声明大小超过 {@code -Dsecure.file.maxSize}（默认 1 TB）的文件流。
+ * <p>
+ * 默认支持断点续传：每次传输带有由文件名、大小和修改时间得出的传输 ID，接收方在部分文件旁维护
+ * {@link TransferJournal}。重连后再次发送同一文件时，发送方先询问已校验的偏移量，再从该偏移量继续发送。
+ * <p>
+ * {@code -Dsecure.file.delta=true} 时按 {@link ChunkIndex} 的规则按内容切分文件，只发送接收方已有文件中没有的块，
+ * 适合反复发送大部分内容不变的文件。接收方在临时文件中用本地块和收到的块重建，逐块校验 SHA-256 后替换旧文件。
+ * 本地块由后台线程复制，接收线程只放置收到的块；复制在收到的块之后才完成时，文件名经 {@link #pollFinished(long)}
+ * 交给接收循环。增量发送不续传。
+ * <p>
+ * 协议（帧类型见 {@link FrameType}，字段以 DataOutput 二进制格式编码）：
+ * <ul>
+ * <li>续传询问：RESUME_QUERY(流 ID)：传输 ID、文件名、大小、帧大小；接收方回复 RESUME_AT(流 ID)：偏移量。</li>
+ * <li>传输：FILE_OPEN(流 ID)：传输 ID（不续传时为空）、文件名、大小、帧大小、起始偏移量，
+ * 随后是该流的 FILE_DATA 帧，最后是 FILE_DIGEST(流 ID)：整个文件的 {@link TreeHash} 根；
+ * 发送方出错时发送 FILE_ABORT(流 ID)。</li>
+ * <li>增量：DELTA_QUERY(流 ID)：文件名；接收方回复 DELTA_INDEX(流 ID)：已有文件的块哈希。
+ * 随后 DELTA_OPEN(流 ID)：文件名、大小、帧大小、块清单（长度、哈希、接收方是否已有），
+ * 之后的 FILE_DATA 帧依次是接收方没有的块的内容，最后一块写完即结束。</li>
+ * </ul>
+ * 续传询问和增量询问的回复由发送方的接收线程交给 {@link #handleFrame(FrameType)}，因此发送方必须同时在运行接收循环。
+ */
+public class FileTransfer implements Closeable {
+    public static final int MIN_FRAME_SIZE = 64 * 1024;
+    public static final int MAX_FRAME_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_FRAME_SIZE = 1024 * 1024;
+    public static final String FRAME_SIZE_PROPERTY = "secure.file.frameSize";
+    public static final String PIPELINE_PROPERTY = "secure.file.pipeline";
+    public static final String RESUMABLE_PROPERTY = "secure.file.resumable";
+    public static final String DELTA_PROPERTY = "secure.file.delta";
+    /** 接收方接受的最大文件大小（字节），对方声明的大小超过它时拒绝该文件流 */
+    public static final String MAX_SIZE_PROPERTY = "secure.file.maxSize";
+    public static final long DEFAULT_MAX_SIZE = 1L << 40;
+    /** 接收方默认每写入这么多字节刷一次盘并更新检查点，见 {@link FileSink} */
+    public static final long CHECKPOINT_INTERVAL = 8L * 1024 * 1024;
+    /** 等待续传偏移量回复的最长时间（毫秒），超时则从头发送 */
+    static final long RESUME_TIMEOUT = 10000;
+    /** 等待块索引的最长时间（毫秒），接收方可能需要先扫描一遍旧文件；超时则发送全部块 */
+    static final long DELTA_TIMEOUT = 60000;
+    /** 块清单和块索引都放在一个控制帧中，留出帧头、认证标签和文件名的余量 */
+    static final int MAX_DELTA_PAYLOAD = SecureChannel.MAX_FRAME_LENGTH - 64 * 1024;
+
+    private static final String[] SEND_STAGES = { "读盘", "加密", "网络" };
+    private static final String[] RECEIVE_STAGES = { "网络", "解密", "写盘" };
+
+    /**
+     * 发送进度的回调，在发送线程（流水线方式下是网络阶段的线程）上每写出一帧调用一次，应尽快返回。
+     */
+    public interface Progress {
+        /**
+         * @param sent  已写出的明文字节数，续传时包含已跳过的部分。
+         * @param total 文件大小。
+         */
+        void update(long sent, long total);
+    }
+
+    /** 不关心进度时使用 */
+    static final Progress NO_PROGRESS = (sent, total) -> {
+    };
+
+    /**
+     * FILE_OPEN 帧的内容。
+     */
+    static final class FileHeader {
+        final String transferId;
+        final String fileName;
+        final long size;
+        final int frameSize;
+        final long offset;
+
+        FileHeader(String transferId, String fileName, long size, int frameSize, long offset) {
+            this.transferId = transferId;
+            this.fileName = fileName;
+            this.size = size;
+            this.frameSize = frameSize;
+            this.offset = offset;
+        }
+
+        byte[] encode() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(transferId);
+            out.writeUTF(fileName);
+            out.writeLong(size);
+            out.writeInt(frameSize);
+            out.writeLong(offset);
+            return bytes.toByteArray();
+        }
+
+        /**
+         * 解码并校验字段范围。
+         */
+        static FileHeader decode(byte[] data, int len) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, len));
+            FileHeader header = new FileHeader(in.readUTF(), in.readUTF(), in.readLong(), in.readInt(), in.readLong());
+            if (header.frameSize < MIN_FRAME_SIZE || header.frameSize > MAX_FRAME_SIZE) {
+                throw new IOException("非法帧大小: " + header.frameSize);
+            }
+            if (header.size < 0 || header.offset < 0 || header.offset > header.size) {
+                throw new IOException("非法文件大小或偏移量: " + header.size + "/" + header.offset);
+            }
+            checkSize(header.size);
+            return header;
+        }
+    }
+
+    /**
+     * DELTA_OPEN 帧的内容：新文件按顺序排列的块清单，每块标明接收方是否已有。
+     */
+    static final class DeltaHeader {
+        final String fileName;
+        final long size;
+        final int frameSize;
+        final int[] lengths;
+        final byte[][] hashes;
+        final boolean[] local;
+
+        DeltaHeader(String fileName, long size, int frameSize, int[] lengths, byte[][] hashes, boolean[] local) {
+            this.fileName = fileName;
+            this.size = size;
+            this.frameSize = frameSize;
+            this.lengths = lengths;
+            this.hashes = hashes;
+            this.local = local;
+        }
+
+        /**
+         * 由发送方的切分结果和接收方公布的块哈希得出清单。
+         */
+        static DeltaHeader of(String fileName, int frameSize, List<ChunkIndex.Chunk> chunks, Set<ByteBuffer> remote) {
+            int[] lengths = new int[chunks.size()];
+            byte[][] hashes = new byte[chunks.size()][];
+            boolean[] local = new boolean[chunks.size()];
+            long size = 0;
+            for (int i = 0; i < lengths.length; i++) {
+                ChunkIndex.Chunk chunk = chunks.get(i);
+                lengths[i] = chunk.length;
+                hashes[i] = chunk.hash;
+                local[i] = remote.contains(chunk.key());
+                size += chunk.length;
+            }
+            return new DeltaHeader(fileName, size, frameSize, lengths, hashes, local);
+        }
+
+        /** 需要经 FILE_DATA 发送的字节数 */
+        long missingBytes() {
+            long missing = 0;
+            for (int i = 0; i < lengths.length; i++) {
+                if (!local[i])
+                    missing += lengths[i];
+            }
+            return missing;
+        }
+
+        int localCount() {
+            int count = 0;
+            for (boolean l : local) {
+                if (l)
+                    count++;
+            }
+            return count;
+        }
+
+        /** 新文件的块索引 */
+        List<ChunkIndex.Chunk> chunks() {
+            List<ChunkIndex.Chunk> chunks = new ArrayList<>(lengths.length);
+            long offset = 0;
+            for (int i = 0; i < lengths.length; i++) {
+                chunks.add(new ChunkIndex.Chunk(offset, lengths[i], hashes[i]));
+                offset += lengths[i];
+            }
+            return chunks;
+        }
+
+        byte[] encode() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(fileName);
+            out.writeLong(size);
+            out.writeInt(frameSize);
+            out.writeInt(lengths.length);
+            for (int i = 0; i < lengths.length; i++) {
+                out.writeInt(lengths[i]);
+                out.write(hashes[i]);
+                out.writeBoolean(local[i]);
+            }
+            return bytes.toByteArray();
+        }
+
+        /**
+         * 解码并校验字段范围，各块长度之和必须等于文件大小。
+         */
+        static DeltaHeader decode(byte[] data, int len) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, len));
+            String fileName = in.readUTF();
+            long size = in.readLong();
+            int frameSize = in.readInt();
+            int count = in.readInt();
+            if (frameSize < MIN_FRAME_SIZE || frameSize > MAX_FRAME_SIZE) {
+                throw new IOException("非法帧大小: " + frameSize);
+            }
+            if (count < 0 || count > len / (5 + TreeHash.HASH_LENGTH)) {
+                throw new IOException("非法块数: " + count);
+            }
+            checkSize(size);
+            int[] lengths = new int[count];
+            byte[][] hashes = new byte[count][TreeHash.HASH_LENGTH];
+            boolean[] local = new boolean[count];
+            long total = 0;
+            for (int i = 0; i < count; i++) {
+                lengths[i] = in.readInt();
+                if (lengths[i] <= 0 || lengths[i] > ChunkIndex.MAX_CHUNK) {
+                    throw new IOException("非法块长度: " + lengths[i]);
+                }
+                in.readFully(hashes[i]);
+                local[i] = in.readBoolean();
+                total += lengths[i];
+            }
+            if (total != size) {
+                throw new IOException("块清单与文件大小不符: " + total + "/" + size);
+            }
+            return new DeltaHeader(fileName, size, frameSize, lengths, hashes, local);
+        }
+    }
+
+    /**
+     * 拒绝超过 {@code -Dsecure.file.maxSize}（默认 1 TB）的文件，在分配任何接收状态之前调用。
+     */
+    static void checkSize(long size) throws IOException {
+        long max = Long.getLong(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE);
+        if (size > max) {
+            throw new IOException("文件超过允许的大小: " + size + " > " + max);
+        }
+    }
+
+    /** 接收线程交给流水线的一帧密文 */
+    private static final class Sealed {
+        final byte[] data;
+        final int length;
+        final boolean compressed;
+        /** 该帧的原始明文长度 */
+        final int plainLength;
+
+        Sealed(byte[] data, int length, boolean compressed, int plainLength) {
+            this.data = data;
+            this.length = length;
+            this.compressed = compressed;
+            this.plainLength = plainLength;
+        }
+    }
+
+    /** 结束标记，表示该流的所有密文都已交出 */
+    private static final Sealed END = new Sealed(null, 0, false, 0);
+
+    /**
+     * 发送方一个流的加密：协商了压缩时先尝试压缩，再用流密钥加密。只在一个线程上使用。
+     */
+    private static final class Sealer {
+        private final CipherSession cipher;
+        private final byte[] aad;
+        private final byte[] compressedAad;
+        private final FrameCompressor compressor;
+        private final Metrics metrics;
+        /** 最近一次 seal 的帧是否压缩过 */
+        boolean compressed;
+
+        Sealer(CipherSession cipher, int streamId, FrameCompressor compressor, Metrics metrics) {
+            this.cipher = cipher;
+            this.metrics = metrics;
+            this.aad = SecureChannel.header(FrameType.FILE_DATA, streamId, false);
+            this.compressedAad = SecureChannel.header(FrameType.FILE_DATA, streamId, true);
+            this.compressor = compressor;
+        }
+
+        int seal(byte[] plain, int off, int len, byte[] sealed) throws Exception {
+            long start = System.nanoTime();
+            int c = compressor == null ? -1 : compressor.compress(plain, off, len);
+            compressed = c >= 0;
+            int n = compressed
+                    ? cipher.encrypt(compressedAad, compressor.buffer(), 0, c, sealed, 0)
+                    : cipher.encrypt(aad, plain, off, len, sealed, 0);
+            metrics.encrypted(System.nanoTime() - start);
+            return n;
+        }
+
+        int seal(ByteBuffer plain, byte[] sealed) throws Exception {
+            long start = System.nanoTime();
+            int c = compressor == null ? -1 : compressor.compress(plain);
+            compressed = c >= 0;
+            int n = compressed
+                    ? cipher.encrypt(compressedAad, compressor.buffer(), 0, c, sealed, 0)
+                    : cipher.encrypt(aad, plain, ByteBuffer.wrap(sealed));
+            metrics.encrypted(System.nanoTime() - start);
+            return n;
+        }
+    }
+
+    /**
+     * 接收方一个流的解密：用流密钥解密，压缩帧再解压。同一时刻只在一个线程上使用。
+     */
+    private final class Opener {
+        private final CipherSession cipher;
+        private final byte[] aad;
+        private final byte[] compressedAad;
+        private final int frameSize;
+        private final String fileName;
+        private FrameCompressor decompressor;
+        private byte[] inflateBuffer;
+        private byte[] inflatedBuffer;
+
+        Opener(int streamId, int frameSize, String fileName) throws Exception {
+            this.cipher = new CipherSession(streamKey(channel.getCipherSession().getKey(), streamId), false);
+            this.aad = SecureChannel.header(FrameType.FILE_DATA, streamId, false);
+            this.compressedAad = SecureChannel.header(FrameType.FILE_DATA, streamId, true);
+            this.frameSize = frameSize;
+            this.fileName = fileName;
+        }
+
+        /**
+         * 解密（必要时再解压）一帧到 plain，plain 的剩余空间恰好为 plainLength。压缩帧解压出的长度必须等于 plainLength。
+         */
+        void open(byte[] sealed, int len, boolean compressed, int plainLength, ByteBuffer plain) throws Exception {
+            long start = System.nanoTime();
+            if (compressed) {
+                inflate(sealed, len, plainLength, plain);
+            } else {
+                cipher.decrypt(aad, ByteBuffer.wrap(sealed, 0, len), plain);
+            }
+            channel.getMetrics().decrypted(System.nanoTime() - start);
+        }
+
+        private void inflate(byte[] sealed, int len, int plainLength, ByteBuffer plain) throws Exception {
+            if (decompressor == null) {
+                decompressor = new FrameCompressor(Deflater.NO_COMPRESSION);
+                inflateBuffer = new byte[CipherSession.sealedLength(frameSize)];
+                inflatedBuffer = new byte[frameSize];
+            }
+            int n = cipher.decrypt(compressedAad, sealed, 0, len, inflateBuffer, 0);
+            if (FrameCompressor.decompressedLength(inflateBuffer, 0, n) != plainLength) {
+                throw new IOException("压缩帧长度与文件不符: " + fileName);
+            }
+            plain.put(inflatedBuffer, 0, decompressor.decompress(inflateBuffer, 0, n, inflatedBuffer, 0));
+        }
+    }
+
+    private final SecureChannel channel;
+    private final FrameScheduler scheduler;
+    private final ThreadMode threadMode = ThreadMode.fromSystemProperty();
+    private final Map<Integer, CompletableFuture<Long>> pendingResumes = new ConcurrentHashMap<>();
+    private final Map<Integer, CompletableFuture<Set<ByteBuffer>>> pendingIndexes = new ConcurrentHashMap<>();
+    private final Map<Integer, Incoming> incoming = new ConcurrentHashMap<>();
+    private final Map<Integer, CachedIncoming> cached = new ConcurrentHashMap<>();
+    private final Map<Integer, DeltaIncoming> deltas = new ConcurrentHashMap<>();
+    /** 由后台复制线程完成的增量文件名，等待接收循环报告 */
+    private final BlockingQueue<String> finished = new LinkedBlockingQueue<>();
+    /** 正在后台复制本地块的增量文件数 */
+    private final AtomicInteger copying = new AtomicInteger();
+    private int frameSize;
+    private volatile boolean pipelined = !"false".equalsIgnoreCase(System.getProperty(PIPELINE_PROPERTY));
+    private volatile boolean resumable = !"false".equalsIgnoreCase(System.getProperty(RESUMABLE_PROPERTY));
+    private volatile boolean delta = Boolean.getBoolean(DELTA_PROPERTY);
+    private volatile TransferStats lastStats;
+
+    public FileTransfer(SecureChannel channel, FrameScheduler scheduler) {
+        this(channel, scheduler, Integer.getInteger(FRAME_SIZE_PROPERTY, DEFAULT_FRAME_SIZE));
+    }
+
+    public FileTransfer(SecureChannel channel, FrameScheduler scheduler, int frameSize) {
+        this.channel = channel;
+        this.scheduler = scheduler;
+        setFrameSize(frameSize);
+    }
+
+    public synchronized int getFrameSize() {
+        return frameSize;
+    }
+
+    /**
+     * 设置发送帧大小，对之后开始的传输生效。
+     *
+     * @param frameSize 每帧明文字节数，取值范围 [{@value #MIN_FRAME_SIZE}, {@value #MAX_FRAME_SIZE}]。
+     */
+    public synchronized void setFrameSize(int frameSize) {
+        if (frameSize < MIN_FRAME_SIZE || frameSize > MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("帧大小必须在 " + MIN_FRAME_SIZE + " 到 " + MAX_FRAME_SIZE + " 字节之间");
+        }
+        this.frameSize = frameSize;
+    }
+
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * 选择流水线或单线程顺序方式，对之后开始的传输生效。
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    /**
+     * 选择是否使用断点续传。关闭后不询问续传偏移量，接收方也不维护检查点。
+     */
+    public void setResumable(boolean resumable) {
+        this.resumable = resumable;
+    }
+
+    public boolean isDelta() {
+        return delta;
+    }
+
+    /**
+     * 选择是否增量发送，对之后开始的传输生效。
+     */
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+
+    /**
+     * 最近一次以流水线方式完成的传输的统计信息，尚无时返回 null。
+     */
+    public TransferStats getLastStats() {
+        return lastStats;
+    }
+
+    /**
+     * 是否有增量文件正在后台复制本地块，完成后会出现在 {@link #pollFinished(long)} 中。
+     */
+    public boolean isCopying() {
+        return copying.get() > 0;
+    }
+
+    /**
+     * 取出一个由后台复制线程完成的增量文件名（写入 received_&lt;文件名&gt;），最多等待 timeout 毫秒，没有时返回 null。
+     */
+    public String pollFinished(long timeout) throws InterruptedException {
+        return finished.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 由会话密钥和流 ID 派生流密钥。流 ID 在一个会话内不会重复，每个流的 IV 计数器因此可以各自从零开始。
+     */
+    static SecretKey streamKey(SecretKey sessionKey, int streamId) throws Exception {
+        return CryptoUtil.deriveKey(sessionKey, "stream|" + streamId);
+    }
+
+    /**
+     * 发送一个文件，全部内容写出后返回。可以在多个线程上同时发送多个文件，它们与聊天消息在连接上交错传输。
+     *
+     * @param file 要发送的文件。
+     * @throws Exception 如果读取文件或写出数据时发生错误。
+     */
+    public void send(File file) throws Exception {
+        send(file, NO_PROGRESS);
+    }
+
+    /**
+     * 发送一个文件并报告进度。中断发送线程可以取消发送：对方收到 FILE_ABORT，本方法抛出 InterruptedException
+     * （或读文件时的 ClosedByInterruptException）。
+     *
+     * @param file     要发送的文件。
+     * @param progress 进度回调。
+     * @throws Exception 如果读取文件或写出数据时发生错误，或发送被中断。
+     */
+    public void send(File file, Progress progress) throws Exception {
+        if (delta) {
+            sendDelta(file, progress);
+        } else {
+            sendFull(file, progress);
+        }
+    }
+
+    private void sendFull(File file, Progress progress) throws Exception {
+        int frameSize = getFrameSize();
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = source.size();
+            int streamId = scheduler.nextStreamId();
+            long offset = 0;
+            String transferId = "";
+            if (resumable) {
+                transferId = transferId(file, size);
+                offset = queryResumeOffset(streamId, transferId, file.getName(), size, frameSize);
+                if (offset > 0) {
+                    System.out.println("从偏移量 " + offset + " 续传文件: " + file.getName());
+                }
+            }
+
+            scheduler.send(FrameType.FILE_OPEN, streamId,
+                    new FileHeader(transferId, file.getName(), size, frameSize, offset).encode());
+            FrameScheduler.Stream stream = scheduler.openStream(streamId);
+            CipherSession cipher = new CipherSession(streamKey(channel.getCipherSession().getKey(), streamId), true);
+            Sealer sealer = new Sealer(cipher, streamId,
+                    channel.isCompressing() ? new FrameCompressor(channel.getCompressionLevel()) : null,
+                    channel.getMetrics());
+            TreeHash tree = new TreeHash(size, frameSize);
+            long start = System.nanoTime();
+            try {
+                tree.hashFile(file, offset);
+                if (pipelined) {
+                    lastStats = sendPipelined(source, offset, size, frameSize, stream, sealer, tree, progress);
+                } else {
+                    sendSequential(source, offset, size, frameSize, stream, sealer, tree, progress);
+                }
+                // 所有 FILE_DATA 帧都已写出，摘要不会越过它们
+                scheduler.send(FrameType.FILE_DIGEST, streamId, tree.root());
+                channel.getMetrics().fileSent(size - offset, System.nanoTime() - start);
+            } catch (Exception e) {
+                try {
+                    scheduler.send(FrameType.FILE_ABORT, streamId, new byte[0]);
+                } catch (IOException ignored) {
+                    // 连接已经不可用
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 增量发送：切分文件后询问接收方已有的块，只加密发送其余的块。块内容依次填满每一帧，除最后一帧外每帧的明文
+     * 都恰好是一个帧大小，与完整发送相同。块清单放不进一个控制帧时退回完整发送。
+     */
+    private void sendDelta(File file, Progress progress) throws Exception {
+        int frameSize = getFrameSize();
+        long start = System.nanoTime();
+        List<ChunkIndex.Chunk> chunks = ChunkIndex.chunk(file);
+        int streamId = scheduler.nextStreamId();
+        DeltaHeader header = DeltaHeader.of(file.getName(), frameSize, chunks,
+                queryChunkIndex(streamId, file.getName()));
+        byte[] encoded = header.encode();
+        if (encoded.length > MAX_DELTA_PAYLOAD) {
+            System.out.println("块清单过大，改为完整发送: " + file.getName());
+            sendFull(file, progress);
+            return;
+        }
+
+        scheduler.send(FrameType.DELTA_OPEN, streamId, encoded);
+        FrameScheduler.Stream stream = scheduler.openStream(streamId);
+        CipherSession cipher = new CipherSession(streamKey(channel.getCipherSession().getKey(), streamId), true);
+        Sealer sealer = new Sealer(cipher, streamId,
+                channel.isCompressing() ? new FrameCompressor(channel.getCompressionLevel()) : null,
+                channel.getMetrics());
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            byte[] plain = new byte[frameSize];
+            byte[] sealed = new byte[CipherSession.sealedLength(frameSize)];
+            int filled = 0;
+            long covered = 0;
+            progress.update(0, header.size);
+            for (int i = 0; i < chunks.size(); i++) {
+                ChunkIndex.Chunk chunk = chunks.get(i);
+                long position = chunk.offset;
+                int left = header.local[i] ? 0 : chunk.length;
+                while (left > 0) {
+                    int n = Math.min(left, frameSize - filled);
+                    readFully(source, ByteBuffer.wrap(plain, filled, n), position);
+                    filled += n;
+                    position += n;
+                    left -= n;
+                    if (filled == frameSize) {
+                        stream.write(sealed, sealer.seal(plain, 0, filled, sealed), sealer.compressed);
+                        filled = 0;
+                    }
+                }
+                covered += chunk.length;
+                progress.update(covered, header.size);
+            }
+            if (filled > 0) {
+                stream.write(sealed, sealer.seal(plain, 0, filled, sealed), sealer.compressed);
+            }
+        } catch (Exception e) {
+            try {
+                scheduler.send(FrameType.FILE_ABORT, streamId, new byte[0]);
+            } catch (IOException ignored) {
+                // 连接已经不可用
+            }
+            throw e;
+        }
+        channel.getMetrics().fileSent(header.missingBytes(), System.nanoTime() - start);
+    }
+
+    /**
+     * 询问接收方已有的块。对方未在 {@value #DELTA_TIMEOUT} 毫秒内回复时视为没有任何块。
+     */
+    private Set<ByteBuffer> queryChunkIndex(int streamId, String fileName) throws Exception {
+        CompletableFuture<Set<ByteBuffer>> reply = new CompletableFuture<>();
+        pendingIndexes.put(streamId, reply);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeUTF(fileName);
+            scheduler.send(FrameType.DELTA_QUERY, streamId, bytes.toByteArray());
+            return reply.get(DELTA_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            System.out.println("对方未回复块索引，发送全部内容");
+            return Collections.emptySet();
+        } finally {
+            pendingIndexes.remove(streamId);
+        }
+    }
+
+    /**
+     * 在后台线程上回复增量询问：读取（必要时建立）已有文件的块索引。一帧放不下时只公布前面的块，其余的块会被重新发送。
+     */
+    private void replyChunkIndex(int streamId, String fileName) {
+        List<ChunkIndex.Chunk> chunks;
+        try {
+            chunks = ChunkIndex.load(targetFile(fileName));
+        } catch (Exception e) {
+            System.out.println("无法建立块索引: " + e.getMessage());
+            chunks = Collections.emptyList();
+        }
+        int count = Math.min(chunks.size(), (MAX_DELTA_PAYLOAD - 4) / TreeHash.HASH_LENGTH);
+        ByteBuffer reply = ByteBuffer.allocate(4 + count * TreeHash.HASH_LENGTH).putInt(count);
+        for (int i = 0; i < count; i++) {
+            reply.put(chunks.get(i).hash);
+        }
+        try {
+            scheduler.send(FrameType.DELTA_INDEX, streamId, reply.array());
+        } catch (IOException e) {
+            // 连接已关闭
+        }
+    }
+
+    /**
+     * 询问接收方同一传输已校验的偏移量。对方未在 {@value #RESUME_TIMEOUT} 毫秒内回复时从头发送。
+     */
+    private long queryResumeOffset(int streamId, String transferId, String fileName, long size, int frameSize)
+            throws Exception {
+        CompletableFuture<Long> reply = new CompletableFuture<>();
+        pendingResumes.put(streamId, reply);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream query = new DataOutputStream(bytes);
+            query.writeUTF(transferId);
+            query.writeUTF(fileName);
+            query.writeLong(size);
+            query.writeInt(frameSize);
+            scheduler.send(FrameType.RESUME_QUERY, streamId, bytes.toByteArray());
+
+            long offset = reply.get(RESUME_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (offset < 0 || offset > size || offset % frameSize != 0) {
+                throw new IOException("非法续传偏移量: " + offset);
+            }
+            return offset;
+        } catch (TimeoutException e) {
+            System.out.println("对方未回复续传查询，从头发送");
+            return 0;
+        } finally {
+            pendingResumes.remove(streamId);
+        }
+    }
+
+    private void sendSequential(FileChannel source, long offset, long size, int frameSize,
+            FrameScheduler.Stream stream, Sealer sealer, TreeHash tree, Progress progress) throws Exception {
+        progress.update(offset, size);
+        ByteBuffer readBuffer = ByteBuffer.allocateDirect(frameSize);
+        byte[] sealed = new byte[CipherSession.sealedLength(frameSize)];
+        long position = offset;
+        while (position < size) {
+            readBuffer.clear();
+            if (size - position < readBuffer.capacity()) {
+                readBuffer.limit((int) (size - position));
+            }
+            readFully(source, readBuffer, position);
+            readBuffer.flip();
+            ForkJoinTask<?> digest = tree.leaf(position, readBuffer);
+            position += readBuffer.remaining();
+            int n = sealer.seal(readBuffer, sealed);
+            stream.write(sealed, n, sealer.compressed);
+            digest.join();
+            progress.update(position, size);
+        }
+    }
+
+    /**
+     * 加密阶段使用本流独立的 CipherSession（以及压缩器），网络阶段把密文交给调度器，与其他流交错写出。
+     * 读盘阶段提交的叶子哈希与加密并行，网络阶段在块回到空闲池前等待它完成。
+     */
+    private TransferStats sendPipelined(FileChannel source, long offset, long size, int frameSize,
+            FrameScheduler.Stream stream, Sealer sealer, TreeHash tree, Progress progress) throws Exception {
+        progress.update(offset, size);
+        long[] position = { offset };
+        long[] sent = { offset };
+        return new TransferPipeline(frameSize).run(SEND_STAGES,
+                block -> {
+                    if (position[0] >= size)
+                        return false;
+                    int len = (int) Math.min(frameSize, size - position[0]);
+                    readFully(source, ByteBuffer.wrap(block.plain, 0, len), position[0]);
+                    block.digest = tree.leaf(position[0], ByteBuffer.wrap(block.plain, 0, len));
+                    position[0] += len;
+                    block.plainLength = len;
+                    block.sealedLength = 0;
+                    return true;
+                },
+                block -> {
+                    block.sealedLength = sealer.seal(block.plain, 0, block.plainLength, block.sealed);
+                    block.compressed = sealer.compressed;
+                    return true;
+                },
+                block -> {
+                    stream.write(block.sealed, block.sealedLength, block.compressed);
+                    block.digest.join();
+                    sent[0] += block.plainLength;
+                    progress.update(sent[0], size);
+                    return true;
+                });
+    }
+
+    private static void readFully(FileChannel source, ByteBuffer dst, long position) throws Exception {
+        int start = dst.position();
+        while (dst.hasRemaining()) {
+            if (source.read(dst, position + dst.position() - start) < 0) {
+                throw new EOFException("文件在发送过程中被截断");
+            }
+        }
+    }
+
+    /**
+     * 处理接收线程读到的文件相关帧，调用前帧头已由 {@link SecureChannel#readHeader()} 读出。只应由接收线程调用。
+     *
+     * @param type 帧类型。
+     * @return 如果该帧使一个文件接收完整，返回文件名（写入 received_&lt;文件名&gt;）；否则返回 null。
+     * @throws Exception 如果解密失败、协议错误或写文件时发生错误。
+     */
+    public String handleFrame(FrameType type) throws Exception {
+        int streamId = channel.streamId();
+        switch (type) {
+            case RESUME_QUERY: {
+                int len = channel.readPayload();
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(channel.frameBuffer(), 0, len));
+                String transferId = in.readUTF();
+                File target = targetFile(in.readUTF());
+                long size = in.readLong();
+                int frameSize = in.readInt();
+                long offset = new TransferJournal(target).verifiedOffset(transferId, size, frameSize, target);
+                scheduler.send(FrameType.RESUME_AT, streamId, ByteBuffer.allocate(8).putLong(offset).array());
+                return null;
+            }
+            case RESUME_AT: {
+                int len = channel.readPayload();
+                if (len != 8) {
+                    throw new IOException("非法续传回复");
+                }
+                long offset = ByteBuffer.wrap(channel.frameBuffer(), 0, len).getLong();
+                CompletableFuture<Long> reply = pendingResumes.get(streamId);
+                if (reply != null) {
+                    reply.complete(offset);
+                }
+                return null;
+            }
+            case FILE_OPEN: {
+                int len = channel.readPayload();
+                if (incoming.containsKey(streamId)) {
+                    throw new IOException("重复的文件流: " + streamId);
+                }
+                incoming.put(streamId, new Incoming(streamId, FileHeader.decode(channel.frameBuffer(), len)));
+                return null;
+            }
+            case FILE_DATA: {
+                Incoming file = incoming.get(streamId);
+                if (file == null) {
+                    return acceptDelta(streamId);
+                }
+                try {
+                    file.accept();
+                    return null;
+                } catch (Exception e) {
+                    incoming.remove(streamId);
+                    file.abort();
+                    throw e;
+                }
+            }
+            case DELTA_QUERY: {
+                int len = channel.readPayload();
+                String fileName = new DataInputStream(new ByteArrayInputStream(channel.frameBuffer(), 0, len))
+                        .readUTF();
+                // 没有索引时要扫描整个旧文件，放到后台线程上，接收线程继续处理其他帧
+                Thread indexer = threadMode.newThread("chunk-index-" + streamId,
+                        () -> replyChunkIndex(streamId, fileName));
+                indexer.setDaemon(true);
+                indexer.start();
+                return null;
+            }
+            case DELTA_INDEX: {
+                int len = channel.readPayload();
+                ByteBuffer data = ByteBuffer.wrap(channel.frameBuffer(), 0, len);
+                int count = data.getInt();
+                if (count < 0 || count != data.remaining() / TreeHash.HASH_LENGTH
+                        || data.remaining() % TreeHash.HASH_LENGTH != 0) {
+                    throw new IOException("非法块索引");
+                }
+                Set<ByteBuffer> hashes = new HashSet<>();
+                for (int i = 0; i < count; i++) {
+                    byte[] hash = new byte[TreeHash.HASH_LENGTH];
+                    data.get(hash);
+                    hashes.add(ByteBuffer.wrap(hash));
+                }
+                CompletableFuture<Set<ByteBuffer>> reply = pendingIndexes.get(streamId);
+                if (reply != null) {
+                    reply.complete(hashes);
+                }
+                return null;
+            }
+            case DELTA_OPEN: {
+                int len = channel.readPayload();
+                if (incoming.containsKey(streamId) || deltas.containsKey(streamId)) {
+                    throw new IOException("重复的文件流: " + streamId);
+                }
+                DeltaIncoming file = new DeltaIncoming(streamId, DeltaHeader.decode(channel.frameBuffer(), len));
+                deltas.put(streamId, file);
+                try {
+                    file.start();
+                    return file.isComplete() ? completeDelta(streamId, file) : null;
+                } catch (Exception e) {
+                    deltas.remove(streamId);
+                    file.abort();
+                    throw e;
+                }
+            }
+            case FILE_DIGEST: {
+                int len = channel.readPayload();
+                Incoming file = incoming.remove(streamId);
+                if (file == null) {
+                    throw new IOException("未知的文件流: " + streamId);
+                }
+                if (!file.isComplete() || len != TreeHash.HASH_LENGTH) {
+                    file.abort();
+                    throw new IOException("文件未收完或摘要长度不符: " + file.header.fileName);
+                }
+                return file.finish(Arrays.copyOf(channel.frameBuffer(), len));
+            }
+            case FILE_ABORT: {
+                channel.readPayload();
+                Incoming file = incoming.remove(streamId);
+                if (file != null) {
+                    file.abort();
+                    System.out.println("对方中止了文件传输: " + file.header.fileName);
+                }
+                CachedIncoming cachedFile = cached.remove(streamId);
+                if (cachedFile != null) {
+                    cachedFile.abort();
+                    System.out.println("对方中止了文件传输: " + cachedFile.header.name);
+                }
+                DeltaIncoming deltaFile = deltas.remove(streamId);
+                if (deltaFile != null) {
+                    deltaFile.abort();
+                    System.out.println("对方中止了文件传输: " + deltaFile.header.fileName);
+                }
+                return null;
+            }
+            case CACHED_OPEN: {
+                int len = channel.readPayload();
+                if (cached.containsKey(streamId)) {
+                    throw new IOException("重复的文件流: " + streamId);
+                }
+                CachedIncoming file = new CachedIncoming(EncryptedFileCache.Header.decode(channel.frameBuffer(), len));
+                if (file.isComplete()) {
+                    return file.finish();
+                }
+                cached.put(streamId, file);
+                return null;
+            }
+            case CACHED_DATA: {
+                CachedIncoming file = cached.get(streamId);
+                if (file == null) {
+                    // 中止或出错后仍在路上的帧，丢弃即可，不影响连接上的其他流
+                    channel.skipPayload();
+                    return null;
+                }
+                try {
+                    file.accept();
+                    if (!file.isComplete())
+                        return null;
+                    cached.remove(streamId);
+                    return file.finish();
+                } catch (Exception e) {
+                    cached.remove(streamId);
+                    file.abort();
+                    throw e;
+                }
+            }
+            default:
+                throw new IOException("意外的帧类型: " + type);
+        }
+    }
+
+    /**
+     * 放弃所有尚未接收完的文件，已写入的部分和检查点保留，以便重连后续传。
+     */
+    @Override
+    public void close() {
+        for (Incoming file : incoming.values()) {
+            file.abort();
+        }
+        incoming.clear();
+        for (CachedIncoming file : cached.values()) {
+            file.abort();
+        }
+        cached.clear();
+        for (DeltaIncoming file : deltas.values()) {
+            file.abort();
+        }
+        deltas.clear();
+    }
+
+    /**
+     * 处理增量文件流的 FILE_DATA 帧。不属于任何接收中文件的帧被丢弃：FILE_ABORT 之后、
+     * 或本端因出错放弃该流之后，对方已经写出的 FILE_DATA 仍会陆续到达。
+     */
+    private String acceptDelta(int streamId) throws Exception {
+        DeltaIncoming file = deltas.get(streamId);
+        if (file == null) {
+            channel.skipPayload();
+            return null;
+        }
+        try {
+            file.accept();
+            return file.isComplete() ? completeDelta(streamId, file) : null;
+        } catch (Exception e) {
+            deltas.remove(streamId);
+            file.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * 增量文件缺失的块都已收到：本地块也已复制完时在接收线程上完成并返回文件名，否则交给复制线程完成，返回 null。
+     */
+    private String completeDelta(int streamId, DeltaIncoming file) throws Exception {
+        deltas.remove(streamId);
+        return file.received() ? file.finish() : null;
+    }
+
+    /**
+     * 正在接收的一个增量文件流，重建到按新文件大小预分配的临时文件 received_&lt;文件名&gt;.delta：
+     * 后台线程读取旧文件的块索引，把本地已有的块复制到各自的位置；接收线程只把 FILE_DATA 中的内容依次放到缺失的块上。
+     * 两边都逐块校验 SHA-256，后完成的一方替换旧文件，块清单直接保存为新文件的块索引。
+     */
+    private final class DeltaIncoming {
+        private final DeltaHeader header;
+        private final File target;
+        private final File partial;
+        /** 每块在新文件中的位置 */
+        private final long[] offsets;
+        private final FileChannel out;
+        private final Opener opener;
+        private final long started = System.nanoTime();
+        private final byte[] sealed;
+        private final ByteBuffer plain;
+        private final byte[] chunk = new byte[ChunkIndex.MAX_CHUNK];
+        private final Thread copier;
+        /** 下一个缺失的块 */
+        private int next;
+        /** 当前缺失的块已收到的字节数 */
+        private int filled;
+        /** 尚未收到的缺失块字节数 */
+        private long missing;
+        // 本地块是否已复制完、缺失的块是否已收完，由本对象的锁保护
+        private boolean copied;
+        private boolean received;
+        private volatile Exception copyFailure;
+
+        DeltaIncoming(int streamId, DeltaHeader header) throws Exception {
+            this.header = header;
+            this.target = targetFile(header.fileName);
+            this.partial = new File(target.getPath() + ".delta");
+            this.opener = new Opener(streamId, header.frameSize, header.fileName);
+            this.sealed = new byte[CipherSession.sealedLength(header.frameSize)];
+            this.plain = ByteBuffer.allocate(header.frameSize);
+            this.missing = header.missingBytes();
+            this.offsets = new long[header.lengths.length];
+            for (int i = 1; i < offsets.length; i++) {
+                offsets[i] = offsets[i - 1] + header.lengths[i - 1];
+            }
+            RandomAccessFile file = new RandomAccessFile(partial, "rw");
+            try {
+                file.setLength(0);
+                file.setLength(header.size);
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+            this.out = file.getChannel();
+            this.copier = header.localCount() == 0 ? null
+                    : threadMode.newThread("delta-copy-" + streamId, this::copyLocal);
+            skipLocal();
+        }
+
+        /**
+         * 开始在后台复制本地块，没有本地块时直接视为已复制完。
+         */
+        void start() {
+            if (copier == null) {
+                copied = true;
+                return;
+            }
+            copier.setDaemon(true);
+            copying.incrementAndGet();
+            copier.start();
+        }
+
+        /** 缺失的块是否都已收到 */
+        boolean isComplete() {
+            return next == header.lengths.length;
+        }
+
+        /**
+         * 读取并解密当前 FILE_DATA 帧，帧中的内容依次填入缺失的块。调用前 next 总是指向一个缺失的块。
+         */
+        void accept() throws Exception {
+            if (copyFailure != null) {
+                throw copyFailure;
+            }
+            int len = channel.sealedLength();
+            boolean compressed = channel.isCompressed();
+            int plainLength = len - CipherSession.TAG_LENGTH;
+            if (plainLength > header.frameSize || plainLength > missing) {
+                throw new IOException("文件帧超出缺失的块: " + header.fileName);
+            }
+            if (compressed) {
+                plainLength = (int) Math.min(header.frameSize, missing);
+            }
+            channel.readSealed(sealed);
+            plain.clear().limit(plainLength);
+            opener.open(sealed, len, compressed, plainLength, plain);
+            plain.flip();
+            missing -= plainLength;
+            while (plain.hasRemaining()) {
+                int n = Math.min(header.lengths[next] - filled, plain.remaining());
+                plain.get(chunk, filled, n);
+                filled += n;
+                if (filled == header.lengths[next]) {
+                    if (!MessageDigest.isEqual(header.hashes[next], ChunkIndex.sha256(chunk, filled))) {
+                        throw new IOException("块校验失败: " + header.fileName + " #" + next);
+                    }
+                    write(chunk, filled, offsets[next]);
+                    filled = 0;
+                    next++;
+                    skipLocal();
+                }
+            }
+        }
+
+        /**
+         * 缺失的块都已收到时由接收线程调用。
+         *
+         * @return 本地块也已复制完，应由接收线程完成；否则复制线程完成后会自行完成。
+         * @throws Exception 如果复制失败。
+         */
+        boolean received() throws Exception {
+            synchronized (this) {
+                received = true;
+                if (!copied)
+                    return false;
+            }
+            if (copyFailure != null) {
+                throw copyFailure;
+            }
+            return true;
+        }
+
+        /** 跳过由复制线程负责的本地块 */
+        private void skipLocal() {
+            while (next < header.lengths.length && header.local[next]) {
+                next++;
+            }
+        }
+
+        /**
+         * 复制线程：按块索引从旧文件读出本地已有的块，校验后写到新文件中的位置。缺失的块先收完时由本线程完成文件。
+         */
+        private void copyLocal() {
+            try {
+                Map<ByteBuffer, ChunkIndex.Chunk> oldChunks = new HashMap<>();
+                for (ChunkIndex.Chunk c : ChunkIndex.load(target)) {
+                    oldChunks.putIfAbsent(c.key(), c);
+                }
+                byte[] buffer = new byte[ChunkIndex.MAX_CHUNK];
+                try (FileChannel old = FileChannel.open(target.toPath(), StandardOpenOption.READ)) {
+                    for (int i = 0; i < header.lengths.length; i++) {
+                        if (!header.local[i])
+                            continue;
+                        ChunkIndex.Chunk c = oldChunks.get(ByteBuffer.wrap(header.hashes[i]));
+                        if (c == null) {
+                            throw new IOException("本地没有所需的块: " + header.fileName + " #" + i);
+                        }
+                        ChunkIndex.read(old, c, buffer);
+                        write(buffer, c.length, offsets[i]);
+                    }
+                }
+            } catch (Exception e) {
+                copyFailure = e;
+            }
+            try {
+                boolean last;
+                synchronized (this) {
+                    copied = true;
+                    last = received;
+                }
+                if (!last)
+                    return;
+                if (copyFailure != null) {
+                    abort();
+                    System.out.println("增量接收失败: " + header.fileName + ": " + copyFailure.getMessage());
+                    return;
+                }
+                try {
+                    finished.add(finish());
+                } catch (Exception e) {
+                    abort();
+                    System.out.println("增量接收失败: " + header.fileName + ": " + e.getMessage());
+                }
+            } finally {
+                copying.decrementAndGet();
+            }
+        }
+
+        private void write(byte[] data, int len, long position) throws IOException {
+            ByteBuffer src = ByteBuffer.wrap(data, 0, len);
+            while (src.hasRemaining()) {
+                position += out.write(src, position);
+            }
+        }
+
+        String finish() throws Exception {
+            out.close();
+            Files.move(partial.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            ChunkIndex.save(target, header.chunks());
+            channel.getMetrics().fileReceived(header.missingBytes(), System.nanoTime() - started);
+            return header.fileName;
+        }
+
+        void abort() {
+            if (copier != null && copier != Thread.currentThread()) {
+                copier.interrupt();
+                try {
+                    copier.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            try {
+                out.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+            partial.delete();
+        }
+    }
+
+    /**
+     * 正在接收的一个预加密文件流。每块用内容密钥独立解密，块序号必须连续，不续传，由接收线程直接写盘。
+     */
+    private final class CachedIncoming {
+        private final EncryptedFileCache.Header header;
+        private final FileChannel sink;
+        private final Cipher cipher;
+        private final long started = System.nanoTime();
+        private final byte[] sealed;
+        private final byte[] plain;
+        private int nextChunk;
+        private long received;
+
+        CachedIncoming(EncryptedFileCache.Header header) throws Exception {
+            this.header = header;
+            this.cipher = EncryptedFileCache.newCipher();
+            this.sealed = new byte[CipherSession.sealedLength(header.chunkSize)];
+            this.plain = new byte[sealed.length];
+            this.sink = FileChannel.open(targetFile(header.name).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        boolean isComplete() {
+            return received >= header.size;
+        }
+
+        /**
+         * 读取并解密当前 CACHED_DATA 帧。
+         */
+        void accept() throws Exception {
+            int len = channel.sealedLength();
+            int expected = CipherSession.sealedLength((int) Math.min(header.chunkSize, header.size - received));
+            if (len != expected) {
+                throw new IOException("预加密文件块长度不符: " + header.name + " #" + nextChunk);
+            }
+            channel.readSealed(sealed);
+            long start = System.nanoTime();
+            int n = EncryptedFileCache.openChunk(cipher, header.key, header.contentId, header.size, nextChunk++,
+                    sealed, len, plain);
+            channel.getMetrics().decrypted(System.nanoTime() - start);
+            ByteBuffer chunk = ByteBuffer.wrap(plain, 0, n);
+            while (chunk.hasRemaining()) {
+                received += sink.write(chunk, received);
+            }
+        }
+
+        String finish() throws Exception {
+            sink.close();
+            channel.getMetrics().fileReceived(header.size, System.nanoTime() - started);
+            return header.name;
+        }
+
+        void abort() {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+        }
+    }
+
+    /**
+     * 正在接收的一个文件流。顺序方式下由接收线程直接解密写盘；流水线方式下接收线程只读出密文，
+     * 交给该流自己的流水线解密和写盘，接收线程随即可以处理其他流的帧和聊天消息。
+     */
+    private final class Incoming {
+        private final FileHeader header;
+        private final File target;
+        private final TransferJournal journal;
+        private final FileSink sink;
+        private final TreeHash tree;
+        private final Opener opener;
+        private final long started = System.nanoTime();
+        /** 已从网络读出的明文字节位置 */
+        private long received;
+        // 顺序方式
+        private byte[] sealedBuffer;
+        // 流水线方式：接收线程与流水线第一阶段之间的交接队列，以及回收的密文数组
+        private BlockingQueue<Sealed> inbox;
+        private ConcurrentLinkedQueue<byte[]> spare;
+        private Thread runner;
+        private volatile TransferStats stats;
+        private volatile Exception failure;
+
+        Incoming(int streamId, FileHeader header) throws Exception {
+            this.header = header;
+            this.received = header.offset;
+            this.target = targetFile(header.fileName);
+            if (!header.transferId.isEmpty()) {
+                journal = new TransferJournal(target);
+                if (header.offset > 0 && header.offset != journal.verifiedOffset(header.transferId, header.size,
+                        header.frameSize, target)) {
+                    throw new IOException("续传偏移量与检查点不一致: " + header.offset);
+                }
+                journal.begin(header.transferId, header.size, header.frameSize, header.offset);
+            } else if (header.offset != 0) {
+                throw new IOException("不续传的文件流必须从头开始");
+            } else {
+                journal = null;
+            }
+            sink = FileSink.open(target, header.size, header.offset, header.frameSize, journal);
+            tree = new TreeHash(header.size, header.frameSize);
+            tree.hashFile(target, header.offset);
+            opener = new Opener(streamId, header.frameSize, header.fileName);
+            if (pipelined && !isComplete()) {
+                startPipeline(streamId);
+            }
+        }
+
+        boolean isComplete() {
+            return received >= header.size;
+        }
+
+        /**
+         * 读取当前 FILE_DATA 帧的密文。
+         */
+        void accept() throws Exception {
+            int len = channel.sealedLength();
+            boolean compressed = channel.isCompressed();
+            int plainLength = len - CipherSession.TAG_LENGTH;
+            if (plainLength > header.frameSize || received + plainLength > header.size) {
+                throw new IOException("文件帧超出声明的大小: " + header.fileName);
+            }
+            if (compressed) {
+                plainLength = (int) Math.min(header.frameSize, header.size - received);
+            }
+            if (inbox == null) {
+                if (sealedBuffer == null) {
+                    sealedBuffer = new byte[CipherSession.sealedLength(header.frameSize)];
+                }
+                channel.readSealed(sealedBuffer);
+                ByteBuffer plain = sink.buffer(received, plainLength);
+                opener.open(sealedBuffer, len, compressed, plainLength, plain);
+                ForkJoinTask<?> digest = tree.leaf(received, plain.duplicate().flip());
+                sink.write(plain, received);
+                // 写出后缓冲区回到池中，但只有本线程处理下一帧时才会再借出，在此之前等待哈希完成即可
+                digest.join();
+                received += plainLength;
+                sink.advance(received);
+            } else {
+                byte[] sealed = spare.poll();
+                if (sealed == null || sealed.length < len)
+                    sealed = new byte[CipherSession.sealedLength(header.frameSize)];
+                channel.readSealed(sealed);
+                handOff(new Sealed(sealed, len, compressed, plainLength));
+                received += plainLength;
+            }
+        }
+
+        /**
+         * 所有内容都已收到，等待流水线写完后核对树哈希的根，一致时按持久化策略刷盘并删除检查点，
+         * 不一致时删除文件和检查点，下次从头接收。
+         *
+         * @param expected 发送方的根。
+         * @return 文件名。
+         */
+        String finish(byte[] expected) throws Exception {
+            byte[] root;
+            try {
+                if (runner != null) {
+                    handOff(END);
+                    runner.join();
+                    if (failure != null)
+                        throw failure;
+                    lastStats = stats;
+                }
+                root = tree.root();
+            } catch (Exception e) {
+                sink.close();
+                throw e;
+            }
+            if (!MessageDigest.isEqual(expected, root)) {
+                sink.close();
+                if (journal != null) {
+                    journal.complete();
+                }
+                target.delete();
+                throw new IOException("文件校验失败: " + header.fileName);
+            }
+            sink.finish();
+            channel.getMetrics().fileReceived(header.size - header.offset, System.nanoTime() - started);
+            return header.fileName;
+        }
+
+        void abort() {
+            if (runner != null) {
+                runner.interrupt();
+            }
+            try {
+                sink.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+        }
+
+        /**
+         * 第一阶段从交接队列取出密文数组，与块原有的数组交换，换下的数组回收给接收线程复用。
+         * 解密阶段按交出顺序解密，因此 IV 顺序与到达顺序一致；明文直接解密到 {@link FileSink} 提供的缓冲区，
+         * 由写盘阶段落盘。
+         */
+        private void startPipeline(int streamId) {
+            inbox = new ArrayBlockingQueue<>(TransferPipeline.DEFAULT_DEPTH);
+            spare = new ConcurrentLinkedQueue<>();
+            // 解密阶段与写盘阶段各自的文件位置
+            long[] position = { header.offset, header.offset };
+            runner = threadMode.newThread("file-receive-" + streamId, () -> {
+                try {
+                    stats = new TransferPipeline(header.frameSize).run(RECEIVE_STAGES,
+                            block -> {
+                                Sealed next = inbox.take();
+                                if (next == END)
+                                    return false;
+                                spare.offer(block.sealed);
+                                block.sealed = next.data;
+                                block.sealedLength = next.length;
+                                block.compressed = next.compressed;
+                                block.plainLength = next.plainLength;
+                                block.ensureSealedCapacity(next.length);
+                                return true;
+                            },
+                            block -> {
+                                block.target = sink.buffer(position[0], block.plainLength);
+                                opener.open(block.sealed, block.sealedLength, block.compressed, block.plainLength,
+                                        block.target);
+                                block.digest = tree.leaf(position[0], block.target.duplicate().flip());
+                                position[0] += block.plainLength;
+                                return true;
+                            },
+                            block -> {
+                                // 写出后缓冲区可能立即被解密阶段借走，必须先等待哈希完成
+                                block.digest.join();
+                                sink.write(block.target, position[1]);
+                                block.target = null;
+                                position[1] += block.plainLength;
+                                sink.advance(position[1]);
+                                return true;
+                            });
+                } catch (Exception e) {
+                    failure = e;
+                }
+            });
+            runner.setDaemon(true);
+            runner.start();
+        }
+
+        /**
+         * 把一帧密文交给流水线；流水线已失败时抛出其异常，避免接收线程永远阻塞。
+         */
+        private void handOff(Sealed sealed) throws Exception {
+            while (!inbox.offer(sealed, 100, TimeUnit.MILLISECONDS)) {
+                if (failure != null)
+                    throw failure;
+                if (!runner.isAlive())
+                    throw new IOException("文件接收流水线已停止");
+            }
+        }
+    }
+
+    private static File targetFile(String fileName) {
+        return new File("received_" + fileName);
+    }
+
+    /**
+     * 同一文件（文件名、大小、修改时间都相同）的多次发送得到相同的传输 ID，重连后据此找到检查点。
+     */
+    static String transferId(File file, long size) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update((file.getName() + "|" + size + "|" + file.lastModified()).getBytes(StandardCharsets.UTF_8));
+        byte[] hash = digest.digest();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 12; i++) {
+            sb.append(String.format("%02x", hash[i]));
+        }
+        return sb.toString();
+    }
+}
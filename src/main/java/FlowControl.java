@@ -0,0 +1,211 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一个连接的流控状态：发送队列的高低水位，以及基于额度（credit）的发送窗口。
+ * <p>
+ * 发送队列中排队的字节数达到高水位（{@code -Dsecure.flow.highWater}，默认 {@value #DEFAULT_HIGH_WATER}）时
+ * 变为不可写，降到低水位（{@code -Dsecure.flow.lowWater}，默认 {@value #DEFAULT_LOW_WATER}）以下时恢复可写，
+ * 两次变化都通知 {@link Listener}，生产者据此暂停或继续。不理会通知的生产者最多排队到
+ * {@code -Dsecure.flow.maxQueued}（默认 {@value #DEFAULT_MAX_QUEUED}）字节，再排队时抛出 IOException，
+ * 接收过慢的对端因此不会占满发送方的堆。
+ * <p>
+ * 额度按帧的线上长度计算，只约束 {@link FrameType#isFlowControlled()} 的帧。双方在 SETTINGS 帧中声明
+ * 自己的接收窗口（{@code -Dsecure.flow.window}，默认 {@value #DEFAULT_WINDOW}，0 表示不限制对方），
+ * 发送方收到对方的窗口后开始计算额度，额度用完时停止写出受流控的帧，对方的应用读走数据后用
+ * {@link FrameType#WINDOW_UPDATE} 归还额度。额度为正即可写出下一帧，所以超出窗口的最多是一帧。
+ */
+public class FlowControl {
+    public static final String HIGH_WATER_PROPERTY = "secure.flow.highWater";
+    public static final String LOW_WATER_PROPERTY = "secure.flow.lowWater";
+    public static final String MAX_QUEUED_PROPERTY = "secure.flow.maxQueued";
+    public static final String WINDOW_PROPERTY = "secure.flow.window";
+    public static final int DEFAULT_HIGH_WATER = 1024 * 1024;
+    public static final int DEFAULT_LOW_WATER = 256 * 1024;
+    public static final int DEFAULT_MAX_QUEUED = 16 * 1024 * 1024;
+    public static final int DEFAULT_WINDOW = 1024 * 1024;
+
+    /**
+     * 发送队列可写状态的变化通知。在改变水位的线程上调用，调用时持有本对象的锁，不应阻塞。
+     */
+    public interface Listener {
+        void onWritabilityChanged(boolean writable);
+    }
+
+    private final long highWater;
+    private final long lowWater;
+    private final long maxQueued;
+    /** 本端声明的接收窗口，0 表示不要求对方按额度发送 */
+    private final int window;
+    private final AtomicLong queued = new AtomicLong();
+    private boolean writable = true;
+    private volatile Listener listener;
+
+    /** 对方声明了窗口时为 true，此后按 credit 发送 */
+    private volatile boolean creditEnabled;
+    private final AtomicLong credit = new AtomicLong();
+    /** 对方能处理 WINDOW_UPDATE 帧 */
+    private volatile boolean peerUpdates;
+    /** 已读走但尚未归还给对方的字节数 */
+    private final AtomicLong consumed = new AtomicLong();
+
+    /**
+     * @param window 本端的接收窗口（字节），0 表示不限制对方。
+     */
+    public FlowControl(long highWater, long lowWater, long maxQueued, int window) {
+        if (lowWater < 0 || lowWater > highWater || highWater > maxQueued || window < 0) {
+            throw new IllegalArgumentException(
+                    "非法的流控参数: " + lowWater + "/" + highWater + "/" + maxQueued + "/" + window);
+        }
+        this.highWater = highWater;
+        this.lowWater = lowWater;
+        this.maxQueued = maxQueued;
+        this.window = window;
+    }
+
+    /**
+     * 按 -Dsecure.flow.* 创建。
+     */
+    public static FlowControl fromSystemProperty() {
+        return new FlowControl(Integer.getInteger(HIGH_WATER_PROPERTY, DEFAULT_HIGH_WATER),
+                Integer.getInteger(LOW_WATER_PROPERTY, DEFAULT_LOW_WATER),
+                Integer.getInteger(MAX_QUEUED_PROPERTY, DEFAULT_MAX_QUEUED), windowFromSystemProperty());
+    }
+
+    static int windowFromSystemProperty() {
+        return Math.max(0, Integer.getInteger(WINDOW_PROPERTY, DEFAULT_WINDOW));
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 排队字节数低于高水位，或者从高水位回落到低水位以下之后为 true。
+     */
+    public synchronized boolean isWritable() {
+        return writable;
+    }
+
+    /**
+     * 等待发送队列恢复可写，供可以阻塞的生产者使用。
+     */
+    public synchronized void awaitWritable() throws InterruptedException {
+        while (!writable) {
+            wait();
+        }
+    }
+
+    public long getQueuedBytes() {
+        return queued.get();
+    }
+
+    /**
+     * 记录入队的 bytes 字节。
+     *
+     * @throws IOException 如果排队字节数将超过上限，此时不计入。
+     */
+    public void enqueued(int bytes) throws IOException {
+        long total = queued.addAndGet(bytes);
+        if (total > maxQueued) {
+            queued.addAndGet(-bytes);
+            throw new IOException("发送队列已满（" + (total - bytes) + " 字节），对方接收过慢");
+        }
+        update();
+    }
+
+    /**
+     * 记录写出或丢弃了之前入队的 bytes 字节。
+     */
+    public void dequeued(int bytes) {
+        queued.addAndGet(-bytes);
+        update();
+    }
+
+    private synchronized void update() {
+        // 在锁内重新读取，并发的入队和出队无论以什么顺序进入，最后一个都按最终的字节数判断
+        long total = queued.get();
+        if (writable && total >= highWater) {
+            writable = false;
+        } else if (!writable && total <= lowWater) {
+            writable = true;
+            notifyAll();
+        } else {
+            return;
+        }
+        Listener l = listener;
+        if (l != null) {
+            l.onWritabilityChanged(writable);
+        }
+    }
+
+    /**
+     * 本端 SETTINGS 帧中声明的接收窗口。
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * 应用对方 SETTINGS 帧中的流控声明。
+     *
+     * @param window 对方的接收窗口，大于 0 时此后按额度发送。
+     */
+    public void peerSettings(boolean updates, int window) {
+        if (window > 0 && !creditEnabled) {
+            credit.set(window);
+            creditEnabled = true;
+        }
+        peerUpdates = updates;
+    }
+
+    /**
+     * 是否已收到对方的接收窗口，此后受流控的帧按额度发送。
+     */
+    public boolean isCreditEnabled() {
+        return creditEnabled;
+    }
+
+    /**
+     * 现在能否写出一帧受流控的帧。
+     */
+    public boolean hasCredit() {
+        return !creditEnabled || credit.get() > 0;
+    }
+
+    /**
+     * 写出了一帧受流控的帧，线上长度为 bytes。
+     */
+    public void sent(int bytes) {
+        if (creditEnabled) {
+            credit.addAndGet(-bytes);
+        }
+    }
+
+    /**
+     * 对方归还了 increment 字节的额度。
+     */
+    public void granted(int increment) throws IOException {
+        if (increment <= 0) {
+            throw new IOException("非法的窗口更新: " + increment);
+        }
+        credit.addAndGet(increment);
+    }
+
+    /**
+     * 应用读走了一帧受流控的帧，线上长度为 bytes。
+     */
+    public void received(int bytes) {
+        consumed.addAndGet(bytes);
+    }
+
+    /**
+     * 累计读走的字节数达到窗口的四分之一时取出，作为要发给对方的 WINDOW_UPDATE 增量；否则返回 0。
+     * 本端不限制对方或对方不认识 WINDOW_UPDATE 时总是返回 0。
+     */
+    public int takeUpdate() {
+        if (window == 0 || !peerUpdates || consumed.get() < Math.max(1, window / 4))
+            return 0;
+        return (int) Math.min(Integer.MAX_VALUE, consumed.getAndSet(0));
+    }
+}
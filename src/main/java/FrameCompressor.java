@@ -0,0 +1,158 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 帧加密前的压缩与解密后的解压。
+ * <p>
+ * 压缩后的帧内容为 4 字节原始长度加 zlib 格式的 Deflate 数据，帧头中的压缩标志告诉接收方需要解压，
+ * 见 {@link SecureChannel}。较大的帧先压缩开头的一段样本，压缩率不够说明数据已经压缩过或是随机数据，
+ * 整帧直接发送；压缩结果没有明显变小时同样直接发送，因此压缩不会让任何一帧变大。
+ * <p>
+ * 压缩级别由系统属性 {@code -Dsecure.compress} 选择：{@code off}（默认）、{@code fast}、{@code deflate}。
+ * 默认关闭是因为同一帧中混有秘密和攻击者可控的内容时，密文长度可能泄露秘密（CRIME 类攻击）。
+ * <p>
+ * 实例不是线程安全的，每个线程或每个流使用自己的实例。
+ */
+public class FrameCompressor {
+    public static final String PROPERTY = "secure.compress";
+    /** 小于该长度的数据不压缩，节省的字节不值得一次压缩 */
+    public static final int MIN_LENGTH = 256;
+    /** 大于该长度的数据先压缩样本 */
+    static final int SAMPLE_LENGTH = 4096;
+    /** 压缩后至少要小于原长度的这个比例（百分比）才使用压缩结果 */
+    static final int MAX_RATIO = 90;
+
+    private final int level;
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] buffer = new byte[0];
+    private byte[] input = new byte[0];
+
+    /**
+     * @param level Deflate 压缩级别，见 {@link Deflater}。
+     */
+    public FrameCompressor(int level) {
+        this.level = level;
+    }
+
+    /**
+     * 读取系统属性 {@value #PROPERTY} 对应的压缩级别，关闭时返回 {@link Deflater#NO_COMPRESSION}。
+     */
+    public static int levelFromSystemProperty() {
+        String value = System.getProperty(PROPERTY, "off");
+        switch (value.toLowerCase()) {
+            case "off":
+                return Deflater.NO_COMPRESSION;
+            case "fast":
+                return Deflater.BEST_SPEED;
+            case "deflate":
+                return Deflater.DEFAULT_COMPRESSION;
+            default:
+                throw new IllegalArgumentException("未知的压缩方式: " + value);
+        }
+    }
+
+    /**
+     * 压缩 in[off, off+len) 到 {@link #buffer()}。
+     *
+     * @return 压缩后的长度；不值得压缩时返回 -1，此时应直接发送原始数据。
+     */
+    public int compress(byte[] in, int off, int len) {
+        if (len < MIN_LENGTH)
+            return -1;
+        if (deflater == null)
+            deflater = new Deflater(level);
+        int limit = len - len * (100 - MAX_RATIO) / 100;
+        if (buffer.length < limit)
+            buffer = new byte[limit];
+
+        if (len > SAMPLE_LENGTH * 2 && deflate(in, off, SAMPLE_LENGTH, 0, SAMPLE_LENGTH * MAX_RATIO / 100) < 0)
+            return -1;
+        int n = deflate(in, off, len, 4, limit - 4);
+        if (n < 0)
+            return -1;
+        buffer[0] = (byte) (len >>> 24);
+        buffer[1] = (byte) (len >>> 16);
+        buffer[2] = (byte) (len >>> 8);
+        buffer[3] = (byte) len;
+        return 4 + n;
+    }
+
+    /**
+     * 压缩 in 中剩余的全部字节，in 可以是直接缓冲区，其位置不变。
+     *
+     * @see #compress(byte[], int, int)
+     */
+    public int compress(ByteBuffer in) {
+        if (in.hasArray())
+            return compress(in.array(), in.arrayOffset() + in.position(), in.remaining());
+        int len = in.remaining();
+        if (len < MIN_LENGTH)
+            return -1;
+        if (input.length < len)
+            input = new byte[len];
+        in.duplicate().get(input, 0, len);
+        return compress(input, 0, len);
+    }
+
+    /**
+     * 最近一次 {@link #compress(byte[], int, int)} 的结果所在的缓冲区。
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * 压缩到 buffer[outOff, outOff+limit)，放不下时返回 -1。
+     */
+    private int deflate(byte[] in, int off, int len, int outOff, int limit) {
+        deflater.reset();
+        deflater.setInput(in, off, len);
+        deflater.finish();
+        int n = deflater.deflate(buffer, outOff, limit);
+        return deflater.finished() ? n : -1;
+    }
+
+    /**
+     * 读取压缩数据中记录的原始长度。
+     *
+     * @throws IOException 如果数据太短或长度非法。
+     */
+    public static int decompressedLength(byte[] in, int off, int len) throws IOException {
+        if (len < 4) {
+            throw new IOException("压缩帧不完整");
+        }
+        int n = ((in[off] & 0xFF) << 24) | ((in[off + 1] & 0xFF) << 16) | ((in[off + 2] & 0xFF) << 8)
+                | (in[off + 3] & 0xFF);
+        if (n < 0) {
+            throw new IOException("非法的压缩帧长度: " + n);
+        }
+        return n;
+    }
+
+    /**
+     * 解压 in[off, off+len) 到 out[outOff, ...)，out 至少要能容纳 {@link #decompressedLength} 字节。
+     *
+     * @return 原始长度。
+     * @throws IOException 如果数据损坏或解压出的长度与记录的不一致。
+     */
+    public int decompress(byte[] in, int off, int len, byte[] out, int outOff) throws IOException {
+        int expected = decompressedLength(in, off, len);
+        if (inflater == null)
+            inflater = new Inflater();
+        inflater.reset();
+        inflater.setInput(in, off + 4, len - 4);
+        try {
+            int n = inflater.inflate(out, outOff, expected);
+            if (n != expected || !inflater.finished()) {
+                throw new IOException("压缩帧长度不一致");
+            }
+            return n;
+        } catch (DataFormatException e) {
+            throw new IOException("压缩帧数据损坏", e);
+        }
+    }
+}
@@ -0,0 +1,398 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 主连接的发送调度器：所有帧由一个写线程按优先级写出。
+ * <p>
+ * 聊天消息和控制帧进入优先队列，写线程每写完一帧都先检查它；文件流每次只能提交一帧，
+ * 写出后才能提交下一帧，多个文件流因此按轮转顺序交错发送。一条消息最多等待当前正在写出的那一帧，
+ * 不会排在整个文件之后；文件帧越小，消息延迟越低。
+ * <p>
+ * 控制帧在写线程上用连接的会话密钥加密，保证 IV 顺序与写出顺序一致；文件帧由各自的流密钥在提交前加密好。
+ * 按字节提交的消息复制到 {@link BufferPool} 的缓冲区中排队，写出后归还；队列项本身也循环使用，
+ * 稳定的消息流不会在调度器里产生垃圾对象。
+ * <p>
+ * 排队的控制帧计入连接的 {@link FlowControl} 水位，超过上限时 {@code send} 抛出 IOException。
+ * 对方声明了接收窗口后，受流控的帧（聊天消息、文件内容）只在还有额度时写出；额度用完时队首的消息
+ * 和所有文件流都等待对方的 WINDOW_UPDATE，只有本端归还额度的 WINDOW_UPDATE 可以越过它们先写出，
+ * 双方因此不会都在等对方归还额度。控制帧在写出时才加密，越过不会打乱 IV 顺序。
+ * <p>
+ * 写出策略由 {@code -Dsecure.flush.mode} 指定：
+ * <ul>
+ * <li>{@code coalesce}（默认）：小帧先在连接的缓冲区中合并，队列写空时刷出，缓冲超过
+ * {@code -Dsecure.flush.threshold} 字节（默认 {@value #DEFAULT_FLUSH_THRESHOLD}）时立即刷出。
+ * {@code -Dsecure.flush.delay} 微秒（默认 0）大于 0 时，队列写空后再等这么久，让随后到来的帧一起写出；
+ * {@link #flush()} 提前刷出。突发的小消息因此合并成少数几次系统调用和 TCP 报文段。</li>
+ * <li>{@code immediate}：每帧立即写出，延迟最低，适合交互式的少量消息。</li>
+ * </ul>
+ */
+public class FrameScheduler implements Closeable {
+    /** 关闭时等待队列中剩余帧写出的最长时间（毫秒） */
+    private static final long CLOSE_TIMEOUT = 5000;
+
+    public static final String FLUSH_MODE_PROPERTY = "secure.flush.mode";
+    public static final String FLUSH_THRESHOLD_PROPERTY = "secure.flush.threshold";
+    public static final String FLUSH_DELAY_PROPERTY = "secure.flush.delay";
+    public static final int DEFAULT_FLUSH_THRESHOLD = 16 * 1024;
+
+    /** 空闲队列项最多保留的个数 */
+    private static final int MAX_SPARE_FRAMES = 64;
+
+    /** 排队的控制帧，内容是 payload 或者从池中借出的 buffer 之一 */
+    private static final class ControlFrame {
+        FrameType type;
+        int streamId;
+        byte[] payload;
+        ByteBuffer buffer;
+        /** 计入发送队列水位的字节数 */
+        int bytes;
+    }
+
+    /**
+     * 一个发送中的文件流。
+     */
+    public final class Stream {
+        private final int id;
+        private byte[] pending;
+        private int pendingLength;
+        private boolean pendingCompressed;
+
+        private Stream(int id) {
+            this.id = id;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * 提交一帧以流密钥加密好的密文，写出后返回，之后 sealed 可以复用。
+         * <p>
+         * 等待时被中断：帧还没被写线程取走就撤回，否则等它写完，再抛出 InterruptedException。
+         * 这样调用方随后发送的 FILE_ABORT 之后不会再出现该流的帧。
+         *
+         * @param compressed 明文在加密前是否压缩过，加密时的附加数据必须与之对应。
+         * @throws IOException 如果连接已关闭或写出失败。
+         */
+        public void write(byte[] sealed, int len, boolean compressed) throws IOException, InterruptedException {
+            synchronized (lock) {
+                checkOpen();
+                pending = sealed;
+                pendingLength = len;
+                pendingCompressed = compressed;
+                ready.add(this);
+                lock.notifyAll();
+                boolean interrupted = false;
+                while (pending != null && failure == null) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        if (ready.remove(this)) {
+                            pending = null;
+                            throw e;
+                        }
+                        interrupted = true;
+                    }
+                }
+                if (interrupted && pending == null) {
+                    throw new InterruptedException();
+                }
+                if (pending != null) {
+                    ready.remove(this);
+                    pending = null;
+                    throw new IOException("连接写出失败", failure);
+                }
+            }
+        }
+    }
+
+    private final SecureChannel channel;
+    private final FlowControl flow;
+    private final Object lock = new Object();
+    private final ArrayDeque<ControlFrame> control = new ArrayDeque<>();
+    private final ArrayDeque<ControlFrame> spareFrames = new ArrayDeque<>();
+    private final BufferPool pool = BufferPool.shared();
+    private final ArrayDeque<Stream> ready = new ArrayDeque<>();
+    private final AtomicInteger nextStreamId;
+    private final Thread writer;
+    /** 合并写出时队列写空后最多再等待的时间，immediate 模式下为 -1 */
+    private final long flushDelayNanos;
+    private boolean flushRequested;
+    private boolean closing;
+    private Exception failure;
+
+    /**
+     * 按 -Dsecure.flush.* 选择写出策略。
+     */
+    public FrameScheduler(SecureChannel channel) throws IOException {
+        this(channel, !"immediate".equalsIgnoreCase(System.getProperty(FLUSH_MODE_PROPERTY)),
+                Integer.getInteger(FLUSH_THRESHOLD_PROPERTY, DEFAULT_FLUSH_THRESHOLD),
+                Long.getLong(FLUSH_DELAY_PROPERTY, 0));
+    }
+
+    /**
+     * @param coalesce         是否合并小帧；为 false 时每帧立即写出。
+     * @param flushThreshold   合并缓冲区的大小（字节）。
+     * @param flushDelayMicros 队列写空后等待更多帧的时间（微秒），0 表示立即刷出。
+     */
+    public FrameScheduler(SecureChannel channel, boolean coalesce, int flushThreshold, long flushDelayMicros)
+            throws IOException {
+        this.channel = channel;
+        this.flow = channel.getFlowControl();
+        this.flushDelayNanos = coalesce ? Math.max(0, flushDelayMicros) * 1000 : -1;
+        channel.setCoalescing(coalesce ? flushThreshold : 0);
+        // 客户端使用奇数流 ID，服务端使用偶数，双方各自分配也不会冲突
+        this.nextStreamId = new AtomicInteger(channel.getCipherSession().isInitiator() ? 1 : 2);
+        writer = ThreadMode.fromSystemProperty().newThread("frame-writer", this::run);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 分配一个本会话内不会重复的流 ID。
+     */
+    public int nextStreamId() {
+        return nextStreamId.getAndAdd(2);
+    }
+
+    public Stream openStream(int streamId) {
+        return new Stream(streamId);
+    }
+
+    /**
+     * 排队发送一条聊天消息，立即返回。
+     *
+     * @throws IOException 如果连接已关闭或之前的写出已失败。
+     */
+    public void sendMessage(String msg) throws IOException {
+        if (Utf8.encodedLength(msg) > pool.getBufferSize()) {
+            send(FrameType.MESSAGE, 0, Utf8.encode(msg));
+            return;
+        }
+        ByteBuffer buffer = pool.acquire();
+        Utf8.encode(msg, buffer);
+        buffer.flip();
+        enqueue(FrameType.MESSAGE, 0, null, buffer);
+    }
+
+    /**
+     * 排队发送 data 中剩余的全部字节，data 的位置移到 limit。内容在返回前已复制，调用方可以立即复用 data。
+     *
+     * @throws IOException 如果连接已关闭或之前的写出已失败。
+     */
+    public void send(FrameType type, int streamId, ByteBuffer data) throws IOException {
+        ByteBuffer buffer = pool.acquire(data.remaining());
+        buffer.put(data).flip();
+        enqueue(type, streamId, null, buffer);
+    }
+
+    /**
+     * 排队发送一个控制帧，立即返回。控制帧总是先于文件帧写出。
+     *
+     * @throws IOException 如果连接已关闭或之前的写出已失败。
+     */
+    public void send(FrameType type, int streamId, byte[] payload) throws IOException {
+        enqueue(type, streamId, payload, null);
+    }
+
+    private void enqueue(FrameType type, int streamId, byte[] payload, ByteBuffer buffer) throws IOException {
+        // 归还额度的帧不受队列上限约束，否则对方可能因此再也收不到额度
+        int bytes = type == FrameType.WINDOW_UPDATE ? 0 : payload != null ? payload.length : buffer.remaining();
+        synchronized (lock) {
+            try {
+                checkOpen();
+                flow.enqueued(bytes);
+            } catch (IOException e) {
+                pool.release(buffer);
+                throw e;
+            }
+            ControlFrame frame = spareFrames.poll();
+            if (frame == null)
+                frame = new ControlFrame();
+            frame.type = type;
+            frame.streamId = streamId;
+            frame.payload = payload;
+            frame.buffer = buffer;
+            frame.bytes = bytes;
+            control.add(frame);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * 接收线程每读一帧后调用：应用读走的数据累计到一定量时，排队一个 WINDOW_UPDATE 把额度归还给对方。
+     */
+    public void replenish() throws IOException {
+        int increment = flow.takeUpdate();
+        if (increment > 0) {
+            send(FrameType.WINDOW_UPDATE, 0, ByteBuffer.allocate(4).putInt(increment).array());
+        }
+    }
+
+    /**
+     * 处理对方的 WINDOW_UPDATE 帧：payload 是增量，唤醒等待额度的写线程。
+     */
+    public void windowUpdate(byte[] payload, int len) throws IOException {
+        if (len != 4) {
+            throw new IOException("非法的窗口更新长度: " + len);
+        }
+        flow.granted(ByteBuffer.wrap(payload, 0, 4).getInt());
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * 尽快写出已合并但尚未刷出的帧，不等待 -Dsecure.flush.delay。立即返回。
+     */
+    public void flush() {
+        synchronized (lock) {
+            flushRequested = true;
+            lock.notifyAll();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null) {
+            throw new IOException("连接写出失败", failure);
+        }
+        if (closing) {
+            throw new IOException("连接已关闭");
+        }
+    }
+
+    private void run() {
+        // 缓冲区中最早一帧最晚的刷出时刻
+        long flushDeadline = 0;
+        while (true) {
+            ControlFrame frame = null;
+            Stream stream = null;
+            boolean flush = false;
+            synchronized (lock) {
+                while (true) {
+                    if (failure != null)
+                        return; // 关闭时仍在等待额度，见 close()
+                    frame = pollControl();
+                    // 文件流排在所有控制帧之后，FILE_DATA 因此不会越过同一文件的 FILE_OPEN
+                    if (frame == null && control.isEmpty() && flow.hasCredit())
+                        stream = ready.poll();
+                    if (frame != null || stream != null)
+                        break;
+                    // 没有可以写出的帧：队列已空，或者都在等待额度
+                    if (channel.bufferedBytes() > 0) {
+                        long wait = flushRequested || closing ? 0 : flushDeadline - System.nanoTime();
+                        if (wait <= 0) {
+                            flush = true;
+                            break;
+                        }
+                        try {
+                            lock.wait(wait / 1_000_000, (int) (wait % 1_000_000));
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        continue;
+                    }
+                    flushRequested = false;
+                    if (closing && control.isEmpty() && ready.isEmpty())
+                        return;
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (flush) {
+                    flushRequested = false;
+                }
+            }
+            try {
+                if (flush) {
+                    channel.flush();
+                    continue;
+                }
+                if (channel.bufferedBytes() == 0) {
+                    flushDeadline = System.nanoTime() + flushDelayNanos;
+                }
+                if (frame != null && frame.buffer != null) {
+                    channel.writeFrame(frame.type, frame.streamId, frame.buffer);
+                } else if (frame != null) {
+                    channel.writeFrame(frame.type, frame.streamId, frame.payload, 0, frame.payload.length);
+                } else {
+                    channel.writeSealed(FrameType.FILE_DATA, stream.id, stream.pendingCompressed, stream.pending, 0,
+                            stream.pendingLength);
+                }
+                if (flushDelayNanos < 0) {
+                    channel.flush();
+                }
+            } catch (Exception e) {
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+            if (frame != null) {
+                pool.release(frame.buffer);
+                flow.dequeued(frame.bytes);
+                synchronized (lock) {
+                    frame.payload = null;
+                    frame.buffer = null;
+                    if (spareFrames.size() < MAX_SPARE_FRAMES)
+                        spareFrames.add(frame);
+                }
+            } else {
+                synchronized (lock) {
+                    stream.pending = null;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * 取出下一个可以写出的控制帧，没有时返回 null。须在 lock 内调用。
+     */
+    private ControlFrame pollControl() {
+        ControlFrame head = control.peek();
+        if (head == null || !head.type.isFlowControlled() || flow.hasCredit())
+            return control.poll();
+        for (Iterator<ControlFrame> it = control.iterator(); it.hasNext();) {
+            ControlFrame frame = it.next();
+            if (frame.type == FrameType.WINDOW_UPDATE) {
+                it.remove();
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 等待已排队的帧写出（最多 {@value #CLOSE_TIMEOUT} 毫秒）后关闭连接。
+     * 到时仍在等待对方归还额度的帧被丢弃，等待写出的文件流以 IOException 返回。
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closing = true;
+            lock.notifyAll();
+        }
+        if (Thread.currentThread() != writer) {
+            try {
+                writer.join(CLOSE_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (lock) {
+            if (failure == null && writer.isAlive()) {
+                failure = new IOException("连接已关闭");
+                lock.notifyAll();
+            }
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * 连接上的帧类型，位于每帧的明文帧头中，见 {@link SecureChannel}。
+ * <p>
+ * 除 {@link #FILE_DATA} 外的所有帧都用连接的会话密钥加密，按发送顺序解密；
+ * FILE_DATA 帧用由会话密钥和流 ID 派生的流密钥加密，各文件流的计数器互不影响，
+ * 因此多个文件流可以在同一连接上交错发送。GROUP_MESSAGE 帧用群组密钥加密并自带 nonce，
+ * 同一份密文发给群组的所有成员。CACHED_DATA 帧是 {@link EncryptedFileCache} 中预先加密好的密文，
+ * 用随 CACHED_OPEN 下发的内容密钥解密。
+ * <p>
+ * 聊天消息和文件内容受基于额度的流控，见 {@link #isFlowControlled()} 和 {@link FlowControl}。
+ */
+public enum FrameType {
+    /** 聊天消息，流 ID 为 0 */
+    MESSAGE((byte) 1),
+    /** 开始一个文件流：传输 ID、文件名、大小、帧大小、起始偏移量 */
+    FILE_OPEN((byte) 2),
+    /** 文件流的一段内容 */
+    FILE_DATA((byte) 3),
+    /** 发送方放弃一个文件流，接收方保留检查点以便续传 */
+    FILE_ABORT((byte) 4),
+    /** 询问某个传输已校验的偏移量：传输 ID、文件名、大小、帧大小 */
+    RESUME_QUERY((byte) 5),
+    /** 对续传询问的回复：偏移量 */
+    RESUME_AT((byte) 6),
+    /** 开始一次多路并行传输：传输 ID、文件名、大小、子连接数、帧大小 */
+    PARALLEL_OPEN((byte) 7),
+    /** 多路并行传输的所有子连接已发送完毕：是否成功 */
+    PARALLEL_DONE((byte) 8),
+    /** 连接建立后各自声明的能力，流 ID 为 0：能力位、接收窗口，见 {@link SecureChannel#settings()} */
+    SETTINGS((byte) 9),
+    /** 客户端请求加入群组，流 ID 为 0：群组名 */
+    GROUP_JOIN((byte) 10),
+    /** 客户端退出群组，流 ID 为 0：群组名 */
+    GROUP_LEAVE((byte) 11),
+    /** 服务端下发群组密钥，流 ID 为群组 ID：群组名、密钥纪元、密钥，见 {@link GroupKey} */
+    GROUP_KEY((byte) 12),
+    /** 客户端发往群组的消息，流 ID 为 0：群组名、消息正文 */
+    GROUP_SEND((byte) 13),
+    /** 服务端转发的群组消息，流 ID 为群组 ID，用群组密钥加密，所有成员收到相同的密文 */
+    GROUP_MESSAGE((byte) 14),
+    /** 开始一个预加密文件流：文件名、大小、分块大小、内容 ID、内容密钥，见 {@link EncryptedFileCache} */
+    CACHED_OPEN((byte) 15),
+    /** 预加密文件流的一块，密文直接取自发送方的缓存文件，按块序号依次发送 */
+    CACHED_DATA((byte) 16),
+    /** 文件流的最后一帧，跟在所有 FILE_DATA 之后：整个文件的 {@link TreeHash} 根 */
+    FILE_DIGEST((byte) 17),
+    /** 增量发送前询问接收方已有的块：文件名，见 {@link ChunkIndex} */
+    DELTA_QUERY((byte) 18),
+    /** 对增量询问的回复：块数、各块的 SHA-256 */
+    DELTA_INDEX((byte) 19),
+    /** 开始一个增量文件流：文件名、大小、帧大小、块清单，随后的 FILE_DATA 帧只包含接收方没有的块 */
+    DELTA_OPEN((byte) 20),
+    /** 归还发送额度，流 ID 为 0：增量字节数，见 {@link FlowControl} */
+    WINDOW_UPDATE((byte) 21);
+
+    private static final FrameType[] BY_CODE = new FrameType[22];
+
+    static {
+        for (FrameType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    private final byte code;
+
+    FrameType(byte code) {
+        this.code = code;
+    }
+
+    public byte code() {
+        return code;
+    }
+
+    /**
+     * 是否占用对方授予的发送额度：聊天消息和文件内容受流控，控制帧不受。
+     */
+    public boolean isFlowControlled() {
+        return this == MESSAGE || this == GROUP_MESSAGE || this == FILE_DATA || this == CACHED_DATA;
+    }
+
+    public static FrameType fromCode(byte code) {
+        FrameType type = code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+        if (type == null) {
+            throw new IllegalArgumentException("未知的帧类型: " + code);
+        }
+        return type;
+    }
+}
@@ -0,0 +1,156 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 群组的一个纪元的 AES-GCM 密钥。
+ * <p>
+ * 服务端为每个群组生成密钥，经各成员自己的会话密钥加密的 GROUP_KEY 帧下发；群组消息只用群组密钥加密一次，
+ * 同一份密文写给所有成员。成员退出时服务端换用下一纪元的新密钥，退出者拿不到之后的消息。
+ * <p>
+ * 成员加入群组的时刻各不相同，无法像 {@link CipherSession} 那样按收发顺序推算 IV，
+ * 因此群组消息自带 nonce：4 字节纪元加 8 字节计数器，只有服务端用群组密钥加密，计数器不会重复。
+ * 密文部分的格式为 {@code [纪元:4][计数器:8][GCM 密文]}，帧头作为附加数据。
+ */
+public class GroupKey {
+    /** 密文部分中纪元和计数器的长度 */
+    public static final int NONCE_LENGTH = CipherSession.NONCE_LENGTH;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private final int groupId;
+    private final String name;
+    private final int epoch;
+    private final SecretKey key;
+    private final Cipher cipher;
+    private final byte[] nonce = new byte[NONCE_LENGTH];
+    /** 加密方：下一个计数器；解密方：已接受的最大计数器加一，用于拒绝重放 */
+    private long counter;
+
+    GroupKey(int groupId, String name, int epoch, SecretKey key) throws GeneralSecurityException {
+        this.groupId = groupId;
+        this.name = name;
+        this.epoch = epoch;
+        this.key = key;
+        this.cipher = Cipher.getInstance(TRANSFORMATION);
+    }
+
+    /**
+     * 为群组生成一个纪元的新密钥。
+     */
+    public static GroupKey generate(int groupId, String name, int epoch) throws Exception {
+        return new GroupKey(groupId, name, epoch, CryptoUtil.generateAESKey());
+    }
+
+    public int getGroupId() {
+        return groupId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * GROUP_KEY 帧的内容：群组名、纪元、密钥。
+     */
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(name);
+        out.writeInt(epoch);
+        byte[] raw = key.getEncoded();
+        out.writeShort(raw.length);
+        out.write(raw);
+        return bytes.toByteArray();
+    }
+
+    public static GroupKey decode(int groupId, byte[] data, int len) throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, len));
+        String name = in.readUTF();
+        int epoch = in.readInt();
+        byte[] raw = new byte[in.readUnsignedShort()];
+        in.readFully(raw);
+        return new GroupKey(groupId, name, epoch, new SecretKeySpec(raw, "AES"));
+    }
+
+    /**
+     * 密文部分的长度。
+     */
+    public static int sealedLength(int plainLength) {
+        return NONCE_LENGTH + CipherSession.sealedLength(plainLength);
+    }
+
+    /**
+     * 加密一条群组消息，写出 {@code [纪元][计数器][密文]}，out 至少需要 {@link #sealedLength(int)} 字节。
+     *
+     * @param aad 帧头。
+     * @return 写入 out 的字节数。
+     */
+    public synchronized int seal(byte[] aad, byte[] in, int inOff, int len, byte[] out, int outOff)
+            throws GeneralSecurityException {
+        writeNonce(nonce, epoch, counter++);
+        System.arraycopy(nonce, 0, out, outOff, NONCE_LENGTH);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(CipherSession.TAG_LENGTH * 8, nonce));
+        cipher.updateAAD(aad);
+        return NONCE_LENGTH + cipher.doFinal(in, inOff, len, out, outOff + NONCE_LENGTH);
+    }
+
+    /**
+     * 解密 {@link #seal} 的输出。纪元不符、计数器没有递增或认证失败时抛出异常。
+     *
+     * @return 写入 out 的明文长度。
+     */
+    public synchronized int open(byte[] aad, byte[] in, int inOff, int len, byte[] out, int outOff)
+            throws GeneralSecurityException, IOException {
+        if (len < sealedLength(0)) {
+            throw new IOException("群组消息过短: " + len);
+        }
+        int frameEpoch = readInt(in, inOff);
+        long frameCounter = readLong(in, inOff + 4);
+        if (frameEpoch != epoch) {
+            throw new IOException("群组 " + name + " 的密钥纪元不符: " + frameEpoch + "，当前为 " + epoch);
+        }
+        if (frameCounter < counter) {
+            throw new IOException("群组消息重放: " + name + " #" + frameCounter);
+        }
+        cipher.init(Cipher.DECRYPT_MODE, key,
+                new GCMParameterSpec(CipherSession.TAG_LENGTH * 8, in, inOff, NONCE_LENGTH));
+        cipher.updateAAD(aad);
+        int n = cipher.doFinal(in, inOff + NONCE_LENGTH, len - NONCE_LENGTH, out, outOff);
+        counter = frameCounter + 1;
+        return n;
+    }
+
+    private static void writeNonce(byte[] nonce, int epoch, long counter) {
+        for (int i = 0; i < 4; i++) {
+            nonce[i] = (byte) (epoch >>> (24 - 8 * i));
+        }
+        for (int i = 0; i < 8; i++) {
+            nonce[4 + i] = (byte) (counter >>> (56 - 8 * i));
+        }
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8)
+                | (b[off + 3] & 0xFF);
+    }
+
+    private static long readLong(byte[] b, int off) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (b[off + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,276 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 建立会话密钥的握手过程，{@link SecureClient}、{@link SecureServer} 和 {@link NioSecureServer} 共用。
+ * <p>
+ * 客户端先发送一个字节表示握手方式（见 {@link HandshakeMode}），随后：
+ * <ul>
+ * <li>RSA：与原有格式相同。双方用 writeUTF 交换 Base64 编码的 RSA 公钥及其自签名，
+ * 客户端再以 int 长度前缀发送用服务端公钥加密的 AES 密钥。双方的 RSA 密钥对通过
+ * {@link RsaKeyPairPool#acquire()} 取得，启用密钥对池后不再在连接建立时生成。</li>
+ * <li>ECDHE：双方以 int 长度前缀交换临时 X25519 公钥（X.509 编码），
+ * 会话密钥由共享秘密和双方公钥派生，整个过程没有任何 RSA 运算。</li>
+ * <li>RESUME：客户端发送 32 字节随机数和上次会话的票据，服务端兑现成功则回复自己的 32 字节随机数，
+ * 会话密钥由票据中的恢复秘密和双方随机数派生，只需一次往返；兑现失败则回复空数据块，
+ * 客户端在同一连接上重新发送握手方式字节并执行完整握手。</li>
+ * </ul>
+ * 每种方式成功后，服务端最后发送一条票据记录（int 有效期秒数 + 票据，服务端不签发时为空数据块），
+ * 客户端保存它以便下次重连时使用，见 {@link TicketIssuer} 和 {@link SessionTicket}。
+ * <p>
+ * 所有方式都不验证对端身份（RSA 公钥是自签名的），防御的是被动窃听。
+ */
+public class Handshake {
+    /** X25519 公钥编码的最大长度，防止异常对端让本端分配过大的缓冲区 */
+    static final int MAX_SHARE_LENGTH = 256;
+    /** RSA 加密的 AES 密钥的最大长度 */
+    static final int MAX_WRAPPED_KEY_LENGTH = 1024;
+    static final int NONCE_LENGTH = 32;
+    /** 恢复请求的最大长度：客户端随机数加票据 */
+    static final int MAX_RESUME_LENGTH = NONCE_LENGTH + TicketIssuer.MAX_TICKET_LENGTH;
+
+    /**
+     * 服务端兑现票据的结果。
+     */
+    static class Resumed {
+        final SecretKey sessionKey;
+        /** 发给客户端的服务端随机数和新票据记录，已带长度前缀 */
+        final byte[] reply;
+
+        Resumed(SecretKey sessionKey, byte[] reply) {
+            this.sessionKey = sessionKey;
+            this.reply = reply;
+        }
+    }
+
+    private Handshake() {
+    }
+
+    /**
+     * 客户端一侧的握手。持有 peer 的有效票据时先尝试恢复会话。
+     *
+     * @param mode 无法恢复时使用的完整握手方式。
+     * @param peer 服务端地址（host:port），用于保存和查找票据。
+     * @return 会话密钥。
+     * @throws Exception 如果握手失败或服务端身份验证失败。
+     */
+    public static SecretKey client(DataInputStream in, DataOutputStream out, HandshakeMode mode, String peer)
+            throws Exception {
+        SessionTicket ticket = SessionTicket.isEnabled() ? SessionTicket.take(peer) : null;
+        if (ticket != null) {
+            byte[] clientNonce = new byte[NONCE_LENGTH];
+            new SecureRandom().nextBytes(clientNonce);
+            byte[] request = Arrays.copyOf(clientNonce, NONCE_LENGTH + ticket.getTicket().length);
+            System.arraycopy(ticket.getTicket(), 0, request, NONCE_LENGTH, ticket.getTicket().length);
+            out.writeByte(HandshakeMode.RESUME.code());
+            writeBlock(out, request);
+            out.flush();
+            byte[] serverNonce = readBlock(in, NONCE_LENGTH);
+            if (serverNonce.length == NONCE_LENGTH) {
+                SecretKey key = resumedKey(ticket.getResumptionSecret(), clientNonce, serverNonce);
+                receiveTicket(in, peer, key);
+                return key;
+            }
+            // 票据被拒绝，在同一连接上继续完整握手
+        }
+
+        SecretKey key = fullClient(in, out, mode);
+        receiveTicket(in, peer, key);
+        return key;
+    }
+
+    private static SecretKey fullClient(DataInputStream in, DataOutputStream out, HandshakeMode mode)
+            throws Exception {
+        out.writeByte(mode.code());
+        if (mode == HandshakeMode.ECDHE) {
+            KeyPair keyPair = CryptoUtil.generateX25519KeyPair();
+            byte[] clientShare = keyPair.getPublic().getEncoded();
+            writeBlock(out, clientShare);
+            out.flush();
+            byte[] serverShare = readBlock(in, MAX_SHARE_LENGTH);
+            return ecdheKey(CryptoUtil.agreeX25519(keyPair.getPrivate(), serverShare), clientShare, serverShare);
+        }
+        if (mode != HandshakeMode.RSA) {
+            throw new IllegalArgumentException("不是完整握手方式: " + mode);
+        }
+
+        // 发送客户端公钥和签名
+        KeyPair keyPair = RsaKeyPairPool.acquire();
+        String pubKeyStr = Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded());
+        String signature = CryptoUtil.sign(pubKeyStr, keyPair.getPrivate());
+        out.writeUTF(pubKeyStr);
+        out.writeUTF(signature);
+        out.flush();
+
+        // 接收服务器公钥和签名
+        String serverPubKeyStr = in.readUTF();
+        String serverSignature = in.readUTF();
+        PublicKey serverPubKey = verifiedPublicKey(serverPubKeyStr, serverSignature, "服务器身份验证失败");
+
+        // 使用服务器公钥加密 AES 密钥并发送
+        SecretKey aesKey = CryptoUtil.generateAESKey();
+        writeBlock(out, CryptoUtil.encryptRSA(aesKey.getEncoded(), serverPubKey));
+        out.flush();
+        return aesKey;
+    }
+
+    private static void receiveTicket(DataInputStream in, String peer, SecretKey sessionKey) throws Exception {
+        byte[] record = readBlock(in, 4 + TicketIssuer.MAX_TICKET_LENGTH);
+        if (record.length <= 4)
+            return;
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        long expiresAt = System.currentTimeMillis() + buffer.getInt() * 1000L;
+        byte[] ticket = new byte[buffer.remaining()];
+        buffer.get(ticket);
+        if (SessionTicket.isEnabled()) {
+            SessionTicket.save(peer, new SessionTicket(ticket, resumptionSecret(sessionKey), expiresAt));
+        }
+    }
+
+    /**
+     * 服务端一侧的握手。
+     *
+     * @return 会话密钥。
+     * @throws Exception 如果握手失败或客户端身份验证失败。
+     */
+    public static SecretKey server(DataInputStream in, DataOutputStream out) throws Exception {
+        HandshakeMode mode = HandshakeMode.fromCode(in.readByte());
+        if (mode == HandshakeMode.RESUME) {
+            Resumed resumed = resume(readBlock(in, MAX_RESUME_LENGTH));
+            if (resumed != null) {
+                out.write(resumed.reply);
+                out.flush();
+                return resumed.sessionKey;
+            }
+            writeBlock(out, new byte[0]);
+            out.flush();
+            mode = HandshakeMode.fromCode(in.readByte());
+            if (mode == HandshakeMode.RESUME) {
+                throw new IOException("重复的会话恢复请求");
+            }
+        }
+
+        SecretKey key = fullServer(in, out, mode);
+        out.write(ticketRecord(key));
+        out.flush();
+        return key;
+    }
+
+    private static SecretKey fullServer(DataInputStream in, DataOutputStream out, HandshakeMode mode)
+            throws Exception {
+        if (mode == HandshakeMode.ECDHE) {
+            byte[] clientShare = readBlock(in, MAX_SHARE_LENGTH);
+            KeyPair keyPair = CryptoUtil.generateX25519KeyPair();
+            byte[] serverShare = keyPair.getPublic().getEncoded();
+            SecretKey key = ecdheKey(CryptoUtil.agreeX25519(keyPair.getPrivate(), clientShare), clientShare, serverShare);
+            writeBlock(out, serverShare);
+            return key;
+        }
+
+        verifiedPublicKey(in.readUTF(), in.readUTF(), "客户端身份验证失败");
+        System.out.println("客户端身份已验证");
+
+        // 发送公钥和签名
+        KeyPair keyPair = RsaKeyPairPool.acquire();
+        String serverPubKeyStr = Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded());
+        out.writeUTF(serverPubKeyStr);
+        out.writeUTF(CryptoUtil.sign(serverPubKeyStr, keyPair.getPrivate()));
+        out.flush();
+
+        // 接收 AES 密钥
+        byte[] encryptedAesKey = readBlock(in, MAX_WRAPPED_KEY_LENGTH);
+        return new SecretKeySpec(CryptoUtil.decryptRSA(encryptedAesKey, keyPair.getPrivate()), "AES");
+    }
+
+    /**
+     * 兑现客户端的恢复请求（客户端随机数 + 票据）。
+     *
+     * @return 兑现结果；票据无效或服务端不签发票据时返回 null。
+     */
+    static Resumed resume(byte[] request) throws Exception {
+        TicketIssuer issuer = TicketIssuer.shared();
+        if (issuer == null || request.length <= NONCE_LENGTH)
+            return null;
+        SecretKey secret = issuer.redeem(Arrays.copyOfRange(request, NONCE_LENGTH, request.length));
+        if (secret == null)
+            return null;
+        byte[] serverNonce = new byte[NONCE_LENGTH];
+        new SecureRandom().nextBytes(serverNonce);
+        SecretKey key = resumedKey(secret, Arrays.copyOf(request, NONCE_LENGTH), serverNonce);
+
+        byte[] ticket = ticketRecord(key);
+        ByteBuffer reply = ByteBuffer.allocate(4 + NONCE_LENGTH + ticket.length);
+        reply.putInt(NONCE_LENGTH).put(serverNonce).put(ticket);
+        return new Resumed(key, reply.array());
+    }
+
+    /**
+     * 为新建立的会话签发票据，返回带长度前缀的票据记录；服务端不签发票据时返回空数据块。
+     */
+    static byte[] ticketRecord(SecretKey sessionKey) throws Exception {
+        TicketIssuer issuer = TicketIssuer.shared();
+        if (issuer == null)
+            return new byte[4];
+        byte[] ticket = issuer.issue(resumptionSecret(sessionKey));
+        ByteBuffer record = ByteBuffer.allocate(8 + ticket.length);
+        record.putInt(4 + ticket.length).putInt(issuer.getLifetimeSeconds()).put(ticket);
+        return record.array();
+    }
+
+    /**
+     * 解析 Base64 编码的 RSA 公钥并验证其自签名。
+     *
+     * @throws SecurityException 如果签名验证不通过。
+     */
+    static PublicKey verifiedPublicKey(String pubKeyStr, String signature, String error) throws Exception {
+        PublicKey publicKey = KeyFactory.getInstance("RSA")
+                .generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(pubKeyStr)));
+        if (!CryptoUtil.verify(pubKeyStr, signature, publicKey)) {
+            throw new SecurityException(error);
+        }
+        return publicKey;
+    }
+
+    /**
+     * 由 X25519 共享秘密和双方公钥派生会话密钥，公钥参与派生使双方必须看到相同的交换内容。
+     */
+    static SecretKey ecdheKey(byte[] sharedSecret, byte[] clientShare, byte[] serverShare) throws Exception {
+        Base64.Encoder base64 = Base64.getEncoder();
+        return CryptoUtil.deriveKey(new SecretKeySpec(sharedSecret, "HmacSHA256"),
+                "ecdhe|" + base64.encodeToString(clientShare) + "|" + base64.encodeToString(serverShare));
+    }
+
+    /**
+     * 从会话密钥派生恢复秘密。票据里只保存恢复秘密，泄露票据密钥不会直接暴露旧会话的流量密钥。
+     */
+    private static SecretKey resumptionSecret(SecretKey sessionKey) throws Exception {
+        return CryptoUtil.deriveKey(sessionKey, "resumption");
+    }
+
+    private static SecretKey resumedKey(SecretKey secret, byte[] clientNonce, byte[] serverNonce) throws Exception {
+        Base64.Encoder base64 = Base64.getEncoder();
+        return CryptoUtil.deriveKey(secret,
+                "resume|" + base64.encodeToString(clientNonce) + "|" + base64.encodeToString(serverNonce));
+    }
+
+    private static void writeBlock(DataOutputStream out, byte[] data) throws IOException {
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static byte[] readBlock(DataInputStream in, int maxLength) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > maxLength) {
+            throw new IOException("非法握手数据长度: " + len);
+        }
+        byte[] data = new byte[len];
+        in.readFully(data);
+        return data;
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * 握手的密钥交换方式，由客户端在第一条握手记录中选择。
+ * <p>
+ * 客户端通过系统属性 {@code -Dsecure.handshake=rsa|ecdhe} 选择完整握手的方式，默认 RSA；
+ * 持有有效会话票据时先尝试 {@link #RESUME}，被拒绝后在同一连接上退回完整握手。
+ * 两种方式都可以配合 {@link RsaKeyPairPool}：RSA 方式下使用池中预先生成的密钥对，ECDHE 方式完全不需要 RSA 密钥。
+ */
+public enum HandshakeMode {
+    /** 双方交换自签名的 RSA 公钥，客户端用服务端公钥加密随机 AES 密钥 */
+    RSA((byte) 1),
+    /** 双方交换临时 X25519 公钥，由共享秘密派生会话密钥，不需要任何 RSA 运算 */
+    ECDHE((byte) 2),
+    /** 出示上次会话的票据，由恢复秘密和双方随机数派生新密钥，不需要任何公钥运算；由客户端自动选用 */
+    RESUME((byte) 3);
+
+    public static final String PROPERTY = "secure.handshake";
+
+    private final byte code;
+
+    HandshakeMode(byte code) {
+        this.code = code;
+    }
+
+    public byte code() {
+        return code;
+    }
+
+    public static HandshakeMode fromCode(byte code) {
+        for (HandshakeMode mode : values()) {
+            if (mode.code == code)
+                return mode;
+        }
+        throw new IllegalArgumentException("未知的握手方式: " + code);
+    }
+
+    public static HandshakeMode fromSystemProperty() {
+        return "ecdhe".equalsIgnoreCase(System.getProperty(PROPERTY)) ? ECDHE : RSA;
+    }
+}
@@ -0,0 +1,164 @@
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 无锁的延迟直方图，桶的划分与 HdrHistogram 相同：每个 2 的幂区间再均分为 {@value #SUB_BUCKETS} 个子桶，
+ * 任意量级上的相对误差都不超过 1/{@value #SUB_BUCKETS}。
+ * <p>
+ * {@link #record(long)} 只做几次原子加法，不分配对象，可以在多个线程上同时调用；
+ * {@link #summary()} 读取的是近似一致的快照。
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /** 小于 SUB_BUCKETS 的值每个值一个桶，之后每个 2 的幂区间 SUB_BUCKETS 个桶 */
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    /**
+     * 直方图的摘要，时间单位为微秒。可以作为 MXBean 属性导出。
+     */
+    public static final class Summary {
+        private final long count;
+        private final double mean;
+        private final double p50;
+        private final double p99;
+        private final double p999;
+        private final double max;
+
+        @ConstructorProperties({ "count", "mean", "p50", "p99", "p999", "max" })
+        public Summary(long count, double mean, double p50, double p99, double p999, double max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getP50() {
+            return p50;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        public double getP999() {
+            return p999;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            if (count == 0)
+                return "无";
+            return String.format("%d 次 平均 %s p50 %s p99 %s p99.9 %s 最大 %s", count, micros(mean), micros(p50),
+                    micros(p99), micros(p999), micros(max));
+        }
+
+        private static String micros(double value) {
+            return value >= 1000 ? String.format("%.1fms", value / 1000) : String.format("%.1fµs", value);
+        }
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 记录一次耗时。
+     *
+     * @param nanos 耗时（纳秒），负值按 0 计。
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(bucketOf(value));
+        total.increment();
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // 重试
+        }
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * 桶的代表值：桶内取值范围的中点。
+     */
+    static long valueOf(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+        return lower + (1L << (exponent - SUB_BITS)) / 2;
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    /**
+     * 第 percentile 百分位的耗时（纳秒），没有记录时返回 0。
+     */
+    public long percentile(double percentile) {
+        return percentile(snapshot(), percentile);
+    }
+
+    private long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    private static long count(long[] snapshot) {
+        long n = 0;
+        for (long c : snapshot) {
+            n += c;
+        }
+        return n;
+    }
+
+    private long percentile(long[] snapshot, double percentile) {
+        long n = count(snapshot);
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(valueOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    public Summary summary() {
+        long[] snapshot = snapshot();
+        long n = count(snapshot);
+        return new Summary(n, n == 0 ? 0 : sum.sum() / 1e3 / n, percentile(snapshot, 50) / 1e3,
+                percentile(snapshot, 99) / 1e3, percentile(snapshot, 99.9) / 1e3, max.get() / 1e3);
+    }
+}
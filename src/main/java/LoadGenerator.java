@@ -0,0 +1,409 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 无界面的压测入口：对一个服务端打开多个 {@link SecureClient} 会话，按固定速率发送消息，
+ * 可选地让每个会话推送一个文件，结束时报告握手和消息往返的延迟分位数以及吞吐量。
+ * <p>
+ * 默认在本进程内启动一个回显服务端（{@code --server nio}，或 {@code threaded} 使用每连接一线程的服务端），
+ * 客户端经回环地址连接它；{@code --server none} 连接已有的服务端，此时只有对方回显消息才能统计往返延迟。
+ * <p>
+ * 往返延迟从消息<b>计划</b>发出的时刻算起，发送线程落后于计划时排队的时间也计入，
+ * 避免服务端变慢时压测端跟着降速而掩盖延迟。
+ * <p>
+ * 用法：{@code java LoadGenerator --sessions 200 --rate 20 --size 512 --duration 60 [--file 路径]}，
+ * 全部选项见 {@link Options}。收发线程类型仍由 {@code -Dsecure.threads} 选择，会话数很大时建议使用虚拟线程。
+ */
+public class LoadGenerator {
+    /** 消息前缀，后面是计划发送时刻（纳秒）和一个空格，其余为填充 */
+    private static final String PREFIX = "load ";
+
+    /**
+     * 命令行选项，均为 {@code --名称 值} 的形式。
+     */
+    static final class Options {
+        String host = "localhost";
+        int port = 12345;
+        /** 同时打开的会话数 */
+        int sessions = 10;
+        /** 每个会话每秒发送的消息数，0 表示不发消息 */
+        double rate = 10;
+        /** 每条消息的字节数 */
+        int size = 256;
+        /** 发送阶段持续的秒数 */
+        int duration = 30;
+        /** 每个会话开始发消息前推送一次的文件，null 表示不推送 */
+        File file;
+        /** nio、threaded 或 none */
+        String server = "nio";
+        /** 同时进行握手的连接数 */
+        int connectThreads = 16;
+        /** 运行期间输出进度的间隔秒数 */
+        int reportInterval = 5;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            if (args.length % 2 != 0) {
+                throw new IllegalArgumentException("选项必须成对出现: " + Arrays.toString(args));
+            }
+            for (int i = 0; i < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--host":
+                        options.host = value;
+                        break;
+                    case "--port":
+                        options.port = Integer.parseInt(value);
+                        break;
+                    case "--sessions":
+                        options.sessions = Integer.parseInt(value);
+                        break;
+                    case "--rate":
+                        options.rate = Double.parseDouble(value);
+                        break;
+                    case "--size":
+                        options.size = Integer.parseInt(value);
+                        break;
+                    case "--duration":
+                        options.duration = Integer.parseInt(value);
+                        break;
+                    case "--file":
+                        options.file = new File(value);
+                        break;
+                    case "--server":
+                        options.server = value;
+                        break;
+                    case "--connect-threads":
+                        options.connectThreads = Integer.parseInt(value);
+                        break;
+                    case "--report":
+                        options.reportInterval = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("未知选项: " + args[i]);
+                }
+            }
+            if (options.sessions <= 0 || options.rate < 0 || options.duration <= 0 || options.connectThreads <= 0
+                    || options.reportInterval <= 0) {
+                throw new IllegalArgumentException("会话数、时长、握手并发数和报告间隔必须为正数，速率不能为负");
+            }
+            if (options.size < PREFIX.length() + 21) {
+                throw new IllegalArgumentException("消息大小至少为 " + (PREFIX.length() + 21) + " 字节");
+            }
+            if (options.file != null && !options.file.isFile()) {
+                throw new IllegalArgumentException("文件不存在: " + options.file);
+            }
+            return options;
+        }
+    }
+
+    private final Options options;
+    private final ThreadMode threadMode = ThreadMode.fromSystemProperty();
+    private final List<SecureClient> clients = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final LatencyHistogram handshakes = new LatencyHistogram();
+    private final LatencyHistogram roundTrips = new LatencyHistogram();
+    private final LatencyHistogram fileTransfers = new LatencyHistogram();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder fileBytes = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private volatile boolean running = true;
+
+    LoadGenerator(Options options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println("用法: LoadGenerator [--sessions N] [--rate 每会话每秒消息数] [--size 字节] "
+                    + "[--duration 秒] [--file 路径] [--server nio|threaded|none] [--host 主机] [--port 端口] "
+                    + "[--connect-threads N] [--report 秒]");
+            return;
+        }
+        try {
+            Closeable server = startServer(options);
+            try {
+                new LoadGenerator(options).run();
+            } finally {
+                server.close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 按选项在本进程内启动回显服务端，--server none 时返回空操作。
+     */
+    static Closeable startServer(Options options) throws IOException {
+        switch (options.server) {
+            case "none":
+                return () -> {
+                };
+            case "nio": {
+                NioSecureServer server = new NioSecureServer(options.port, new NioSecureServer.Listener() {
+                    @Override
+                    public void onConnected(NioSecureServer.Session session) {
+                    }
+
+                    @Override
+                    public void onMessage(NioSecureServer.Session session, String message) {
+                        try {
+                            session.sendMessage(message);
+                        } catch (Exception e) {
+                            session.close();
+                        }
+                    }
+
+                    @Override
+                    public void onMessage(NioSecureServer.Session session, ByteBuffer message) {
+                        // 按字节原样回显，不经过字符串
+                        try {
+                            session.sendMessage(message);
+                        } catch (Exception e) {
+                            session.close();
+                        }
+                    }
+
+                    @Override
+                    public void onClosed(NioSecureServer.Session session) {
+                    }
+                });
+                server.start();
+                return server;
+            }
+            case "threaded": {
+                ThreadMode threadMode = ThreadMode.fromSystemProperty();
+                ThreadedSecureServer server = new ThreadedSecureServer(options.port, threadMode);
+                threadMode.start("load-echo-acceptor", () -> {
+                    try {
+                        server.serve((id, session) -> {
+                            while (true) {
+                                session.sendMessage(session.receiveMessage());
+                            }
+                        });
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                });
+                return server;
+            }
+            default:
+                throw new IllegalArgumentException("未知的服务端类型: " + options.server);
+        }
+    }
+
+    void run() throws Exception {
+        connectAll();
+        if (clients.isEmpty()) {
+            System.out.println("没有会话连接成功");
+            return;
+        }
+
+        List<File> copies = copyFile();
+        long start = System.nanoTime();
+        for (int i = 0; i < clients.size(); i++) {
+            SecureClient client = clients.get(i);
+            File file = copies.isEmpty() ? null : copies.get(i);
+            threads.add(threadMode.start("load-receiver-" + i, () -> receive(client)));
+            threads.add(threadMode.start("load-sender-" + i, () -> send(client, file)));
+        }
+
+        long end = start + TimeUnit.SECONDS.toNanos(options.duration);
+        long lastSent = 0, lastReceived = 0, lastReport = start;
+        while (System.nanoTime() < end) {
+            long next = Math.min(end, lastReport + TimeUnit.SECONDS.toNanos(options.reportInterval));
+            TimeUnit.NANOSECONDS.sleep(Math.max(0, next - System.nanoTime()));
+            long now = System.nanoTime();
+            long sent = messagesSent.sum(), received = messagesReceived.sum();
+            double seconds = (now - lastReport) / 1e9;
+            System.out.println(String.format("进度 %.0f s: 发出 %.0f 条/s，收到 %.0f 条/s，往返 p99 %.1f ms",
+                    (now - start) / 1e9, (sent - lastSent) / seconds, (received - lastReceived) / seconds,
+                    roundTrips.percentile(99) / 1e6));
+            lastSent = sent;
+            lastReceived = received;
+            lastReport = now;
+        }
+
+        running = false;
+        long elapsed = System.nanoTime() - start;
+        // 给在途消息留出回显的时间
+        Thread.sleep(500);
+        for (SecureClient client : clients) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join(1000);
+        }
+        deleteCopies(copies);
+        System.out.println(report(elapsed));
+    }
+
+    /**
+     * 接收方按文件名写入 received_&lt;文件名&gt;，同名文件并发接收会互相覆盖检查点。
+     * 因此为每个会话建立一个带序号的硬链接（不支持时复制），各会话推送自己的那一份。
+     */
+    private List<File> copyFile() throws IOException {
+        List<File> copies = new ArrayList<>();
+        if (options.file == null)
+            return copies;
+        Path dir = Files.createTempDirectory("load-files");
+        for (int i = 0; i < clients.size(); i++) {
+            Path copy = dir.resolve(i + "-" + options.file.getName());
+            try {
+                Files.createLink(copy, options.file.toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(options.file.toPath(), copy);
+            }
+            copies.add(copy.toFile());
+        }
+        return copies;
+    }
+
+    /**
+     * 删除临时副本；服务端在本进程内时一并删除它收到的文件。
+     */
+    private void deleteCopies(List<File> copies) {
+        for (File copy : copies) {
+            if (!"none".equals(options.server)) {
+                new File("received_" + copy.getName()).delete();
+            }
+            copy.delete();
+        }
+        if (!copies.isEmpty()) {
+            copies.get(0).getParentFile().delete();
+        }
+    }
+
+    /**
+     * 以 connectThreads 的并发度建立全部会话，逐个记录握手耗时（含 TCP 连接）。
+     */
+    private void connectAll() throws Exception {
+        System.out.println("正在建立 " + options.sessions + " 个会话...");
+        ExecutorService pool = Executors.newFixedThreadPool(options.connectThreads);
+        try {
+            List<Future<SecureClient>> pending = new ArrayList<>();
+            for (int i = 0; i < options.sessions; i++) {
+                pending.add(pool.submit(() -> {
+                    long start = System.nanoTime();
+                    SecureClient client = new SecureClient(options.host, options.port);
+                    handshakes.record(System.nanoTime() - start);
+                    return client;
+                }));
+            }
+            for (Future<SecureClient> future : pending) {
+                try {
+                    clients.add(future.get());
+                } catch (Exception e) {
+                    connectFailures.increment();
+                    System.out.println("建立会话失败: " + e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void send(SecureClient client, File file) {
+        try {
+            if (file != null) {
+                long start = System.nanoTime();
+                client.sendFile(file);
+                fileTransfers.record(System.nanoTime() - start);
+                fileBytes.add(file.length());
+            }
+            if (options.rate == 0)
+                return;
+            long interval = (long) (1e9 / options.rate);
+            char[] padding = new char[options.size];
+            Arrays.fill(padding, 'x');
+            // 各会话错开起始时刻，避免所有消息集中在同一瞬间
+            long scheduled = System.nanoTime() + ThreadLocalRandom.current().nextLong(interval);
+            while (running) {
+                long wait = scheduled - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                    continue;
+                }
+                String head = PREFIX + scheduled + " ";
+                String message = head + new String(padding, 0, options.size - head.length());
+                client.sendMessage(message);
+                messagesSent.increment();
+                bytesSent.add(message.length());
+                scheduled += interval;
+            }
+        } catch (Exception e) {
+            if (running) {
+                errors.increment();
+                System.out.println("发送失败: " + e.getMessage());
+            }
+        }
+    }
+
+    private void receive(SecureClient client) {
+        try {
+            while (true) {
+                String message = client.receiveMessage();
+                long now = System.nanoTime();
+                if (!message.startsWith(PREFIX))
+                    continue; // 服务端的文件回执等
+                int end = message.indexOf(' ', PREFIX.length());
+                roundTrips.record(now - Long.parseLong(message.substring(PREFIX.length(), end)));
+                messagesReceived.increment();
+                bytesReceived.add(message.length());
+            }
+        } catch (Exception e) {
+            if (running) {
+                errors.increment();
+                System.out.println("接收失败: " + e.getMessage());
+            }
+        }
+    }
+
+    private String report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        StringBuilder sb = new StringBuilder("压测结果");
+        String nl = System.lineSeparator();
+        sb.append(String.format("%n会话: %d 个成功，%d 个失败，运行 %.1f s，错误 %d 次", clients.size(),
+                connectFailures.sum(), seconds, errors.sum()));
+        sb.append(nl).append("握手: ").append(handshakes.summary());
+        sb.append(String.format("%n消息: 发出 %d 条（%.0f 条/s，%.2f MB/s），收到 %d 条（%.0f 条/s，%.2f MB/s）",
+                messagesSent.sum(), messagesSent.sum() / seconds, bytesSent.sum() / 1e6 / seconds,
+                messagesReceived.sum(), messagesReceived.sum() / seconds, bytesReceived.sum() / 1e6 / seconds));
+        sb.append(nl).append("往返: ").append(roundTrips.summary());
+        if (options.file != null) {
+            LatencyHistogram.Summary files = fileTransfers.summary();
+            double busySeconds = files.getMean() * files.getCount() / 1e6;
+            sb.append(nl).append("文件: ").append(files);
+            sb.append(String.format("，共 %.1f MB，单个会话平均 %.1f MB/s", fileBytes.sum() / 1e6,
+                    busySeconds == 0 ? 0 : fileBytes.sum() / 1e6 / busySeconds));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,458 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 加密的聊天记录：按时间分段的只追加日志，经内存映射写入，每段附带按会话划分的稀疏偏移索引，供重连后回放。
+ * <p>
+ * 每条记录为 [int 密文长度][long 时间][long 会话 ID][12 字节 nonce][密文]，明文是 1 字节方向加 UTF-8 文本，
+ * 前 20 字节作为 GCM 附加数据参与认证。会话 ID 是会话名的 HMAC，日志中不出现明文会话名。
+ * 记录密钥和会话 ID 密钥都由密钥文件（{@code -Dsecure.history.keyFile}，默认日志目录下的 history.key）派生，
+ * 该文件在第一次使用时随机生成；丢失密钥文件后记录无法解读。
+ * <p>
+ * 每段日志预分配 {@code -Dsecure.history.segmentMB}（默认 {@value #DEFAULT_SEGMENT_MB}）并整段映射，
+ * 记录直接加密进映射区域，先写记录体再写长度字段，长度为 0 处即为段尾。段写满或已满
+ * {@code -Dsecure.history.segmentHours}（默认 {@value #DEFAULT_SEGMENT_HOURS}）小时后换新段，旧段刷盘并截断到实际长度；
+ * 结束时间早于 {@code -Dsecure.history.retentionDays}（默认 {@value #DEFAULT_RETENTION_DAYS}，0 为永久保留）天前的段被删除。
+ * 每次打开都从新段开始写。
+ * <p>
+ * 索引文件与段同名、扩展名为 .idx，每项为 [会话 ID, 时间, 偏移]：会话在段内的第一条记录，以及与该会话上一个索引项
+ * 相距超过 {@value #INDEX_INTERVAL} 字节的记录各有一项。回放时跳过不含该会话的段，从早于起始时间的最后一个索引项开始扫描，
+ * 连续 {@value #INDEX_INTERVAL} 字节没有该会话的记录时直接跳到下一个索引项。段以只读方式映射，
+ * 每条记录只解密到一个复用的缓冲区，整段内容不会读进 Java 堆。
+ */
+public class MessageHistory implements Closeable {
+    public static final String DIR_PROPERTY = "secure.history.dir";
+    public static final String KEY_FILE_PROPERTY = "secure.history.keyFile";
+    public static final String SEGMENT_MB_PROPERTY = "secure.history.segmentMB";
+    public static final String SEGMENT_HOURS_PROPERTY = "secure.history.segmentHours";
+    public static final String RETENTION_DAYS_PROPERTY = "secure.history.retentionDays";
+    public static final String REPLAY_HOURS_PROPERTY = "secure.history.replayHours";
+    public static final int DEFAULT_SEGMENT_MB = 64;
+    public static final int DEFAULT_SEGMENT_HOURS = 24;
+    public static final int DEFAULT_RETENTION_DAYS = 365;
+    public static final int DEFAULT_REPLAY_HOURS = 24;
+    /** 同一会话相邻两个索引项之间的最大距离（字节） */
+    static final int INDEX_INTERVAL = 4096;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int MAGIC = 0x48495331; // "HIS1"
+    private static final int SEGMENT_HEADER = 4;
+    private static final int AAD_LENGTH = 4 + 8 + 8;
+    private static final int RECORD_HEADER = AAD_LENGTH + CipherSession.NONCE_LENGTH;
+    private static final int INDEX_ENTRY = 8 + 8 + 4;
+    private static final byte INCOMING = 0;
+    private static final byte OUTGOING = 1;
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final SecureRandom random = new SecureRandom();
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+
+    /**
+     * 回放时逐条接收记录。
+     */
+    public interface Visitor {
+        /**
+         * @param time     记录时间（毫秒）。
+         * @param outgoing 本端发出的消息为 true，收到的为 false。
+         */
+        void accept(long time, boolean outgoing, String text) throws Exception;
+    }
+
+    /** 索引项：某会话在段内 offset 处的记录，时间为 time */
+    private static final class Mark {
+        final long time;
+        final int offset;
+
+        Mark(long time, int offset) {
+            this.time = time;
+            this.offset = offset;
+        }
+    }
+
+    /** 一段日志及其索引，覆盖从 base 到下一段 base 之前的时间 */
+    private static final class Segment {
+        final long base;
+        final File log;
+        final File index;
+        final Map<Long, List<Mark>> marks = new HashMap<>();
+
+        Segment(File dir, long base) {
+            this.base = base;
+            this.log = new File(dir, base + LOG_SUFFIX);
+            this.index = new File(dir, base + INDEX_SUFFIX);
+        }
+    }
+
+    private final File dir;
+    private final long segmentBytes;
+    private final long segmentMillis;
+    private final long retentionMillis;
+    private final SecretKey recordKey;
+    private final SecretKey conversationKey;
+    private final Cipher cipher;
+    private final List<Segment> segments = new ArrayList<>();
+
+    private Segment active;
+    private FileChannel logChannel;
+    private FileChannel indexChannel;
+    private MappedByteBuffer map;
+    private int position;
+    private long lastTime;
+
+    /**
+     * 打开或创建 dir 中的记录。
+     *
+     * @param segmentBytes    每段预分配的字节数，超过一条记录的段会按记录大小分配。
+     * @param segmentMillis   每段最长覆盖的时间（毫秒）。
+     * @param retentionMillis 保留时间（毫秒），不大于 0 时永久保留。
+     */
+    public MessageHistory(File dir, File keyFile, long segmentBytes, long segmentMillis, long retentionMillis)
+            throws Exception {
+        if (segmentBytes <= SEGMENT_HEADER + RECORD_HEADER || segmentBytes > Integer.MAX_VALUE
+                || segmentMillis <= 0) {
+            throw new IllegalArgumentException("非法的聊天记录分段参数: " + segmentBytes + "/" + segmentMillis);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("无法创建聊天记录目录: " + dir);
+        }
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.segmentMillis = segmentMillis;
+        this.retentionMillis = retentionMillis;
+        SecretKey master = loadKey(keyFile);
+        this.recordKey = CryptoUtil.deriveKey(master, "history-record");
+        this.conversationKey = CryptoUtil.deriveKey(master, "history-conversation");
+        this.cipher = Cipher.getInstance(TRANSFORMATION);
+
+        File[] logs = dir.listFiles((d, name) -> name.endsWith(LOG_SUFFIX));
+        if (logs != null) {
+            for (File log : logs) {
+                String name = log.getName();
+                try {
+                    long base = Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()));
+                    segments.add(new Segment(dir, base));
+                } catch (NumberFormatException e) {
+                    // 不是本类写的文件
+                }
+            }
+        }
+        segments.sort((a, b) -> Long.compare(a.base, b.base));
+        for (Segment segment : segments) {
+            loadIndex(segment);
+            lastTime = Math.max(lastTime, segment.base);
+            for (List<Mark> marks : segment.marks.values()) {
+                lastTime = Math.max(lastTime, marks.get(marks.size() - 1).time);
+            }
+        }
+        long now = System.currentTimeMillis();
+        roll(now, 0);
+    }
+
+    /**
+     * 设置了 -Dsecure.history.dir 时按系统属性打开，否则返回 null（不保存聊天记录）。
+     */
+    public static MessageHistory fromSystemProperty() throws Exception {
+        String path = System.getProperty(DIR_PROPERTY);
+        if (path == null || path.isEmpty())
+            return null;
+        File dir = new File(path);
+        File keyFile = new File(System.getProperty(KEY_FILE_PROPERTY, new File(dir, "history.key").getPath()));
+        return new MessageHistory(dir, keyFile,
+                Integer.getInteger(SEGMENT_MB_PROPERTY, DEFAULT_SEGMENT_MB) * 1024L * 1024L,
+                Integer.getInteger(SEGMENT_HOURS_PROPERTY, DEFAULT_SEGMENT_HOURS) * 3600_000L,
+                Integer.getInteger(RETENTION_DAYS_PROPERTY, DEFAULT_RETENTION_DAYS) * 86400_000L);
+    }
+
+    /**
+     * 新连接建立时回放的起始时间：-Dsecure.history.replayHours（默认 {@value #DEFAULT_REPLAY_HOURS}）小时前。
+     */
+    public static long replaySince() {
+        return System.currentTimeMillis() - Integer.getInteger(REPLAY_HOURS_PROPERTY, DEFAULT_REPLAY_HOURS) * 3600_000L;
+    }
+
+    /**
+     * 回放时显示的时间。
+     */
+    public static String format(long time) {
+        return TIME_FORMAT.format(Instant.ofEpochMilli(time));
+    }
+
+    /**
+     * 追加一条消息。
+     *
+     * @param conversation 会话名，例如对方的地址。
+     * @param outgoing     本端发出的消息为 true。
+     */
+    public synchronized void append(String conversation, boolean outgoing, String text) throws Exception {
+        if (map == null) {
+            throw new IOException("聊天记录已关闭");
+        }
+        ByteBuffer plain = ByteBuffer.allocate(1 + Utf8.encodedLength(text));
+        plain.put(outgoing ? OUTGOING : INCOMING);
+        Utf8.encode(text, plain);
+        plain.flip();
+        int sealed = CipherSession.sealedLength(plain.remaining());
+        int length = RECORD_HEADER + sealed;
+
+        long now = Math.max(System.currentTimeMillis(), lastTime);
+        if (now - active.base >= segmentMillis || position + length > map.capacity()) {
+            roll(now, length);
+        }
+        now = Math.max(now, active.base);
+        long id = conversationId(conversation);
+
+        byte[] aad = ByteBuffer.allocate(AAD_LENGTH).putInt(sealed).putLong(now).putLong(id).array();
+        byte[] nonce = new byte[CipherSession.NONCE_LENGTH];
+        random.nextBytes(nonce);
+        ByteBuffer out = map.duplicate();
+        out.position(position + 4);
+        out.putLong(now).putLong(id).put(nonce);
+        cipher.init(Cipher.ENCRYPT_MODE, recordKey, new GCMParameterSpec(CipherSession.TAG_LENGTH * 8, nonce));
+        cipher.updateAAD(aad);
+        cipher.doFinal(plain, out);
+        // 长度字段最后写，读者看到非 0 长度时记录已完整
+        map.putInt(position, sealed);
+
+        List<Mark> marks = active.marks.computeIfAbsent(id, k -> new ArrayList<>());
+        if (marks.isEmpty() || position - marks.get(marks.size() - 1).offset > INDEX_INTERVAL) {
+            marks.add(new Mark(now, position));
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY).putLong(id).putLong(now).putInt(position);
+            entry.flip();
+            while (entry.hasRemaining()) {
+                indexChannel.write(entry);
+            }
+        }
+        position += length;
+        lastTime = now;
+    }
+
+    /**
+     * 按时间顺序回放 conversation 中时间不早于 since 的记录。可以与 {@link #append} 同时调用，
+     * 回放开始后追加的记录不一定包括在内。
+     *
+     * @throws IOException 如果记录被篡改或损坏。
+     */
+    public void replay(String conversation, long since, Visitor visitor) throws Exception {
+        long id = conversationId(conversation);
+        List<File> logs = new ArrayList<>();
+        List<Integer> ends = new ArrayList<>();
+        List<List<Mark>> spans = new ArrayList<>();
+        synchronized (this) {
+            for (int i = 0; i < segments.size(); i++) {
+                Segment segment = segments.get(i);
+                if (i + 1 < segments.size() && segments.get(i + 1).base <= since)
+                    continue;
+                List<Mark> marks = segment.marks.get(id);
+                if (marks == null)
+                    continue;
+                logs.add(segment.log);
+                ends.add(segment == active ? position : -1);
+                spans.add(new ArrayList<>(marks));
+            }
+        }
+        Cipher decryptor = Cipher.getInstance(TRANSFORMATION);
+        ByteBuffer plain = ByteBuffer.allocate(256);
+        byte[] aad = new byte[AAD_LENGTH];
+        byte[] nonce = new byte[CipherSession.NONCE_LENGTH];
+        for (int s = 0; s < logs.size(); s++) {
+            List<Mark> marks = spans.get(s);
+            MappedByteBuffer log;
+            try (FileChannel channel = FileChannel.open(logs.get(s).toPath(), StandardOpenOption.READ)) {
+                long end = ends.get(s) >= 0 ? ends.get(s) : Math.min(channel.size(), Integer.MAX_VALUE);
+                log = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+            }
+            int next = 0;
+            for (int i = 1; i < marks.size() && marks.get(i).time < since; i++) {
+                next = i;
+            }
+            int offset = marks.get(next).offset;
+            int lastSeen = offset;
+            while (offset + RECORD_HEADER <= log.capacity()) {
+                int sealed = log.getInt(offset);
+                if (sealed < CipherSession.TAG_LENGTH || sealed > log.capacity() - offset - RECORD_HEADER)
+                    break; // 段尾
+                if (offset - lastSeen > INDEX_INTERVAL) {
+                    // 之后该会话的下一条记录必然有索引项
+                    if (next >= marks.size())
+                        break;
+                    offset = marks.get(next).offset;
+                    lastSeen = offset;
+                    continue;
+                }
+                long time = log.getLong(offset + 4);
+                if (log.getLong(offset + 12) == id) {
+                    lastSeen = offset;
+                    while (next < marks.size() && marks.get(next).offset <= offset) {
+                        next++;
+                    }
+                    if (time >= since) {
+                        log.get(offset, aad);
+                        log.get(offset + AAD_LENGTH, nonce);
+                        if (plain.capacity() < sealed) {
+                            plain = ByteBuffer.allocate(sealed);
+                        }
+                        plain.clear();
+                        try {
+                            decryptor.init(Cipher.DECRYPT_MODE, recordKey,
+                                    new GCMParameterSpec(CipherSession.TAG_LENGTH * 8, nonce));
+                            decryptor.updateAAD(aad);
+                            decryptor.doFinal(log.slice(offset + RECORD_HEADER, sealed), plain);
+                        } catch (AEADBadTagException e) {
+                            throw new IOException("聊天记录校验失败: " + logs.get(s).getName() + "@" + offset, e);
+                        }
+                        plain.flip();
+                        boolean outgoing = plain.get() == OUTGOING;
+                        visitor.accept(time, outgoing, Utf8.decode(plain));
+                    }
+                }
+                offset += RECORD_HEADER + sealed;
+            }
+        }
+    }
+
+    /**
+     * 刷盘并关闭当前段。
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        seal();
+    }
+
+    /**
+     * 封存当前段，开始一个新段并删除过期的段。
+     *
+     * @param needed 新段至少要容纳的记录长度。
+     */
+    private void roll(long now, int needed) throws IOException {
+        seal();
+        long base = Math.max(now, lastTime + 1);
+        if (!segments.isEmpty()) {
+            base = Math.max(base, segments.get(segments.size() - 1).base + 1);
+        }
+        long capacity = Math.max(segmentBytes, SEGMENT_HEADER + (long) needed);
+        Segment segment = new Segment(dir, base);
+        try (RandomAccessFile file = new RandomAccessFile(segment.log, "rw")) {
+            file.setLength(capacity);
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+        logChannel = FileChannel.open(segment.log.toPath(), StandardOpenOption.WRITE);
+        indexChannel = FileChannel.open(segment.index.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        map.putInt(0, MAGIC);
+        position = SEGMENT_HEADER;
+        segments.add(segment);
+        active = segment;
+        expire(now);
+    }
+
+    private void seal() throws IOException {
+        if (map == null)
+            return;
+        try {
+            map.force();
+            map = null;
+            try {
+                logChannel.truncate(position);
+            } catch (IOException e) {
+                // 有的平台不允许截断仍被映射的文件，段尾的 0 同样标志结束
+            }
+            indexChannel.force(false);
+        } finally {
+            logChannel.close();
+            indexChannel.close();
+        }
+    }
+
+    /**
+     * 删除结束时间（下一段的起始时间）早于保留期限的段，当前段不会被删除。
+     */
+    private void expire(long now) {
+        if (retentionMillis <= 0)
+            return;
+        while (segments.size() > 1 && segments.get(1).base < now - retentionMillis) {
+            Segment expired = segments.remove(0);
+            expired.log.delete();
+            expired.index.delete();
+        }
+    }
+
+    private void loadIndex(Segment segment) throws IOException {
+        if (!segment.index.isFile())
+            return;
+        long length = segment.log.length();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(segment.index)))) {
+            for (long i = segment.index.length() / INDEX_ENTRY; i > 0; i--) {
+                long id = in.readLong();
+                long time = in.readLong();
+                int offset = in.readInt();
+                // 崩溃时索引可能比日志先落盘
+                if (offset >= SEGMENT_HEADER && offset < length) {
+                    segment.marks.computeIfAbsent(id, k -> new ArrayList<>()).add(new Mark(time, offset));
+                }
+            }
+        } catch (EOFException e) {
+            // 最后一项不完整
+        }
+    }
+
+    private long conversationId(String conversation) throws Exception {
+        return ByteBuffer.wrap(CryptoUtil.hmac(conversationKey, conversation.getBytes(StandardCharsets.UTF_8)))
+                .getLong();
+    }
+
+    /**
+     * 读取密钥文件，不存在时生成一个只有属主可读写的新文件。
+     */
+    private static SecretKey loadKey(File keyFile) throws Exception {
+        if (keyFile.isFile()) {
+            byte[] raw = Files.readAllBytes(keyFile.toPath());
+            if (raw.length != 16 && raw.length != 32) {
+                throw new IOException("聊天记录密钥文件已损坏: " + keyFile);
+            }
+            return new SecretKeySpec(raw, "AES");
+        }
+        SecretKey key = CryptoUtil.generateAESKey();
+        File parent = keyFile.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("无法创建密钥文件目录: " + parent);
+        }
+        File temp = new File(parent, keyFile.getName() + ".tmp");
+        Files.write(temp.toPath(), key.getEncoded());
+        try {
+            Files.setPosixFilePermissions(temp.toPath(), PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // 非 POSIX 文件系统
+        }
+        Files.move(temp.toPath(), keyFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return key;
+    }
+}
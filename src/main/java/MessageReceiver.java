@@ -0,0 +1,174 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link SecureClient} 和 {@link SecureServer} 共用的接收逻辑：在接收线程上读帧，处理 SETTINGS、
+ * WINDOW_UPDATE 和文件帧，直到读到一条聊天消息，再按调用方选择的形式（字符串、调用方的缓冲区或
+ * {@link BufferPool} 借出的缓冲区）交出。文件接收完整等需要告诉上层的事件以提示文字的形式代替消息交出。
+ * <p>
+ * 只应由一个接收线程使用。
+ */
+public class MessageReceiver {
+
+    /** 有增量文件在后台复制时，等待下一帧期间检查复制是否完成的间隔（毫秒） */
+    private static final long POLL_INTERVAL = 10;
+
+    /**
+     * 处理一帧服务端下发的群组帧（GROUP_KEY 或 GROUP_MESSAGE），密文由处理者读取。
+     */
+    public interface FrameHandler {
+        /**
+         * @return 要交给上层的提示文字，没有时返回 null。
+         */
+        String handleFrame(FrameType type) throws Exception;
+    }
+
+    private final SecureChannel channel;
+    private final FrameScheduler scheduler;
+    private final FileTransfer fileTransfer;
+    private final ParallelFileTransfer parallelTransfer;
+    private final FrameHandler groupFrames;
+    /** 缓冲区不足而未交出的提示文字，以及帧头已读出、密文未读的聊天消息 */
+    private String pendingNotice;
+    private boolean pendingMessage;
+
+    /**
+     * @param groupFrames 处理群组帧，为 null 时群组帧和其他未知帧一样由 {@link FileTransfer} 报错。
+     */
+    public MessageReceiver(SecureChannel channel, FrameScheduler scheduler, FileTransfer fileTransfer,
+            ParallelFileTransfer parallelTransfer, FrameHandler groupFrames) {
+        this.channel = channel;
+        this.scheduler = scheduler;
+        this.fileTransfer = fileTransfer;
+        this.parallelTransfer = parallelTransfer;
+        this.groupFrames = groupFrames;
+    }
+
+    public String receiveMessage() throws Exception {
+        String notice = takeNotice();
+        if (notice != null)
+            return notice;
+        String message = channel.readString();
+        pendingMessage = false;
+        return message;
+    }
+
+    /**
+     * 接收下一条消息，以 UTF-8 字节写入 dst（可以是直接缓冲区），内容与 {@link #receiveMessage()} 相同。
+     * dst 放不下时抛出 {@link BufferOverflowException}，消息保留，可以换用更大的缓冲区再次调用。
+     *
+     * @return 写入 dst 的字节数。
+     */
+    public int receiveMessage(ByteBuffer dst) throws Exception {
+        String notice = takeNotice();
+        if (notice == null) {
+            int n = channel.readPayload(dst);
+            pendingMessage = false;
+            return n;
+        }
+        try {
+            return Utf8.encode(notice, dst);
+        } catch (BufferOverflowException e) {
+            pendingNotice = notice;
+            throw e;
+        }
+    }
+
+    /**
+     * 接收下一条消息到从 {@link BufferPool#shared()} 借出的缓冲区，返回时已 flip，用完后须归还。
+     */
+    public ByteBuffer receivePooledMessage() throws Exception {
+        String notice = takeNotice();
+        if (notice == null) {
+            ByteBuffer buffer = channel.readPayload(BufferPool.shared());
+            pendingMessage = false;
+            return buffer;
+        }
+        ByteBuffer buffer = BufferPool.shared().acquire(Utf8.encodedLength(notice));
+        Utf8.encode(notice, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 上次因缓冲区不足而保留的提示文字，没有时读到下一条消息为止。
+     */
+    private String takeNotice() throws Exception {
+        String notice = pendingNotice;
+        if (notice != null) {
+            pendingNotice = null;
+            return notice;
+        }
+        if (pendingMessage)
+            return null;
+        notice = nextMessage();
+        // 聊天消息的帧头已读出，读取成功后清除；因缓冲区不足失败时下次调用直接读它
+        pendingMessage = notice == null;
+        return notice;
+    }
+
+    /**
+     * 处理非聊天帧，直到读到一条聊天消息的帧头（返回 null，密文尚未读取）或有要交给上层的提示文字。
+     */
+    private String nextMessage() throws Exception {
+        while (true) {
+            String finished = awaitFrame();
+            if (finished != null) {
+                return "收到文件: " + finished;
+            }
+            FrameType type = channel.readHeader();
+            scheduler.replenish();
+            if (type == FrameType.MESSAGE) {
+                return null;
+            }
+            if (type == FrameType.SETTINGS) {
+                channel.readSettings();
+                continue;
+            }
+            if (type == FrameType.WINDOW_UPDATE) {
+                int len = channel.readPayload();
+                scheduler.windowUpdate(channel.frameBuffer(), len);
+                continue;
+            }
+            String notice = groupFrames != null && isGroupFrame(type) ? groupFrames.handleFrame(type)
+                    : fileFrame(type);
+            if (notice != null) {
+                return notice;
+            }
+        }
+    }
+
+    /**
+     * 有增量文件在后台复制本地块时，在下一帧到达前等待复制完成，以免文件要等到对方再发来数据才报告。
+     *
+     * @return 期间由复制线程完成的文件名，没有时返回 null，可以读取下一帧。
+     */
+    private String awaitFrame() throws Exception {
+        String name = fileTransfer.pollFinished(0);
+        while (name == null && fileTransfer.isCopying() && !channel.hasInput()) {
+            name = fileTransfer.pollFinished(POLL_INTERVAL);
+        }
+        // 复制线程可能在最后一次检查之后完成
+        return name != null ? name : fileTransfer.pollFinished(0);
+    }
+
+    /**
+     * 文件相关帧：文件接收完整时才交给上层，其余返回 null 继续读取下一帧。
+     */
+    private String fileFrame(FrameType type) throws Exception {
+        String fileName = type == FrameType.PARALLEL_OPEN || type == FrameType.PARALLEL_DONE
+                ? parallelTransfer.handleFrame(type)
+                : fileTransfer.handleFrame(type);
+        return fileName == null ? null : "收到文件: " + fileName;
+    }
+
+    private static boolean isGroupFrame(FrameType type) {
+        switch (type) {
+            case GROUP_KEY:
+            case GROUP_MESSAGE:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * 连接的收发统计：帧的字节数（不含握手）、帧数、消息数、套接字写出次数、文件传输，以及握手、加密、解密的延迟直方图。
+ * <p>
+ * 每个连接有自己的实例，记录时同时累加到进程汇总 {@link #global()}。计数器是 {@link LongAdder}，
+ * 直方图是 {@link LatencyHistogram}，记录方法不加锁、不分配对象，可以放在收发热路径上。
+ * 直方图每个约 23 KB，默认只有进程汇总有；{@code -Dsecure.metrics.connections=true} 时每个连接也有自己的直方图。
+ * <p>
+ * 导出方式：
+ * <ul>
+ * <li>JMX：进程汇总注册一个 MXBean，名称为 {@code SecureChat:type=Metrics,name=total}；
+ * {@code -Dsecure.metrics.connections=true} 时每个打开的连接也各注册一个，连接关闭时注销。
+ * {@code -Dsecure.metrics.jmx=false} 全部关闭。</li>
+ * <li>定期快照：{@code -Dsecure.metrics.report=stdout} 或文件路径，每隔 {@code -Dsecure.metrics.interval}
+ * 秒（默认 10）输出一次进程汇总和各连接的统计，写文件时追加。</li>
+ * </ul>
+ */
+public class Metrics implements MetricsMXBean {
+    public static final String JMX_PROPERTY = "secure.metrics.jmx";
+    public static final String CONNECTIONS_PROPERTY = "secure.metrics.connections";
+    public static final String REPORT_PROPERTY = "secure.metrics.report";
+    public static final String INTERVAL_PROPERTY = "secure.metrics.interval";
+    /** 每次快照最多列出的连接数，按发送和接收的总字节数从多到少 */
+    static final int MAX_REPORTED_CONNECTIONS = 20;
+
+    private static final AtomicLong nextId = new AtomicLong(1);
+    private static final Map<String, Metrics> connections = new ConcurrentHashMap<>();
+    private static volatile Metrics global;
+
+    private final String name;
+    private final Metrics parent;
+    private final LongAdder openConnections = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder framesReceived = new LongAdder();
+    private final LongAdder socketWrites = new LongAdder();
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder filesSent = new LongAdder();
+    private final LongAdder filesReceived = new LongAdder();
+    private final LongAdder fileBytesSent = new LongAdder();
+    private final LongAdder fileBytesReceived = new LongAdder();
+    private final LongAdder fileSendNanos = new LongAdder();
+    private final LongAdder fileReceiveNanos = new LongAdder();
+    /** 连接未开启单独统计时为 null，只记录到进程汇总 */
+    private final LatencyHistogram handshake;
+    private final LatencyHistogram encrypt;
+    private final LatencyHistogram decrypt;
+    private ObjectName objectName;
+
+    private Metrics(String name, Metrics parent, boolean histograms) {
+        this.name = name;
+        this.parent = parent;
+        this.handshake = histograms ? new LatencyHistogram() : null;
+        this.encrypt = histograms ? new LatencyHistogram() : null;
+        this.decrypt = histograms ? new LatencyHistogram() : null;
+    }
+
+    /**
+     * 进程汇总。第一次调用时注册 JMX 并按系统属性启动定期快照。
+     */
+    public static Metrics global() {
+        Metrics metrics = global;
+        if (metrics == null) {
+            synchronized (Metrics.class) {
+                metrics = global;
+                if (metrics == null) {
+                    metrics = new Metrics("total", null, true);
+                    metrics.register();
+                    global = metrics;
+                    startReporter();
+                }
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * 为一个新连接创建统计，名称为 role 加进程内递增的序号，例如 client-3。用完后调用 {@link #close()}。
+     * 只有 {@code -Dsecure.metrics.connections=true} 时才分配连接自己的直方图并注册 JMX。
+     */
+    public static Metrics connection(String role) {
+        boolean detailed = Boolean.getBoolean(CONNECTIONS_PROPERTY);
+        Metrics metrics = new Metrics(role + "-" + nextId.getAndIncrement(), global(), detailed);
+        metrics.openConnections.increment();
+        metrics.parent.openConnections.increment();
+        connections.put(metrics.name, metrics);
+        if (detailed)
+            metrics.register();
+        return metrics;
+    }
+
+    /**
+     * 连接关闭：从汇总的打开连接数中减去，并注销 JMX。重复调用无效果。
+     */
+    public void close() {
+        if (parent == null || connections.remove(name) == null)
+            return;
+        openConnections.decrement();
+        parent.openConnections.decrement();
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                // 已经注销
+            }
+        }
+    }
+
+    void frameSent(FrameType type, int wireBytes) {
+        for (Metrics m = this; m != null; m = m.parent) {
+            m.bytesSent.add(wireBytes);
+            m.framesSent.increment();
+            if (type == FrameType.MESSAGE)
+                m.messagesSent.increment();
+        }
+    }
+
+    /**
+     * 一次向套接字写出的系统调用，合并写出时一次可能包含多帧。
+     */
+    void socketWrite() {
+        for (Metrics m = this; m != null; m = m.parent) {
+            m.socketWrites.increment();
+        }
+    }
+
+    void frameReceived(FrameType type, int wireBytes) {
+        for (Metrics m = this; m != null; m = m.parent) {
+            m.bytesReceived.add(wireBytes);
+            m.framesReceived.increment();
+            if (type == FrameType.MESSAGE)
+                m.messagesReceived.increment();
+        }
+    }
+
+    void handshake(long nanos) {
+        for (Metrics m = this; m != null; m = m.parent) {
+            if (m.handshake != null)
+                m.handshake.record(nanos);
+        }
+    }
+
+    void encrypted(long nanos) {
+        for (Metrics m = this; m != null; m = m.parent) {
+            if (m.encrypt != null)
+                m.encrypt.record(nanos);
+        }
+    }
+
+    void decrypted(long nanos) {
+        for (Metrics m = this; m != null; m = m.parent) {
+            if (m.decrypt != null)
+                m.decrypt.record(nanos);
+        }
+    }
+
+    void fileSent(long bytes, long nanos) {
+        for (Metrics m = this; m != null; m = m.parent) {
+            m.filesSent.increment();
+            m.fileBytesSent.add(bytes);
+            m.fileSendNanos.add(nanos);
+        }
+    }
+
+    void fileReceived(long bytes, long nanos) {
+        for (Metrics m = this; m != null; m = m.parent) {
+            m.filesReceived.increment();
+            m.fileBytesReceived.add(bytes);
+            m.fileReceiveNanos.add(nanos);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getOpenConnections() {
+        return openConnections.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getFramesSent() {
+        return framesSent.sum();
+    }
+
+    @Override
+    public long getFramesReceived() {
+        return framesReceived.sum();
+    }
+
+    @Override
+    public long getSocketWrites() {
+        return socketWrites.sum();
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    @Override
+    public long getFilesSent() {
+        return filesSent.sum();
+    }
+
+    @Override
+    public long getFilesReceived() {
+        return filesReceived.sum();
+    }
+
+    @Override
+    public long getFileBytesSent() {
+        return fileBytesSent.sum();
+    }
+
+    @Override
+    public long getFileBytesReceived() {
+        return fileBytesReceived.sum();
+    }
+
+    @Override
+    public double getFileSendMBps() {
+        return rate(fileBytesSent.sum(), fileSendNanos.sum());
+    }
+
+    @Override
+    public double getFileReceiveMBps() {
+        return rate(fileBytesReceived.sum(), fileReceiveNanos.sum());
+    }
+
+    private static double rate(long bytes, long nanos) {
+        return nanos == 0 ? 0 : bytes / 1e6 / (nanos / 1e9);
+    }
+
+    @Override
+    public LatencyHistogram.Summary getHandshakeLatency() {
+        return summary(handshake);
+    }
+
+    @Override
+    public LatencyHistogram.Summary getEncryptLatency() {
+        return summary(encrypt);
+    }
+
+    @Override
+    public LatencyHistogram.Summary getDecryptLatency() {
+        return summary(decrypt);
+    }
+
+    private static LatencyHistogram.Summary summary(LatencyHistogram histogram) {
+        return histogram == null ? null : histogram.summary();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(name);
+        if (parent == null) {
+            sb.append(" 打开连接 ").append(getOpenConnections());
+        }
+        sb.append(String.format("；发送 %.1f MB %d 帧 %d 消息 %d 次写出；接收 %.1f MB %d 帧 %d 消息",
+                getBytesSent() / 1e6, getFramesSent(), getMessagesSent(), getSocketWrites(), getBytesReceived() / 1e6,
+                getFramesReceived(), getMessagesReceived()));
+        sb.append(String.format("；文件 发出 %d 个 %.1f MB/s 收到 %d 个 %.1f MB/s", getFilesSent(), getFileSendMBps(),
+                getFilesReceived(), getFileReceiveMBps()));
+        if (handshake != null) {
+            sb.append("；握手 ").append(getHandshakeLatency());
+            sb.append("；加密 ").append(getEncryptLatency());
+            sb.append("；解密 ").append(getDecryptLatency());
+        }
+        return sb.toString();
+    }
+
+    private void register() {
+        if ("false".equalsIgnoreCase(System.getProperty(JMX_PROPERTY)))
+            return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("SecureChat:type=Metrics,name=" + name);
+            server.registerMBean(this, objectName);
+            this.objectName = objectName;
+        } catch (Exception e) {
+            System.out.println("注册 JMX 统计失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 进程汇总和打开最多的若干连接的当前统计，每行一项。
+     */
+    public static String snapshot() {
+        List<Metrics> open = new ArrayList<>(connections.values());
+        open.sort((a, b) -> Long.compare(b.getBytesSent() + b.getBytesReceived(),
+                a.getBytesSent() + a.getBytesReceived()));
+        String time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+        StringBuilder sb = new StringBuilder();
+        sb.append(time).append(' ').append(global());
+        for (int i = 0; i < open.size() && i < MAX_REPORTED_CONNECTIONS; i++) {
+            sb.append(System.lineSeparator()).append(time).append(' ').append(open.get(i));
+        }
+        if (open.size() > MAX_REPORTED_CONNECTIONS) {
+            sb.append(System.lineSeparator()).append(time).append(" 另有 ")
+                    .append(open.size() - MAX_REPORTED_CONNECTIONS).append(" 个连接");
+        }
+        return sb.toString();
+    }
+
+    private static void startReporter() {
+        String target = System.getProperty(REPORT_PROPERTY);
+        if (target == null || target.isEmpty())
+            return;
+        long interval = Long.getLong(INTERVAL_PROPERTY, 10);
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> report(target), interval, interval, TimeUnit.SECONDS);
+    }
+
+    private static void report(String target) {
+        String snapshot = snapshot();
+        if (target.equals("stdout")) {
+            System.out.println(snapshot);
+            return;
+        }
+        try (PrintWriter out = new PrintWriter(new FileWriter(target, true))) {
+            out.println(snapshot);
+        } catch (IOException e) {
+            System.out.println("写入统计快照失败: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * 通过 JMX 导出的连接统计，见 {@link Metrics}。延迟的单位为微秒，连接没有单独的直方图时为 null。
+ */
+public interface MetricsMXBean {
+    String getName();
+
+    /** 进程汇总为当前打开的连接数，单个连接打开时为 1、关闭后为 0 */
+    long getOpenConnections();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getFramesSent();
+
+    long getFramesReceived();
+
+    /** 向套接字写出的次数，小于发送帧数说明有帧被合并写出 */
+    long getSocketWrites();
+
+    long getMessagesSent();
+
+    long getMessagesReceived();
+
+    long getFilesSent();
+
+    long getFilesReceived();
+
+    long getFileBytesSent();
+
+    long getFileBytesReceived();
+
+    /** 已完成的文件发送的平均速率（MB/s） */
+    double getFileSendMBps();
+
+    /** 已完成的文件接收的平均速率（MB/s） */
+    double getFileReceiveMBps();
+
+    LatencyHistogram.Summary getHandshakeLatency();
+
+    /** 每帧加密（含压缩）的耗时 */
+    LatencyHistogram.Summary getEncryptLatency();
+
+    /** 每帧解密（含解压）的耗时 */
+    LatencyHistogram.Summary getDecryptLatency();
+}
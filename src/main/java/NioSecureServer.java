@@ -0,0 +1,1375 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 基于 Selector 的多客户端安全服务端。
+ * <p>
+ * 与 {@link SecureServer} 使用相同的握手（见 {@link Handshake}）和消息格式，{@link SecureClient} 无需改动即可连接。
+ * 所有连接共用一个选择器线程，握手中耗时的 RSA/X25519 运算交给少量工作线程完成，每个会话持有自己的 {@link CipherSession}。
+ * 客户端发来的文件在选择器线程上解密到 {@link FileSink} 的缓冲区，写盘和树哈希的核对由工作线程完成，
+ * 一个会话在途的写盘超过 {@value #MAX_PENDING_WRITES} 帧时暂停读取它，磁盘跟不上时不会占满堆，也不拖慢其他会话。
+ * 监听器回调在选择器线程上执行，不应在回调中做阻塞操作。
+ * <p>
+ * 客户端可以加入按名称区分的群组。群组消息只用群组密钥加密一次，同一份密文排入每个成员的写队列，
+ * 加密开销与成员数无关；群组密钥经各成员的会话密钥下发，有成员退出或断开时换用新密钥，见 {@link GroupKey}。
+ * <p>
+ * 发给客户端的文件取自 {@link EncryptedFileCache}：同一文件只加密一次，之后每个接收方都由
+ * {@link FileChannel#transferTo} 把缓存的密文直接从页缓存写到套接字。文件块与消息帧共用写出顺序，
+ * 消息帧总是优先，多个文件流按块轮流写出。
+ * <p>
+ * 写队列中积压的多帧默认用一次聚集写出（{@link GatheringByteChannel}）交给内核，
+ * 突发的小消息不必每帧一次系统调用；{@code -Dsecure.nio.gather=false} 时逐帧写出。
+ * <p>
+ * 每个会话的写队列有高低水位（见 {@link FlowControl}），越过时在选择器线程上调用
+ * {@link Listener#onWritabilityChanged(Session, boolean)}，生产者据此暂停或继续；排队超过上限时断开该会话，
+ * 接收过慢的客户端不会占满服务端的堆，也不会阻塞任何服务端线程。客户端在 SETTINGS 帧中声明了接收窗口时，
+ * 消息和文件块只在还有额度时写出，额度用完后停止关注可写事件，直到客户端的 WINDOW_UPDATE 归还额度。
+ * 本服务端自己的 SETTINGS 只声明认识 WINDOW_UPDATE、不限制客户端，因此从不需要向客户端归还额度。
+ */
+public class NioSecureServer implements Closeable {
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+    public static final String GATHER_PROPERTY = "secure.nio.gather";
+    /** 一次聚集写出最多包含的帧数 */
+    static final int MAX_GATHER = 64;
+    /** 每个会话最多在途的写盘帧数，达到时暂停读取该会话 */
+    static final int MAX_PENDING_WRITES = TransferPipeline.DEFAULT_DEPTH;
+    /** 本服务端的 SETTINGS：不解压，认识 WINDOW_UPDATE，接收窗口为 0（不限制客户端） */
+    private static final byte[] SETTINGS = { SecureChannel.SETTING_FLOW_CONTROL, 0, 0, 0, 0 };
+
+    /**
+     * 会话事件监听器，所有回调都在选择器线程上执行。
+     */
+    public interface Listener {
+        void onConnected(Session session);
+
+        void onMessage(Session session, String message);
+
+        /**
+         * 收到一条聊天消息的原始字节（UTF-8）。message 只在回调期间有效，之后其内容会被下一帧覆盖。
+         * 默认解码后调用 {@link #onMessage(Session, String)}；转发类应用可以覆盖本方法，
+         * 配合 {@link Session#sendMessage(ByteBuffer)} 直接转发字节，不创建字符串。
+         */
+        default void onMessage(Session session, ByteBuffer message) {
+            onMessage(session, Utf8.decode(message));
+        }
+
+        void onClosed(Session session);
+
+        /**
+         * 会话的写队列越过高水位（writable 为 false）或回落到低水位以下（为 true）。默认什么也不做。
+         */
+        default void onWritabilityChanged(Session session, boolean writable) {
+        }
+    }
+
+    /** 每个连接的握手/收发状态 */
+    private enum State {
+        MODE, RESUME_REQUEST, CLIENT_PUBLIC_KEY, CLIENT_SIGNATURE, SERVER_HELLO, AES_KEY, CLIENT_SHARE, UNWRAPPING,
+        ESTABLISHED, CLOSED
+    }
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService workers;
+    private final Listener listener;
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong nextSessionId = new AtomicLong(1);
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    private final AtomicInteger nextGroupId = new AtomicInteger(1);
+    private EncryptedFileCache fileCache;
+    private final boolean gatherWrites = !"false".equalsIgnoreCase(System.getProperty(GATHER_PROPERTY));
+    /** 聚集写出时收集帧的数组，只在选择器线程上使用 */
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private volatile boolean running = true;
+    private Thread selectorThread;
+
+    public NioSecureServer(int port, Listener listener) throws IOException {
+        this(port, listener, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param port          监听端口。
+     * @param listener      会话事件监听器。
+     * @param workerThreads 执行握手运算和接收文件写盘的工作线程数。
+     * @throws IOException 如果端口绑定失败。
+     */
+    public NioSecureServer(int port, Listener listener, int workerThreads) throws IOException {
+        this.listener = listener;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        workers = Executors.newFixedThreadPool(workerThreads, r -> {
+            Thread t = new Thread(r, "nio-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        System.out.println("NIO 服务器监听端口 " + port + "...");
+    }
+
+    /**
+     * 启动选择器线程，立即返回。
+     */
+    public void start() {
+        selectorThread = new Thread(this::runLoop, "nio-secure-server");
+        selectorThread.start();
+    }
+
+    /**
+     * 向所有已建立安全连接的会话发送同一条消息。写队列已满的会话被断开，不影响其他会话。
+     */
+    public void broadcast(String msg) throws Exception {
+        for (Session session : sessions.values()) {
+            if (session.isEstablished()) {
+                try {
+                    session.sendMessage(msg);
+                } catch (IOException e) {
+                    // 该会话接收过慢，已被断开
+                }
+            }
+        }
+    }
+
+    /**
+     * 向所有已建立安全连接的会话发送同一个文件，文件只加密一次。
+     *
+     * @return 开始发送的会话数。
+     */
+    public int broadcastFile(File file) throws Exception {
+        int count = 0;
+        for (Session session : sessions.values()) {
+            if (session.isEstablished()) {
+                session.sendFile(file);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 指定发送文件使用的缓存，须在第一次发送文件之前调用。
+     */
+    public synchronized void setFileCache(EncryptedFileCache fileCache) {
+        this.fileCache = fileCache;
+    }
+
+    /**
+     * 发送文件使用的缓存，未指定时按 -Dsecure.cache.* 创建。
+     */
+    public synchronized EncryptedFileCache getFileCache() throws IOException {
+        if (fileCache == null) {
+            fileCache = EncryptedFileCache.fromSystemProperties();
+        }
+        return fileCache;
+    }
+
+    public Collection<Session> getSessions() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
+    /**
+     * 向群组的所有成员发送一条消息，只加密一次。群组不存在（没有成员）时不发送。
+     *
+     * @return 收到消息的成员数。
+     */
+    public int sendToGroup(String name, String msg) throws Exception {
+        Group group = groups.get(name);
+        return group == null ? 0 : group.broadcast(Utf8.encode(msg));
+    }
+
+    /**
+     * 群组当前的成员数，群组不存在时为 0。
+     */
+    public int getGroupSize(String name) {
+        Group group = groups.get(name);
+        return group == null ? 0 : group.size();
+    }
+
+    private void joinGroup(String name, Session session) throws Exception {
+        while (true) {
+            Group group = groups.computeIfAbsent(name, n -> new Group(nextGroupId.getAndIncrement(), n));
+            if (group.join(session))
+                return;
+            // 该群组刚因最后一个成员退出而移除，重新创建
+            groups.remove(name, group);
+        }
+    }
+
+    /**
+     * 一个群组：成员集合和当前纪元的密钥。加密、换钥和成员变化都在群组的锁内进行，
+     * 成员因此总是先收到新密钥，再收到用它加密的消息。
+     */
+    private final class Group {
+        private final int id;
+        private final String name;
+        private final Set<Session> members = new LinkedHashSet<>();
+        private GroupKey key;
+        /** 最后一个成员退出后不再使用 */
+        private boolean closed;
+
+        Group(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        synchronized int size() {
+            return members.size();
+        }
+
+        /**
+         * @return 群组已关闭时返回 false。
+         */
+        synchronized boolean join(Session session) throws Exception {
+            if (closed)
+                return false;
+            if (!members.add(session))
+                return true;
+            if (key == null) {
+                key = GroupKey.generate(id, name, 1);
+            }
+            session.groups.add(this);
+            session.send(FrameType.GROUP_KEY, id, key.encode());
+            return true;
+        }
+
+        /**
+         * 移除成员并为其余成员换用下一纪元的密钥。写队列已满的成员收不到新密钥，
+         * 但 {@link Session#enqueue(ByteBuffer)} 已断开它，不影响其他成员。
+         */
+        synchronized void leave(Session session) throws Exception {
+            if (!members.remove(session))
+                return;
+            session.groups.remove(this);
+            if (members.isEmpty()) {
+                closed = true;
+                groups.remove(name, this);
+                return;
+            }
+            key = GroupKey.generate(id, name, key.getEpoch() + 1);
+            byte[] encoded = key.encode();
+            for (Session member : members) {
+                try {
+                    member.send(FrameType.GROUP_KEY, id, encoded);
+                } catch (IOException e) {
+                    // 该成员已被断开，关闭时会再次调用 leave 把它移出群组
+                }
+            }
+        }
+
+        /**
+         * 用群组密钥加密一次，把同一个缓冲区（各自独立的读写位置）排入每个成员的写队列。
+         */
+        synchronized int broadcast(byte[] data) throws Exception {
+            if (members.isEmpty())
+                return 0;
+            byte[] aad = SecureChannel.header(FrameType.GROUP_MESSAGE, id);
+            ByteBuffer frame = ByteBuffer.allocate(4 + aad.length + GroupKey.sealedLength(data.length));
+            long start = System.nanoTime();
+            int n = key.seal(aad, data, 0, data.length, frame.array(), 4 + aad.length);
+            long elapsed = System.nanoTime() - start;
+            frame.putInt(aad.length + n).put(aad).position(0).limit(4 + aad.length + n);
+            Metrics.global().encrypted(elapsed);
+            for (Session member : members) {
+                member.enqueueShared(FrameType.GROUP_MESSAGE, frame);
+            }
+            return members.size();
+        }
+    }
+
+    private void runLoop() {
+        try {
+            while (running) {
+                selector.select();
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Session session = (Session) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            session.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            session.onWritable();
+                        }
+                    } catch (Exception e) {
+                        session.closeOnSelector(e);
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // 服务端已关闭
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (Session session : sessions.values()) {
+                session.closeOnSelector(null);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Session session = new Session(nextSessionId.getAndIncrement(), channel);
+            session.key = channel.register(selector, SelectionKey.OP_READ, session);
+            sessions.put(session.id, session);
+        }
+    }
+
+    private void runOnSelector(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        if (selectorThread != null && Thread.currentThread() != selectorThread) {
+            try {
+                selectorThread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        workers.shutdownNow();
+        serverChannel.close();
+        selector.close();
+    }
+
+    /**
+     * 单个客户端连接。除 {@link #sendMessage(String)} 和 {@link #close()} 外，所有方法只在选择器线程上调用。
+     */
+    public class Session {
+        private final long id;
+        private final SocketChannel channel;
+        private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        // 等待写出下一块的文件流，以及正写到一半、必须先写完的那一块
+        private final Queue<FileDelivery> deliveries = new ConcurrentLinkedQueue<>();
+        private FileDelivery sending;
+        // 服务端发起的文件流使用偶数 ID
+        private final AtomicInteger nextStreamId = new AtomicInteger(2);
+        private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+        private final FlowControl flow = FlowControl.fromSystemProperty();
+        /** 写队列开头已经扣过额度、可以写出的帧数，只在选择器线程上使用 */
+        private int admitted;
+        /** 因额度用完而暂停关注可写事件，只在选择器线程上使用 */
+        private boolean stalled;
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        private volatile State state = State.MODE;
+        private volatile CipherSession cipherSession;
+        private byte[] plainBuffer = new byte[INITIAL_BUFFER_SIZE];
+        private ByteBuffer plainView = ByteBuffer.wrap(plainBuffer);
+        // 发送和接收时复用的帧头，分别只在 writeQueue 的锁内和选择器线程上使用
+        private final byte[] sendAad = new byte[SecureChannel.HEADER_LENGTH];
+        private final byte[] frameAad = new byte[SecureChannel.HEADER_LENGTH];
+        /** 正在处理的帧的密文在读缓冲区底层数组中的位置和长度，只在选择器线程上使用 */
+        private int sealedOffset;
+        private int sealedLength;
+        private final Metrics metrics = Metrics.connection("nio");
+        /** 接受连接的时刻，握手耗时从这里算起 */
+        private final long acceptedAt = System.nanoTime();
+
+        // 握手中间状态
+        private String clientPubKeyStr;
+        private KeyPair serverKeyPair;
+        private boolean resumeRejected;
+
+        // 按流 ID 索引的接收中文件，以及交给工作线程、尚未写完的帧数
+        private final Map<Integer, IncomingFile> incomingFiles = new HashMap<>();
+        private final AtomicInteger pendingWrites = new AtomicInteger();
+        /** 在途写盘达到上限而暂停读取，只在选择器线程上使用 */
+        private boolean readPaused;
+        // 已加入的群组，只在所属群组的锁内修改
+        private final Set<Group> groups = ConcurrentHashMap.newKeySet();
+
+        private Session(long id, SocketChannel channel) {
+            this.id = id;
+            this.channel = channel;
+            flow.setListener(writable -> runOnSelector(() -> {
+                if (state != State.CLOSED)
+                    listener.onWritabilityChanged(this, writable);
+            }));
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public SocketAddress getRemoteAddress() {
+            return channel.socket().getRemoteSocketAddress();
+        }
+
+        public Metrics getMetrics() {
+            return metrics;
+        }
+
+        public boolean isEstablished() {
+            return cipherSession != null && state != State.CLOSED;
+        }
+
+        /**
+         * 写队列未越过高水位时为 true，见 {@link Listener#onWritabilityChanged(Session, boolean)}。
+         */
+        public boolean isWritable() {
+            return flow.isWritable();
+        }
+
+        /**
+         * 写队列中等待写出的字节数，不含正在发送的文件。
+         */
+        public long getQueuedBytes() {
+            return flow.getQueuedBytes();
+        }
+
+        /**
+         * 加密并排队发送一条消息，可以在任意线程调用。
+         *
+         * @throws IOException 如果写队列已超过上限，此时会话被断开。
+         */
+        public void sendMessage(String msg) throws Exception {
+            if (cipherSession == null) {
+                throw new IllegalStateException("会话尚未建立安全连接");
+            }
+            int len = Utf8.encodedLength(msg);
+            if (len > BufferPool.shared().getBufferSize()) {
+                send(FrameType.MESSAGE, 0, Utf8.encode(msg));
+                return;
+            }
+            ByteBuffer plain = BufferPool.shared().acquire();
+            try {
+                Utf8.encode(msg, plain);
+                plain.flip();
+                send(FrameType.MESSAGE, 0, plain);
+            } finally {
+                BufferPool.shared().release(plain);
+            }
+        }
+
+        /**
+         * 加密 msg 中剩余的全部字节作为一条消息排队发送，可以在任意线程调用。返回时 msg 已读完，可以立即复用。
+         */
+        public void sendMessage(ByteBuffer msg) throws Exception {
+            if (cipherSession == null) {
+                throw new IllegalStateException("会话尚未建立安全连接");
+            }
+            send(FrameType.MESSAGE, 0, msg);
+        }
+
+        private void send(FrameType type, int streamId, byte[] data) throws Exception {
+            send(type, streamId, ByteBuffer.wrap(data));
+        }
+
+        /**
+         * 加密后排入写队列。帧缓冲区从 {@link BufferPool} 借出，写完后在 {@link #onWritable()} 中归还。
+         */
+        private void send(FrameType type, int streamId, ByteBuffer data) throws Exception {
+            ByteBuffer frame = BufferPool.shared()
+                    .acquire(4 + SecureChannel.HEADER_LENGTH + CipherSession.sealedLength(data.remaining()));
+            int wireLength;
+            // 加密与入队必须保持同一顺序，否则对端推算的 IV 会错位
+            synchronized (writeQueue) {
+                SecureChannel.writeHeader(sendAad, 0, type, streamId, false);
+                frame.position(4);
+                frame.put(sendAad);
+                long start = System.nanoTime();
+                int n = cipherSession.encrypt(sendAad, data, frame);
+                metrics.encrypted(System.nanoTime() - start);
+                frame.putInt(0, SecureChannel.HEADER_LENGTH + n).flip();
+                wireLength = frame.limit();
+                enqueue(frame);
+            }
+            metrics.frameSent(type, wireLength);
+        }
+
+        /**
+         * 从缓存发送一个文件，可以在任意线程调用。文件尚未加密时在调用线程上加密，之后立即返回，
+         * 内容由选择器线程在套接字可写时逐块写出。
+         */
+        public void sendFile(File file) throws Exception {
+            if (cipherSession == null) {
+                throw new IllegalStateException("会话尚未建立安全连接");
+            }
+            EncryptedFileCache.Entry entry = getFileCache().acquire(file);
+            FileDelivery delivery;
+            try {
+                delivery = new FileDelivery(entry, nextStreamId.getAndAdd(2));
+                // CACHED_OPEN 进入写队列，总是先于该流的任何一块写出
+                send(FrameType.CACHED_OPEN, delivery.streamId, entry.header());
+            } catch (Exception e) {
+                entry.release();
+                throw e;
+            }
+            if (delivery.isDone()) {
+                delivery.close();
+                return;
+            }
+            deliveries.add(delivery);
+            if (state == State.CLOSED) {
+                // 与 closeOnSelector 交错时由这里清理，close 可以重复调用
+                closeDeliveries();
+                return;
+            }
+            scheduleWrite();
+        }
+
+        /**
+         * 排入一帧已经加密好的群组消息。frame 由所有成员共享，这里只复制读写位置。
+         * 写队列已满时该成员被断开，不影响其他成员。
+         */
+        private void enqueueShared(FrameType type, ByteBuffer frame) {
+            if (state == State.CLOSED)
+                return;
+            try {
+                enqueue(frame.duplicate());
+            } catch (IOException e) {
+                return;
+            }
+            metrics.frameSent(type, frame.remaining());
+        }
+
+        /**
+         * 关闭该会话，不影响服务端监听。
+         */
+        public void close() {
+            runOnSelector(() -> closeOnSelector(null));
+        }
+
+        /**
+         * 排入写队列并计入水位。排入的缓冲区位置必须为 0，写出后按 limit 扣除水位。
+         *
+         * @throws IOException 如果写队列超过上限。帧可能已经加密、占用了 IV，此后对方无法解密，因此同时断开会话。
+         */
+        private void enqueue(ByteBuffer frame) throws IOException {
+            try {
+                flow.enqueued(frame.remaining());
+            } catch (IOException e) {
+                BufferPool.shared().release(frame);
+                close();
+                throw e;
+            }
+            writeQueue.add(frame);
+            scheduleWrite();
+        }
+
+        /**
+         * 帧开始写出前扣除额度，额度已用完时返回 false。
+         * 客户端读完握手回复后才发送 SETTINGS，额度生效时写队列中已经只有帧，可以按帧头判断类型。
+         */
+        private boolean admit(ByteBuffer frame) {
+            if (flow.isCreditEnabled()) {
+                FrameType type = FrameType.fromCode(frame.get(frame.position() + 4));
+                if (type.isFlowControlled()) {
+                    if (!flow.hasCredit())
+                        return false;
+                    flow.sent(frame.remaining());
+                }
+            }
+            admitted++;
+            return true;
+        }
+
+        /**
+         * 额度用完，停止关注可写事件，收到 WINDOW_UPDATE 后恢复。
+         */
+        private void stall() {
+            stalled = true;
+            key.interestOps(readOps());
+        }
+
+        private void scheduleWrite() {
+            if (writeScheduled.compareAndSet(false, true)) {
+                runOnSelector(() -> {
+                    if (key.isValid()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                });
+            }
+        }
+
+        private void onReadable() throws Exception {
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                closeOnSelector(null);
+                return;
+            }
+            processInput();
+        }
+
+        private void onWritable() throws IOException {
+            while (true) {
+                // 写到一半的文件块不能被其他帧打断
+                if (sending != null) {
+                    if (!sending.writeChunk(channel, metrics)) {
+                        return; // 套接字发送缓冲区已满，等待下一次可写
+                    }
+                    metrics.frameSent(FrameType.CACHED_DATA, sending.lastFrameLength);
+                    flow.sent(sending.lastFrameLength);
+                    if (sending.isDone()) {
+                        sending.close();
+                        metrics.fileSent(sending.entry.getSize(), System.nanoTime() - sending.started);
+                    } else {
+                        deliveries.add(sending); // 排到队尾，各文件流轮流写出
+                    }
+                    sending = null;
+                }
+                if (!writeQueued())
+                    return;
+                if (!deliveries.isEmpty() && !flow.hasCredit()) {
+                    stall();
+                    return;
+                }
+                sending = deliveries.poll();
+                if (sending == null)
+                    break;
+            }
+            key.interestOps(readOps());
+            writeScheduled.set(false);
+            // 清除标志期间可能有新的帧或文件入队
+            if ((!writeQueue.isEmpty() || !deliveries.isEmpty()) && writeScheduled.compareAndSet(false, true)) {
+                key.interestOps(readOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        /**
+         * 写出写队列中的帧。
+         *
+         * @return 队列是否已写空；为 false 时套接字发送缓冲区已满，等待下一次可写，或者额度已用完，
+         *         已停止关注可写事件。
+         */
+        private boolean writeQueued() throws IOException {
+            ByteBuffer head;
+            if (!gatherWrites) {
+                while ((head = writeQueue.peek()) != null) {
+                    if (admitted == 0 && !admit(head)) {
+                        stall();
+                        return false;
+                    }
+                    channel.write(head);
+                    metrics.socketWrite();
+                    if (head.hasRemaining())
+                        return false;
+                    writeQueue.poll();
+                    admitted--;
+                    flow.dequeued(head.limit());
+                    BufferPool.shared().release(head); // 只回收池中借出的帧，共享的群组帧等被忽略
+                }
+                return true;
+            }
+            while (!writeQueue.isEmpty()) {
+                // 只有选择器线程取出帧，遍历到的前 count 帧在写出期间一直位于队首
+                int count = 0;
+                for (ByteBuffer frame : writeQueue) {
+                    if (count >= admitted && !admit(frame))
+                        break;
+                    gather[count++] = frame;
+                    if (count == gather.length)
+                        break;
+                }
+                if (count == 0) {
+                    stall();
+                    return false;
+                }
+                channel.write(gather, 0, count);
+                metrics.socketWrite();
+                Arrays.fill(gather, 0, count, null);
+                int written = 0;
+                while ((head = writeQueue.peek()) != null && written < count && !head.hasRemaining()) {
+                    writeQueue.poll();
+                    admitted--;
+                    flow.dequeued(head.limit());
+                    BufferPool.shared().release(head);
+                    written++;
+                }
+                if (written < count)
+                    return false;
+            }
+            return true;
+        }
+
+        private void closeDeliveries() {
+            FileDelivery delivery;
+            while ((delivery = deliveries.poll()) != null) {
+                delivery.close();
+            }
+        }
+
+        /**
+         * 按当前状态从读缓冲区中解析尽可能多的完整字段。
+         */
+        private void processInput() throws Exception {
+            readBuffer.flip();
+            try {
+                while (true) {
+                    switch (state) {
+                        case MODE: {
+                            if (!readBuffer.hasRemaining())
+                                return;
+                            HandshakeMode mode = HandshakeMode.fromCode(readBuffer.get());
+                            if (mode == HandshakeMode.RESUME) {
+                                if (resumeRejected)
+                                    throw new IOException("重复的会话恢复请求");
+                                state = State.RESUME_REQUEST;
+                            } else {
+                                state = mode == HandshakeMode.ECDHE ? State.CLIENT_SHARE : State.CLIENT_PUBLIC_KEY;
+                            }
+                            break;
+                        }
+                        case RESUME_REQUEST: {
+                            byte[] request = nextBlock(Handshake.MAX_RESUME_LENGTH);
+                            if (request == null)
+                                return;
+                            // 兑现票据只需一次 AES-GCM 解密，直接在选择器线程上完成
+                            Handshake.Resumed resumed = Handshake.resume(request);
+                            if (resumed == null) {
+                                resumeRejected = true;
+                                enqueue(ByteBuffer.wrap(new byte[4]));
+                                state = State.MODE;
+                            } else {
+                                state = State.UNWRAPPING;
+                                establish(new CipherSession(resumed.sessionKey, false), ByteBuffer.wrap(resumed.reply));
+                            }
+                            break;
+                        }
+                        case CLIENT_PUBLIC_KEY: {
+                            String value = nextUtf();
+                            if (value == null)
+                                return;
+                            clientPubKeyStr = value;
+                            state = State.CLIENT_SIGNATURE;
+                            break;
+                        }
+                        case CLIENT_SIGNATURE: {
+                            String signature = nextUtf();
+                            if (signature == null)
+                                return;
+                            state = State.SERVER_HELLO;
+                            submitServerHello(clientPubKeyStr, signature);
+                            break;
+                        }
+                        case AES_KEY: {
+                            byte[] encryptedAesKey = nextBlock(Handshake.MAX_WRAPPED_KEY_LENGTH);
+                            if (encryptedAesKey == null)
+                                return;
+                            state = State.UNWRAPPING;
+                            submitUnwrap(encryptedAesKey);
+                            break;
+                        }
+                        case CLIENT_SHARE: {
+                            byte[] clientShare = nextBlock(Handshake.MAX_SHARE_LENGTH);
+                            if (clientShare == null)
+                                return;
+                            state = State.UNWRAPPING;
+                            submitKeyAgreement(clientShare);
+                            break;
+                        }
+                        case ESTABLISHED: {
+                            if (readPaused)
+                                return;
+                            int len = nextFrame();
+                            if (len < 0)
+                                return;
+                            int pos = readBuffer.position();
+                            onFrame(pos + 4, len);
+                            readBuffer.position(pos + 4 + len);
+                            break;
+                        }
+                        default:
+                            return; // 等待工作线程完成握手运算
+                    }
+                }
+            } finally {
+                readBuffer.compact();
+                // 读空后退回初始大小：大帧处理完的会话不长期占用大缓冲区，接收文件期间则保留
+                if (readBuffer.position() == 0 && readBuffer.capacity() > INITIAL_BUFFER_SIZE
+                        && incomingFiles.isEmpty()) {
+                    readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+                }
+            }
+        }
+
+        /**
+         * 处理一个已建立连接上的帧：5 字节帧头之后是 GCM 密文，帧头作为附加数据。
+         * 帧仍在读缓冲区中，各类帧都直接从中解密，不为每帧复制出密文数组。
+         * 本服务端不保存检查点，续传询问总是回复从头发送，也不支持并行传输和增量传输。
+         *
+         * @param pos 帧头在读缓冲区中的位置。
+         * @param frameLength 帧长度（帧头加密文）。
+         */
+        private void onFrame(int pos, int frameLength) throws Exception {
+            FrameType type = FrameType.fromCode(readBuffer.get(pos));
+            int streamId = readBuffer.getInt(pos + 1);
+            metrics.frameReceived(type, 4 + frameLength);
+            int off = readBuffer.arrayOffset() + pos;
+            System.arraycopy(readBuffer.array(), off, frameAad, 0, SecureChannel.HEADER_LENGTH);
+            sealedOffset = off + SecureChannel.HEADER_LENGTH;
+            sealedLength = frameLength - SecureChannel.HEADER_LENGTH;
+            switch (type) {
+                case MESSAGE:
+                    deliverMessage(decrypt(cipherSession));
+                    break;
+                case SETTINGS: {
+                    // 本服务端的 SETTINGS 不带压缩能力位，客户端因此不会向它发送压缩帧
+                    int len = decrypt(cipherSession);
+                    int window = SecureChannel.settingsWindow(plainBuffer, len);
+                    if (window >= 0) {
+                        flow.peerSettings(true, window);
+                    }
+                    break;
+                }
+                case WINDOW_UPDATE: {
+                    if (decrypt(cipherSession) != 4) {
+                        throw new IOException("非法的窗口更新帧");
+                    }
+                    flow.granted(ByteBuffer.wrap(plainBuffer, 0, 4).getInt());
+                    if (stalled) {
+                        stalled = false;
+                        key.interestOps(readOps() | SelectionKey.OP_WRITE);
+                    }
+                    break;
+                }
+                case RESUME_QUERY:
+                    decrypt(cipherSession);
+                    send(FrameType.RESUME_AT, streamId, ByteBuffer.allocate(8).putLong(0).array());
+                    break;
+                case FILE_OPEN: {
+                    int len = decrypt(cipherSession);
+                    FileTransfer.FileHeader header = FileTransfer.FileHeader.decode(plainBuffer, len);
+                    if (header.offset != 0) {
+                        throw new IOException("多客户端服务端不支持从中间续传");
+                    }
+                    incomingFiles.put(streamId, new IncomingFile(header.fileName, header.size, header.frameSize,
+                            new CipherSession(FileTransfer.streamKey(cipherSession.getKey(), streamId), false)));
+                    break;
+                }
+                case FILE_DATA: {
+                    IncomingFile file = incomingFiles.get(streamId);
+                    if (file == null) {
+                        break; // FILE_ABORT 之后仍在路上的帧，丢弃
+                    }
+                    // 除最后一帧外每帧恰好是一个帧大小，在交给树哈希之前检查
+                    int plainLength = sealedLength - CipherSession.TAG_LENGTH;
+                    if (plainLength != Math.min(file.frameSize, file.size - file.received)) {
+                        throw new IOException("文件帧与声明的大小不符: " + file.name);
+                    }
+                    long position = file.received;
+                    ByteBuffer plain = file.sink.buffer(position, plainLength);
+                    long start = System.nanoTime();
+                    file.cipher.decrypt(frameAad, ByteBuffer.wrap(readBuffer.array(), sealedOffset, sealedLength),
+                            plain);
+                    metrics.decrypted(System.nanoTime() - start);
+                    ForkJoinTask<?> digest = file.tree.leaf(position, plain.duplicate().flip());
+                    file.received += plainLength;
+                    writeFile(file, plain, position, digest);
+                    break;
+                }
+                case FILE_DIGEST: {
+                    IncomingFile file = incomingFiles.remove(streamId);
+                    if (file == null) {
+                        throw new IOException("未知的文件流: " + streamId);
+                    }
+                    int len = decrypt(cipherSession);
+                    if (file.received != file.size || len != TreeHash.HASH_LENGTH) {
+                        abortFile(file, true);
+                        throw new IOException("文件未收完或摘要长度不符: " + file.name);
+                    }
+                    finishFile(file, Arrays.copyOf(plainBuffer, len));
+                    break;
+                }
+                case FILE_ABORT: {
+                    IncomingFile file = incomingFiles.remove(streamId);
+                    if (file != null) {
+                        abortFile(file, false);
+                        System.out.println("会话 #" + id + " 的文件 " + file.name + " 传输被对方中止");
+                    }
+                    break;
+                }
+                case GROUP_JOIN:
+                    joinGroup(readUtf(decrypt(cipherSession)), this);
+                    break;
+                case GROUP_LEAVE: {
+                    Group group = NioSecureServer.this.groups.get(readUtf(decrypt(cipherSession)));
+                    if (group != null)
+                        group.leave(this);
+                    break;
+                }
+                case GROUP_SEND: {
+                    int len = decrypt(cipherSession);
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(plainBuffer, 0, len));
+                    String name = in.readUTF();
+                    Group group = NioSecureServer.this.groups.get(name);
+                    if (group == null || !groups.contains(group)) {
+                        throw new IOException("未加入的群组: " + name);
+                    }
+                    // 正文前加上发送者，成员据此区分消息来源
+                    byte[] prefix = Utf8.encode("#" + id + ": ");
+                    byte[] message = Arrays.copyOf(prefix, prefix.length + in.available());
+                    in.readFully(message, prefix.length, message.length - prefix.length);
+                    group.broadcast(message);
+                    break;
+                }
+                case PARALLEL_OPEN:
+                    throw new IOException("多客户端服务端不支持并行传输");
+                case DELTA_QUERY:
+                    throw new IOException("多客户端服务端不支持增量传输");
+                default:
+                    throw new IOException("意外的帧类型: " + type);
+            }
+        }
+
+        private void deliverMessage(int len) {
+            if (plainView.array() != plainBuffer)
+                plainView = ByteBuffer.wrap(plainBuffer);
+            plainView.limit(len).position(0);
+            listener.onMessage(this, plainView);
+        }
+
+        /**
+         * 用 cipher 把读缓冲区中当前帧的密文解密到 plainBuffer，返回明文长度。
+         */
+        private int decrypt(CipherSession cipher) throws Exception {
+            if (plainBuffer.length < sealedLength)
+                plainBuffer = new byte[sealedLength];
+            long start = System.nanoTime();
+            int n = cipher.decrypt(frameAad, readBuffer.array(), sealedOffset, sealedLength, plainBuffer, 0);
+            metrics.decrypted(System.nanoTime() - start);
+            return n;
+        }
+
+        private String readUtf(int len) throws IOException {
+            return new DataInputStream(new ByteArrayInputStream(plainBuffer, 0, len)).readUTF();
+        }
+
+        /**
+         * 把已解密的一帧交给工作线程：等待该帧的叶子哈希后写盘，缓冲区随即回到 {@link FileSink} 的池中。
+         * 同一文件的写盘串成一条任务链，按到达顺序执行；在途的帧达到上限时暂停读取，写完一帧后恢复。
+         */
+        private void writeFile(IncomingFile file, ByteBuffer plain, long position, ForkJoinTask<?> digest) {
+            if (pendingWrites.incrementAndGet() >= MAX_PENDING_WRITES) {
+                pauseReading();
+            }
+            long end = position + plain.position();
+            file.written = file.written.thenRunAsync(() -> {
+                try {
+                    digest.join();
+                    if (file.failure == null && !file.closed) {
+                        file.sink.write(plain, position);
+                        file.sink.advance(end);
+                    }
+                } catch (Exception e) {
+                    if (file.failure == null && !file.closed) {
+                        file.failure = e;
+                        runOnSelector(() -> closeOnSelector(e));
+                    }
+                } finally {
+                    if (pendingWrites.getAndDecrement() == MAX_PENDING_WRITES) {
+                        runOnSelector(this::resumeReading);
+                    }
+                }
+            }, workers);
+        }
+
+        /**
+         * 所有帧写完后在工作线程上核对树哈希的根，一致时刷盘并回到选择器线程通知监听器，不一致时删除文件并断开会话。
+         */
+        private void finishFile(IncomingFile file, byte[] expected) {
+            file.written.thenRunAsync(() -> {
+                try {
+                    if (file.failure != null) {
+                        closeSink(file); // 写盘失败时已经断开
+                        return;
+                    }
+                    if (!MessageDigest.isEqual(expected, file.tree.root())) {
+                        throw new IOException("文件校验失败: " + file.name);
+                    }
+                    file.sink.finish();
+                    runOnSelector(() -> {
+                        metrics.fileReceived(file.size, System.nanoTime() - file.started);
+                        if (state != State.CLOSED)
+                            listener.onMessage(this, "收到文件: " + file.name);
+                    });
+                } catch (Exception e) {
+                    closeSink(file);
+                    file.target.delete();
+                    runOnSelector(() -> closeOnSelector(e));
+                }
+            }, workers);
+        }
+
+        /**
+         * 放弃一个接收中的文件：尚未执行的写盘不再写入，已在执行的写完后关闭文件。
+         */
+        private void abortFile(IncomingFile file, boolean delete) {
+            file.closed = true;
+            file.written.thenRunAsync(() -> {
+                closeSink(file);
+                if (delete)
+                    file.target.delete();
+            }, workers);
+        }
+
+        private void closeSink(IncomingFile file) {
+            try {
+                file.sink.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+        }
+
+        private void pauseReading() {
+            readPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        /** 在途写盘回落到上限以下，恢复读取并处理暂停期间留在读缓冲区中的帧 */
+        private void resumeReading() {
+            if (!readPaused || state == State.CLOSED)
+                return;
+            readPaused = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            resumeInput();
+        }
+
+        private int readOps() {
+            return readPaused ? 0 : SelectionKey.OP_READ;
+        }
+
+        private void submitServerHello(String pubKeyStr, String signature) {
+            workers.execute(() -> {
+                try {
+                    Handshake.verifiedPublicKey(pubKeyStr, signature, "客户端身份验证失败");
+
+                    KeyPair keyPair = RsaKeyPairPool.acquire();
+                    String serverPubKeyStr = Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded());
+                    String serverSignature = CryptoUtil.sign(serverPubKeyStr, keyPair.getPrivate());
+                    ByteBuffer hello = utfFields(serverPubKeyStr, serverSignature);
+
+                    runOnSelector(() -> {
+                        if (state != State.SERVER_HELLO)
+                            return;
+                        serverKeyPair = keyPair;
+                        state = State.AES_KEY;
+                        try {
+                            enqueue(hello);
+                        } catch (IOException e) {
+                            closeOnSelector(e);
+                            return;
+                        }
+                        resumeInput();
+                    });
+                } catch (Exception e) {
+                    runOnSelector(() -> closeOnSelector(e));
+                }
+            });
+        }
+
+        private void submitUnwrap(byte[] encryptedAesKey) {
+            PrivateKey privateKey = serverKeyPair.getPrivate();
+            serverKeyPair = null;
+            workers.execute(() -> {
+                try {
+                    byte[] aesKeyBytes = CryptoUtil.decryptRSA(encryptedAesKey, privateKey);
+                    SecretKey key = new SecretKeySpec(aesKeyBytes, "AES");
+                    establish(new CipherSession(key, false), ByteBuffer.wrap(Handshake.ticketRecord(key)));
+                } catch (Exception e) {
+                    runOnSelector(() -> closeOnSelector(e));
+                }
+            });
+        }
+
+        private void submitKeyAgreement(byte[] clientShare) {
+            workers.execute(() -> {
+                try {
+                    KeyPair keyPair = CryptoUtil.generateX25519KeyPair();
+                    byte[] serverShare = keyPair.getPublic().getEncoded();
+                    byte[] sharedSecret = CryptoUtil.agreeX25519(keyPair.getPrivate(), clientShare);
+                    SecretKey key = Handshake.ecdheKey(sharedSecret, clientShare, serverShare);
+                    byte[] ticket = Handshake.ticketRecord(key);
+                    ByteBuffer reply = ByteBuffer.allocate(4 + serverShare.length + ticket.length);
+                    reply.putInt(serverShare.length).put(serverShare).put(ticket).flip();
+                    establish(new CipherSession(key, false), reply);
+                } catch (Exception e) {
+                    runOnSelector(() -> closeOnSelector(e));
+                }
+            });
+        }
+
+        /**
+         * 工作线程算出会话密钥后回到选择器线程建立会话。
+         *
+         * @param reply 建立前需要发给客户端的最后一段握手数据（含票据记录）。
+         */
+        private void establish(CipherSession session, ByteBuffer reply) {
+            runOnSelector(() -> {
+                if (state != State.UNWRAPPING)
+                    return;
+                try {
+                    enqueue(reply);
+                    cipherSession = session;
+                    state = State.ESTABLISHED;
+                    send(FrameType.SETTINGS, 0, SETTINGS);
+                } catch (Exception e) {
+                    closeOnSelector(e);
+                    return;
+                }
+                metrics.handshake(System.nanoTime() - acceptedAt);
+                listener.onConnected(this);
+                resumeInput();
+            });
+        }
+
+        /** 握手运算完成后继续处理已经读到但尚未解析的数据 */
+        private void resumeInput() {
+            try {
+                processInput();
+            } catch (Exception e) {
+                closeOnSelector(e);
+            }
+        }
+
+        /**
+         * 读取一个 writeUTF 格式的字段，数据不完整时返回 null。
+         */
+        private String nextUtf() throws IOException {
+            if (readBuffer.remaining() < 2)
+                return null;
+            int len = readBuffer.getShort(readBuffer.position()) & 0xFFFF;
+            if (!ensureAvailable(2 + len))
+                return null;
+            byte[] raw = new byte[2 + len];
+            readBuffer.get(raw);
+            return new DataInputStream(new ByteArrayInputStream(raw)).readUTF();
+        }
+
+        /**
+         * 读缓冲区中已有完整的下一帧时返回其长度（不含长度前缀），帧留在读缓冲区中由调用方处理；
+         * 数据不完整时返回 -1。
+         */
+        private int nextFrame() throws IOException {
+            if (readBuffer.remaining() < 4)
+                return -1;
+            int len = readBuffer.getInt(readBuffer.position());
+            if (len < SecureChannel.HEADER_LENGTH + CipherSession.TAG_LENGTH || len > SecureChannel.MAX_FRAME_LENGTH) {
+                throw new IOException("非法帧长度: " + len);
+            }
+            return ensureAvailable(4 + len) ? len : -1;
+        }
+
+        /**
+         * 读取一个 writeInt 长度前缀的数据块，数据不完整时返回 null。
+         *
+         * @param maxLength 当前状态允许的最大长度，在读缓冲区为它扩容之前检查。
+         */
+        private byte[] nextBlock(int maxLength) throws IOException {
+            if (readBuffer.remaining() < 4)
+                return null;
+            int len = readBuffer.getInt(readBuffer.position());
+            if (len < 0 || len > maxLength) {
+                throw new IOException("非法数据长度: " + len);
+            }
+            if (!ensureAvailable(4 + len))
+                return null;
+            readBuffer.getInt();
+            byte[] data = new byte[len];
+            readBuffer.get(data);
+            return data;
+        }
+
+        /**
+         * 判断读缓冲区（读模式）中是否已有 needed 字节。容量不足时只在缓冲区已被读满后加倍（不超过 needed），
+         * 声明了大帧却迟迟不发数据的连接因此只占用与已收数据相当的内存。
+         */
+        private boolean ensureAvailable(int needed) {
+            if (readBuffer.remaining() >= needed)
+                return true;
+            if (readBuffer.capacity() < needed && readBuffer.remaining() == readBuffer.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(needed, readBuffer.capacity() * 2));
+                larger.put(readBuffer);
+                larger.flip();
+                readBuffer = larger;
+            }
+            return false;
+        }
+
+        private void closeOnSelector(Exception cause) {
+            if (state == State.CLOSED)
+                return;
+            boolean wasEstablished = cipherSession != null;
+            state = State.CLOSED;
+            sessions.remove(id);
+            metrics.close();
+            for (Group group : new ArrayList<>(groups)) {
+                try {
+                    group.leave(this);
+                } catch (Exception e) {
+                    System.out.println("会话 #" + id + " 退出群组失败: " + e.getMessage());
+                }
+            }
+            if (cause != null && !(cause instanceof EOFException)) {
+                System.out.println("会话 #" + id + " 异常关闭: " + cause.getMessage());
+            }
+            try {
+                if (key != null)
+                    key.cancel();
+                channel.close();
+                for (IncomingFile file : incomingFiles.values()) {
+                    abortFile(file, false);
+                }
+                incomingFiles.clear();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (sending != null) {
+                sending.close();
+                sending = null;
+            }
+            closeDeliveries();
+            if (wasEstablished) {
+                listener.onClosed(this);
+            }
+        }
+    }
+
+    /**
+     * 一个发送中的预加密文件流：按块写出 CACHED_DATA 帧，帧头来自堆内的小缓冲区，
+     * 密文由 {@link FileChannel#transferTo} 从缓存文件直接写到套接字。
+     */
+    private static final class FileDelivery {
+        final EncryptedFileCache.Entry entry;
+        final int streamId;
+        final long started = System.nanoTime();
+        private final FileChannel file;
+        private final ByteBuffer header = ByteBuffer.allocate(4 + SecureChannel.HEADER_LENGTH);
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private int chunk;
+        private long position;
+        private long remaining;
+        /** 最近写完的一帧的字节数 */
+        int lastFrameLength;
+
+        FileDelivery(EncryptedFileCache.Entry entry, int streamId) throws IOException {
+            this.entry = entry;
+            this.streamId = streamId;
+            this.file = FileChannel.open(entry.cacheFile.toPath(), StandardOpenOption.READ);
+            header.flip(); // 空，第一次写时开始第 0 块
+        }
+
+        boolean isDone() {
+            return chunk >= entry.chunkCount() && remaining == 0;
+        }
+
+        /**
+         * 继续写当前块，没有写到一半的块时开始下一块。
+         *
+         * @return 当前块是否已完整写出。
+         */
+        boolean writeChunk(SocketChannel out, Metrics metrics) throws IOException {
+            if (remaining == 0 && !header.hasRemaining()) {
+                int len = entry.chunkLength(chunk);
+                header.clear();
+                header.putInt(SecureChannel.HEADER_LENGTH + len)
+                        .put(SecureChannel.header(FrameType.CACHED_DATA, streamId))
+                        .flip();
+                position = entry.chunkOffset(chunk);
+                remaining = len;
+                lastFrameLength = header.remaining() + len;
+            }
+            if (header.hasRemaining()) {
+                out.write(header);
+                metrics.socketWrite();
+                if (header.hasRemaining())
+                    return false;
+            }
+            while (remaining > 0) {
+                long n = file.transferTo(position, remaining, out);
+                metrics.socketWrite();
+                if (n <= 0)
+                    return false;
+                position += n;
+                remaining -= n;
+            }
+            chunk++;
+            return true;
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true))
+                return;
+            try {
+                file.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+            entry.release();
+        }
+    }
+
+    /**
+     * 一个接收中的文件流，使用该流自己的密钥解密。解密和叶子哈希的提交在选择器线程上，写盘在工作线程上。
+     */
+    private static final class IncomingFile {
+        final String name;
+        final File target;
+        final CipherSession cipher;
+        final FileSink sink;
+        final TreeHash tree;
+        final long size;
+        final int frameSize;
+        final long started = System.nanoTime();
+        /** 已解密的字节数，只在选择器线程上使用 */
+        long received;
+        /** 该文件写盘任务链的末尾，只在选择器线程上替换 */
+        CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+        volatile Exception failure;
+        volatile boolean closed;
+
+        IncomingFile(String name, long size, int frameSize, CipherSession cipher) throws IOException {
+            this.name = name;
+            this.target = new File("received_" + name);
+            this.size = size;
+            this.frameSize = frameSize;
+            this.cipher = cipher;
+            this.tree = new TreeHash(size, frameSize);
+            this.sink = FileSink.open(target, size, 0, frameSize, null);
+        }
+    }
+
+    private static ByteBuffer utfFields(String... values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        for (String value : values) {
+            data.writeUTF(value);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+}
@@ -0,0 +1,394 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.crypto.SecretKey;
+
+/**
+ * 多路并行文件传输。
+ * <p>
+ * 文件被切分为若干连续的字节区间，每个区间通过一条独立的 TCP 子连接（lane）发送，
+ * 各自拥有独立的拥塞窗口和发送线程。每条子连接使用从会话密钥派生的独立 AES-GCM 密钥，
+ * 建立时由发起方出示派生密钥计算的 HMAC 证明自己属于本会话。接收方预先分配目标文件，
+ * 通过 {@link FileChannel} 的定位写入把每个区间写到各自的偏移处。
+ * <p>
+ * 子连接总是由客户端发起、服务端接受，与哪一方发送文件无关，因此只适用于持有监听套接字的点对点
+ * {@link SecureServer} 与 {@link SecureClient}。
+ * <p>
+ * 协议：在主连接上发送 PARALLEL_OPEN(流 ID)：传输 ID、文件名、文件大小、子连接数、帧大小，随后文件内容只经由子连接
+ * 以 FILE_DATA 帧传输；所有子连接发送完毕后在主连接上发送 PARALLEL_DONE(流 ID)：是否成功。
+ * 接收方在后台线程上接收各子连接，主连接的接收线程不被阻塞，收到 PARALLEL_DONE 时才等待接收完成并报告文件。
+ */
+public class ParallelFileTransfer {
+    public static final String LANES_PROPERTY = "secure.file.lanes";
+    public static final int DEFAULT_LANES = 4;
+    public static final int MAX_LANES = 64;
+    /** 等待子连接建立的超时时间（毫秒） */
+    static final int LANE_TIMEOUT = 30000;
+    private static final int PROOF_LENGTH = 32;
+
+    /**
+     * 建立一条子连接：客户端一侧主动连接，服务端一侧从监听套接字接受。
+     */
+    public interface LaneConnector {
+        Socket open() throws IOException;
+    }
+
+    /**
+     * 接收方一次进行中的并行传输。
+     */
+    private static final class Receiving {
+        final String fileName;
+        final Thread thread;
+        volatile Exception failure;
+
+        Receiving(String fileName, Thread thread) {
+            this.fileName = fileName;
+            this.thread = thread;
+        }
+    }
+
+    private final SecureChannel channel;
+    private final FrameScheduler scheduler;
+    private final SecretKey sessionKey;
+    private final LaneConnector connector;
+    private final boolean opener;
+    private final ThreadMode threadMode = ThreadMode.fromSystemProperty();
+    private final Map<Integer, Receiving> receiving = new ConcurrentHashMap<>();
+    private volatile int frameSize = FileTransfer.DEFAULT_FRAME_SIZE;
+
+    /**
+     * @param channel    主连接，用于读取传输公告。
+     * @param scheduler  主连接的发送调度器，用于发送传输公告。
+     * @param sessionKey 主连接的会话密钥，子连接密钥由它派生。
+     * @param connector  子连接的建立方式，为 null 时本端不支持并行传输。
+     * @param opener     本端是否为子连接的发起方（客户端）。
+     */
+    public ParallelFileTransfer(SecureChannel channel, FrameScheduler scheduler, SecretKey sessionKey,
+            LaneConnector connector, boolean opener) {
+        this.channel = channel;
+        this.scheduler = scheduler;
+        this.sessionKey = sessionKey;
+        this.connector = connector;
+        this.opener = opener;
+    }
+
+    public void setFrameSize(int frameSize) {
+        this.frameSize = frameSize;
+    }
+
+    /**
+     * 通过 lanes 条子连接并行发送一个文件，所有区间发送完成后返回。
+     * 主连接只用于发送公告，传输期间聊天消息可以照常发送。
+     *
+     * @param file  要发送的文件。
+     * @param lanes 子连接数。
+     * @throws Exception 如果任一子连接失败。
+     */
+    public void send(File file, int lanes) throws Exception {
+        send(file, lanes, FileTransfer.NO_PROGRESS);
+    }
+
+    /**
+     * 并行发送并报告进度，进度是各子连接已写出字节数之和，回调可能在多个子连接线程上并发调用。
+     * 中断发送线程会关闭所有子连接并通知对方传输失败。
+     */
+    public void send(File file, int lanes, FileTransfer.Progress progress) throws Exception {
+        checkSupported();
+        if (lanes < 1 || lanes > MAX_LANES) {
+            throw new IllegalArgumentException("子连接数必须在 1 到 " + MAX_LANES + " 之间");
+        }
+        long size = file.length();
+        int frameSize = this.frameSize;
+        String transferId = newTransferId();
+        int streamId = scheduler.nextStreamId();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream announce = new DataOutputStream(bytes);
+        announce.writeUTF(transferId);
+        announce.writeUTF(file.getName());
+        announce.writeLong(size);
+        announce.writeInt(lanes);
+        announce.writeInt(frameSize);
+        scheduler.send(FrameType.PARALLEL_OPEN, streamId, bytes.toByteArray());
+
+        boolean ok = false;
+        long start = System.nanoTime();
+        long[][] ranges = split(size, lanes, frameSize);
+        AtomicLong sent = new AtomicLong();
+        Socket[] sockets = null;
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            sockets = connectLanes(transferId, lanes);
+            Socket[] laneSockets = sockets;
+            runLanes(lanes, i -> {
+                try (SecureChannel lane = laneChannel(laneSockets[i], transferId, i, true)) {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(frameSize);
+                    long position = ranges[i][0];
+                    long end = ranges[i][1];
+                    while (position < end) {
+                        buffer.clear();
+                        if (end - position < buffer.capacity()) {
+                            buffer.limit((int) (end - position));
+                        }
+                        while (buffer.hasRemaining()) {
+                            if (source.read(buffer, position + buffer.position()) < 0) {
+                                throw new EOFException("文件在发送过程中被截断: " + file);
+                            }
+                        }
+                        buffer.flip();
+                        int n = buffer.remaining();
+                        position += n;
+                        lane.writeFrame(FrameType.FILE_DATA, i, buffer);
+                        progress.update(sent.addAndGet(n), size);
+                    }
+                }
+            });
+            ok = true;
+            channel.getMetrics().fileSent(size, System.nanoTime() - start);
+        } finally {
+            if (sockets != null)
+                closeAll(sockets);
+            scheduler.send(FrameType.PARALLEL_DONE, streamId, new byte[] { (byte) (ok ? 1 : 0) });
+        }
+    }
+
+    /**
+     * 处理主连接上的 PARALLEL_OPEN 和 PARALLEL_DONE 帧，调用前帧头已读出。只应由主连接的接收线程调用。
+     * 收到公告后在后台线程上接收各子连接，写入 received_&lt;文件名&gt;。
+     *
+     * @return 收到 PARALLEL_DONE 且文件接收成功时返回文件名，其他情况返回 null。
+     * @throws Exception 如果公告非法或子连接接收失败。
+     */
+    public String handleFrame(FrameType type) throws Exception {
+        int streamId = channel.streamId();
+        int len = channel.readPayload();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(channel.frameBuffer(), 0, len));
+        if (type == FrameType.PARALLEL_DONE) {
+            boolean ok = in.readBoolean();
+            Receiving transfer = receiving.remove(streamId);
+            if (transfer == null) {
+                throw new IOException("未知的并行传输: " + streamId);
+            }
+            if (!ok) {
+                transfer.thread.interrupt();
+                transfer.thread.join(LANE_TIMEOUT);
+                System.out.println("对方并行发送失败: " + transfer.fileName);
+                return null;
+            }
+            transfer.thread.join();
+            if (transfer.failure != null) {
+                throw transfer.failure;
+            }
+            return transfer.fileName;
+        }
+        if (type != FrameType.PARALLEL_OPEN) {
+            throw new IOException("意外的帧类型: " + type);
+        }
+
+        String transferId = in.readUTF();
+        String fileName = in.readUTF();
+        long size = in.readLong();
+        int lanes = in.readInt();
+        int frameSize = in.readInt();
+        checkSupported();
+        if (lanes < 1 || lanes > MAX_LANES) {
+            throw new IOException("非法子连接数: " + lanes);
+        }
+        if (frameSize < FileTransfer.MIN_FRAME_SIZE || frameSize > FileTransfer.MAX_FRAME_SIZE) {
+            throw new IOException("非法帧大小: " + frameSize);
+        }
+        if (size < 0 || receiving.containsKey(streamId)) {
+            throw new IOException("非法并行传输公告: " + streamId);
+        }
+        FileTransfer.checkSize(size);
+
+        Receiving[] self = new Receiving[1];
+        Thread thread = threadMode.newThread("parallel-receive-" + streamId, () -> {
+            try {
+                receive(transferId, fileName, size, lanes, frameSize);
+            } catch (Exception e) {
+                self[0].failure = e;
+            }
+        });
+        self[0] = new Receiving(fileName, thread);
+        receiving.put(streamId, self[0]);
+        thread.start();
+        return null;
+    }
+
+    private void receive(String transferId, String fileName, long size, int lanes, int frameSize) throws Exception {
+        long start = System.nanoTime();
+        File target = new File("received_" + fileName);
+        try (RandomAccessFile raf = new RandomAccessFile(target, "rw")) {
+            raf.setLength(size);
+        }
+
+        long[][] ranges = split(size, lanes, frameSize);
+        Socket[] sockets = connectLanes(transferId, lanes);
+        try (FileChannel sink = FileChannel.open(target.toPath(), StandardOpenOption.WRITE)) {
+            runLanes(lanes, i -> {
+                try (SecureChannel lane = laneChannel(sockets[i], transferId, i, false)) {
+                    long position = ranges[i][0];
+                    long end = ranges[i][1];
+                    while (position < end) {
+                        int len = lane.readFrame(FrameType.FILE_DATA);
+                        if (position + len > end) {
+                            throw new IOException("子连接 " + i + " 数据超出区间");
+                        }
+                        ByteBuffer chunk = ByteBuffer.wrap(lane.frameBuffer(), 0, len);
+                        while (chunk.hasRemaining()) {
+                            position += sink.write(chunk, position);
+                        }
+                    }
+                }
+            });
+            channel.getMetrics().fileReceived(size, System.nanoTime() - start);
+        } finally {
+            closeAll(sockets);
+        }
+    }
+
+    private void checkSupported() {
+        if (connector == null) {
+            throw new IllegalStateException("当前连接不支持并行传输");
+        }
+    }
+
+    /**
+     * 把 [0, size) 切分为 lanes 个连续区间，区间边界对齐到帧大小。
+     * 发送方和接收方用相同参数调用，得到相同的区间。
+     */
+    static long[][] split(long size, int lanes, int frameSize) {
+        long frames = (size + frameSize - 1) / frameSize;
+        long perLane = (frames + lanes - 1) / lanes;
+        long[][] ranges = new long[lanes][2];
+        for (int i = 0; i < lanes; i++) {
+            ranges[i][0] = Math.min(size, i * perLane * frameSize);
+            ranges[i][1] = Math.min(size, (i + 1) * perLane * frameSize);
+        }
+        return ranges;
+    }
+
+    private Socket[] connectLanes(String transferId, int lanes) throws Exception {
+        Socket[] sockets = new Socket[lanes];
+        try {
+            if (opener) {
+                for (int i = 0; i < lanes; i++) {
+                    Socket socket = connector.open();
+                    sockets[i] = socket;
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    out.writeUTF(transferId);
+                    out.writeInt(i);
+                    out.write(laneProof(transferId, i));
+                }
+            } else {
+                int accepted = 0;
+                int attempts = 0;
+                while (accepted < lanes) {
+                    if (++attempts > lanes * 4) {
+                        throw new IOException("子连接校验失败次数过多");
+                    }
+                    Socket socket = connector.open();
+                    socket.setSoTimeout(LANE_TIMEOUT);
+                    try {
+                        DataInputStream in = new DataInputStream(socket.getInputStream());
+                        String id = in.readUTF();
+                        int index = in.readInt();
+                        byte[] proof = new byte[PROOF_LENGTH];
+                        in.readFully(proof);
+                        if (!id.equals(transferId) || index < 0 || index >= lanes || sockets[index] != null
+                                || !MessageDigest.isEqual(proof, laneProof(transferId, index))) {
+                            throw new SecurityException("子连接身份验证失败");
+                        }
+                        socket.setSoTimeout(0);
+                        sockets[index] = socket;
+                        accepted++;
+                    } catch (IOException | SecurityException e) {
+                        socket.close();
+                        System.out.println("拒绝子连接: " + e.getMessage());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            closeAll(sockets);
+            throw e;
+        }
+        return sockets;
+    }
+
+    private byte[] laneProof(String transferId, int index) throws Exception {
+        SecretKey laneKey = CryptoUtil.deriveKey(sessionKey, laneLabel(transferId, index));
+        return CryptoUtil.hmac(laneKey, "lane-hello".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private SecureChannel laneChannel(Socket socket, String transferId, int index, boolean sender) throws Exception {
+        SecretKey laneKey = CryptoUtil.deriveKey(sessionKey, laneLabel(transferId, index));
+        SecureChannel lane = new SecureChannel(socket,
+                new DataInputStream(new BufferedInputStream(socket.getInputStream())),
+                new DataOutputStream(socket.getOutputStream()), new CipherSession(laneKey, sender),
+                channel.getMetrics());
+        // 子连接不交换 SETTINGS，沿用主连接协商的压缩
+        lane.inheritSettings(channel);
+        return lane;
+    }
+
+    private static String laneLabel(String transferId, int index) {
+        return "lane|" + transferId + "|" + index;
+    }
+
+    private interface LaneTask {
+        void run(int index) throws Exception;
+    }
+
+    private void runLanes(int lanes, LaneTask task) throws Exception {
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < lanes; i++) {
+            int index = i;
+            threads.add(threadMode.start("lane-" + i, () -> {
+                try {
+                    task.run(index);
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private static void closeAll(Socket[] sockets) {
+        for (Socket socket : sockets) {
+            if (socket == null)
+                continue;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+        }
+    }
+
+    private static String newTransferId() {
+        byte[] id = new byte[12];
+        new SecureRandom().nextBytes(id);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : id) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,98 @@
+import java.security.KeyPair;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 后台补充的 RSA 密钥对池。
+ * <p>
+ * 生成 2048 位 RSA 密钥对需要几十到几百毫秒，放在连接建立的关键路径上会拖慢握手，
+ * 大量客户端同时重连时还会造成 CPU 尖峰。池由一个低优先级后台线程预先填满，握手时直接取用；
+ * 每个密钥对只使用一次。池被取空时退回当场生成，并计入未命中次数。
+ * <p>
+ * 通过系统属性 {@code -Dsecure.rsa.pool=N}（N &gt; 0）启用全局共享池。
+ */
+public class RsaKeyPairPool {
+    public static final String PROPERTY = "secure.rsa.pool";
+
+    private static volatile RsaKeyPairPool shared;
+
+    private final BlockingQueue<KeyPair> pool;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * 创建容量为 capacity 的池，并立即启动后台补充线程。
+     */
+    public RsaKeyPairPool(int capacity) {
+        pool = new ArrayBlockingQueue<>(capacity);
+        Thread refiller = new Thread(this::refill, "rsa-keypair-refill");
+        refiller.setDaemon(true);
+        refiller.setPriority(Thread.MIN_PRIORITY);
+        refiller.start();
+    }
+
+    /**
+     * 全局共享池，未通过 {@value #PROPERTY} 启用时返回 null。
+     */
+    public static RsaKeyPairPool shared() {
+        RsaKeyPairPool pool = shared;
+        if (pool == null) {
+            int capacity = Integer.getInteger(PROPERTY, 0);
+            if (capacity <= 0)
+                return null;
+            synchronized (RsaKeyPairPool.class) {
+                if (shared == null) {
+                    shared = new RsaKeyPairPool(capacity);
+                }
+                pool = shared;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * 取得一个 RSA 密钥对：启用共享池时从池中取，否则当场生成。
+     */
+    public static KeyPair acquire() throws Exception {
+        RsaKeyPairPool pool = shared();
+        return pool != null ? pool.take() : CryptoUtil.generateRSAKeyPair();
+    }
+
+    /**
+     * 从池中取出一个密钥对，池为空时当场生成。
+     */
+    public KeyPair take() throws Exception {
+        KeyPair keyPair = pool.poll();
+        if (keyPair != null) {
+            hits.incrementAndGet();
+            return keyPair;
+        }
+        misses.incrementAndGet();
+        return CryptoUtil.generateRSAKeyPair();
+    }
+
+    public int available() {
+        return pool.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private void refill() {
+        try {
+            while (true) {
+                pool.put(CryptoUtil.generateRSAKeyPair());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.err.println("RSA 密钥对预生成失败: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,563 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+
+/**
+ * 已完成握手的加密连接，负责帧的加解密与读写。
+ * <p>
+ * 帧格式为 4 字节长度、5 字节明文帧头（1 字节 {@link FrameType}、4 字节流 ID）和 AES-GCM 密文，
+ * 长度包括帧头。帧头作为 GCM 附加数据参与认证，篡改类型或流 ID 会导致解密失败。
+ * 类型字节的最高位是压缩标志，置位时密文解密后还需解压，见 {@link FrameCompressor}。
+ * <p>
+ * 连接建立后双方各发送一个 {@link FrameType#SETTINGS} 帧声明自己能解压的格式；
+ * 只有本端启用了压缩且收到对方的声明后，写出的帧才会压缩，不认识该帧的对端因此不会收到压缩帧。
+ * SETTINGS 帧同时声明本端的接收窗口，本连接写出和读到的受流控帧都记入 {@link #getFlowControl()}。
+ * 收发缓冲区按需扩容后在整个连接期间复用。
+ * <p>
+ * 写方法由 {@link ReentrantLock} 互斥，可以在多个线程上调用；主连接上的写出统一由 {@link FrameScheduler}
+ * 的写线程完成。
+ * 默认每帧立即写到套接字；{@link #setCoalescing(int)} 后小帧先在缓冲区中合并，缓冲区满或调用
+ * {@link #flush()} 时才一次写出，由写线程决定何时刷出。
+ * 读方法只应由一个接收线程调用：先用 {@link #readHeader()} 读出帧头，再用 {@link #readPayload()}
+ * 以本连接的会话密钥解密，或用 {@link #readSealed(byte[])} 取出密文交给调用方用流密钥解密。
+ * {@link #readPayload(ByteBuffer)} 和 {@link #writeFrame(FrameType, int, ByteBuffer)} 直接在调用方的缓冲区
+ * （可以是 {@link BufferPool} 的堆外缓冲区）上解密和加密，不为每帧分配数组。字符串一律按 UTF-8 编码。
+ */
+public class SecureChannel implements Closeable {
+    /** 明文帧头长度：类型 1 字节、流 ID 4 字节 */
+    public static final int HEADER_LENGTH = 5;
+    /** 单帧允许的最大长度，防止异常对端让本端分配过大的缓冲区 */
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    /** 类型字节中的压缩标志 */
+    static final int COMPRESSED_FLAG = 0x80;
+    /** SETTINGS 帧中的能力位：能解压 Deflate 帧 */
+    static final int SETTING_DEFLATE = 0x01;
+    /** SETTINGS 帧中的能力位：认识 WINDOW_UPDATE 帧，能力位之后是 4 字节的接收窗口 */
+    static final int SETTING_FLOW_CONTROL = 0x02;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final CipherSession cipherSession;
+    private final Metrics metrics;
+    private final FlowControl flowControl = FlowControl.fromSystemProperty();
+    private byte[] sendBuffer = new byte[1024];
+    private byte[] receiveBuffer = new byte[1024];
+    // 包装 sendBuffer/receiveBuffer 的视图，随数组扩容重建，避免每帧创建包装对象
+    private ByteBuffer sendView = ByteBuffer.wrap(sendBuffer);
+    private ByteBuffer receiveView = ByteBuffer.wrap(receiveBuffer);
+    private byte[] plainBuffer = new byte[1024];
+    private final byte[] sendHeader = new byte[4 + HEADER_LENGTH];
+    private final byte[] sendAad = new byte[HEADER_LENGTH];
+    private final byte[] receiveHeader = new byte[HEADER_LENGTH];
+    private FrameType frameType;
+    private boolean compressed;
+    private int streamId;
+    private int sealedLength;
+    /** 因 dst 不足而暂存在 plainBuffer 中的压缩帧明文长度，没有时为 -1 */
+    private int inflatedLength = -1;
+    private volatile int compressionLevel = FrameCompressor.levelFromSystemProperty();
+    private volatile boolean peerDecompresses;
+    private FrameCompressor compressor;
+    private FrameCompressor decompressor;
+    private byte[] inflateBuffer = new byte[0];
+    /** 合并写出的缓冲区，为 null 时每帧立即写出 */
+    private byte[] coalesceBuffer;
+    /** 只在 writeLock 内修改 */
+    private volatile int buffered;
+    /** 写方法的互斥锁。阻塞在套接字写入时不占用监视器，虚拟线程因此不会固定在载体线程上 */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * @param metrics 本连接的统计，收发的帧和加解密耗时记入其中。
+     */
+    public SecureChannel(Socket socket, DataInputStream in, DataOutputStream out, CipherSession cipherSession,
+            Metrics metrics) {
+        this.socket = socket;
+        this.in = in;
+        this.out = out;
+        this.cipherSession = cipherSession;
+        this.metrics = metrics;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public CipherSession getCipherSession() {
+        return cipherSession;
+    }
+
+    public FlowControl getFlowControl() {
+        return flowControl;
+    }
+
+    /**
+     * 设置本端的压缩级别，{@link Deflater#NO_COMPRESSION} 表示不压缩。默认值见 {@link FrameCompressor}。
+     */
+    public void setCompressionLevel(int level) {
+        this.compressionLevel = level;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * 本端启用了压缩并且对方声明能够解压时返回 true。
+     */
+    public boolean isCompressing() {
+        return compressionLevel != Deflater.NO_COMPRESSION && peerDecompresses;
+    }
+
+    /**
+     * 本端 SETTINGS 帧的内容。
+     */
+    public byte[] settings() {
+        int window = flowControl.getWindow();
+        return new byte[] { SETTING_DEFLATE | SETTING_FLOW_CONTROL, (byte) (window >>> 24), (byte) (window >>> 16),
+                (byte) (window >>> 8), (byte) window };
+    }
+
+    /**
+     * 读取并应用对方的 SETTINGS 帧，调用前帧头已由 {@link #readHeader()} 读出。
+     */
+    public void readSettings() throws Exception {
+        int len = readPayload();
+        peerDecompresses = len > 0 && (plainBuffer[0] & SETTING_DEFLATE) != 0;
+        int window = settingsWindow(plainBuffer, len);
+        if (window >= 0) {
+            flowControl.peerSettings(true, window);
+        }
+    }
+
+    /**
+     * SETTINGS 帧内容中声明的接收窗口；对方不支持流控（较早的版本）时返回 -1。
+     */
+    static int settingsWindow(byte[] settings, int len) {
+        if (len < 5 || (settings[0] & SETTING_FLOW_CONTROL) == 0)
+            return -1;
+        return Math.max(0, ((settings[1] & 0xFF) << 24) | ((settings[2] & 0xFF) << 16)
+                | ((settings[3] & 0xFF) << 8) | (settings[4] & 0xFF));
+    }
+
+    /**
+     * 沿用主连接协商的结果，用于同一会话派生出的子连接。
+     */
+    public void inheritSettings(SecureChannel parent) {
+        compressionLevel = parent.compressionLevel;
+        peerDecompresses = parent.peerDecompresses;
+    }
+
+    /**
+     * 帧头的编码，同时也是该帧 GCM 加密的附加数据。
+     */
+    public static byte[] header(FrameType type, int streamId) {
+        return header(type, streamId, false);
+    }
+
+    public static byte[] header(FrameType type, int streamId, boolean compressed) {
+        byte[] header = new byte[HEADER_LENGTH];
+        writeHeader(header, 0, type, streamId, compressed);
+        return header;
+    }
+
+    static void writeHeader(byte[] dst, int off, FrameType type, int streamId, boolean compressed) {
+        dst[off] = (byte) (compressed ? type.code() | COMPRESSED_FLAG : type.code());
+        dst[off + 1] = (byte) (streamId >>> 24);
+        dst[off + 2] = (byte) (streamId >>> 16);
+        dst[off + 3] = (byte) (streamId >>> 8);
+        dst[off + 4] = (byte) streamId;
+    }
+
+    /**
+     * 用本连接的会话密钥加密 data[off, off+len) 并作为一帧写出，协商了压缩时先尝试压缩。
+     */
+    public void writeFrame(FrameType type, int streamId, byte[] data, int off, int len) throws Exception {
+        writeLock.lock();
+        try {
+            long start = System.nanoTime();
+            int c = compressor() == null ? -1 : compressor.compress(data, off, len);
+            if (c >= 0) {
+                writeFrame(type, streamId, compressor.buffer(), 0, c, true, start);
+            } else {
+                writeFrame(type, streamId, data, off, len, false, start);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 用本连接的会话密钥加密 data 中剩余的全部字节并作为一帧写出，data 可以是直接缓冲区。
+     */
+    public void writeFrame(FrameType type, int streamId, ByteBuffer data) throws Exception {
+        writeLock.lock();
+        try {
+            long start = System.nanoTime();
+            int c = compressor() == null ? -1 : compressor.compress(data);
+            if (c >= 0) {
+                writeFrame(type, streamId, compressor.buffer(), 0, c, true, start);
+                return;
+            }
+            ensureSendCapacity(4 + HEADER_LENGTH + CipherSession.sealedLength(data.remaining()));
+            writeHeader(sendBuffer, 4, type, streamId, false);
+            writeHeader(sendAad, 0, type, streamId, false);
+            sendView.limit(sendBuffer.length).position(4 + HEADER_LENGTH);
+            int n = cipherSession.encrypt(sendAad, data, sendView);
+            metrics.encrypted(System.nanoTime() - start);
+            writeLength(sendBuffer, HEADER_LENGTH + n);
+            emit(sendBuffer, 0, 4 + HEADER_LENGTH + n);
+            sent(type, 4 + HEADER_LENGTH + n);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @param start 开始压缩或加密的时刻，用于统计加密耗时。
+     */
+    private void writeFrame(FrameType type, int streamId, byte[] data, int off, int len, boolean compressed,
+            long start) throws Exception {
+        ensureSendCapacity(4 + HEADER_LENGTH + CipherSession.sealedLength(len));
+        writeHeader(sendBuffer, 4, type, streamId, compressed);
+        writeHeader(sendAad, 0, type, streamId, compressed);
+        int n = cipherSession.encrypt(sendAad, data, off, len, sendBuffer, 4 + HEADER_LENGTH);
+        metrics.encrypted(System.nanoTime() - start);
+        writeLength(sendBuffer, HEADER_LENGTH + n);
+        emit(sendBuffer, 0, 4 + HEADER_LENGTH + n);
+        sent(type, 4 + HEADER_LENGTH + n);
+    }
+
+    /**
+     * 写线程使用的压缩器，未协商压缩时返回 null。
+     */
+    private FrameCompressor compressor() {
+        if (!isCompressing())
+            return null;
+        if (compressor == null)
+            compressor = new FrameCompressor(compressionLevel);
+        return compressor;
+    }
+
+    public void writeString(FrameType type, int streamId, String msg) throws Exception {
+        byte[] data = Utf8.encode(msg);
+        writeFrame(type, streamId, data, 0, data.length);
+    }
+
+    /**
+     * 写出一帧已由调用方加密好的密文，加密时的附加数据必须是 {@link #header(FrameType, int, boolean)}。
+     * 用于以流密钥加密的文件内容。
+     */
+    public void writeSealed(FrameType type, int streamId, boolean compressed, byte[] sealed, int off,
+            int len) throws IOException {
+        writeLock.lock();
+        try {
+            writeLength(sendHeader, HEADER_LENGTH + len);
+            writeHeader(sendHeader, 4, type, streamId, compressed);
+            emit(sendHeader, 0, sendHeader.length);
+            emit(sealed, off, len);
+            sent(type, 4 + HEADER_LENGTH + len);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void sent(FrameType type, int wireLength) {
+        metrics.frameSent(type, wireLength);
+        if (type.isFlowControlled()) {
+            flowControl.sent(wireLength);
+        }
+    }
+
+    /**
+     * 是否已有可以不阻塞读取的数据，供接收线程在等待下一帧的同时处理其他事件。
+     */
+    public boolean hasInput() throws IOException {
+        return in.available() > 0;
+    }
+
+    /**
+     * 读取下一帧的长度和帧头，随后必须调用 {@link #readPayload()} 或 {@link #readSealed(byte[])} 读取密文。
+     *
+     * @return 帧类型。
+     */
+    public FrameType readHeader() throws IOException {
+        int len = in.readInt();
+        if (len < HEADER_LENGTH + CipherSession.TAG_LENGTH || len > MAX_FRAME_LENGTH) {
+            throw new IOException("非法帧长度: " + len);
+        }
+        in.readFully(receiveHeader);
+        compressed = (receiveHeader[0] & COMPRESSED_FLAG) != 0;
+        frameType = FrameType.fromCode((byte) (receiveHeader[0] & ~COMPRESSED_FLAG));
+        streamId = ((receiveHeader[1] & 0xFF) << 24) | ((receiveHeader[2] & 0xFF) << 16)
+                | ((receiveHeader[3] & 0xFF) << 8) | (receiveHeader[4] & 0xFF);
+        sealedLength = len - HEADER_LENGTH;
+        inflatedLength = -1;
+        metrics.frameReceived(frameType, 4 + len);
+        if (frameType.isFlowControlled()) {
+            // 调用方读帧即应用在消费数据，额度按读到的帧归还
+            flowControl.received(4 + len);
+        }
+        return frameType;
+    }
+
+    /**
+     * 最近一次 {@link #readHeader()} 读到的流 ID。
+     */
+    public int streamId() {
+        return streamId;
+    }
+
+    /**
+     * 最近一次 {@link #readHeader()} 读到的帧是否压缩过。
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * 最近一次 {@link #readHeader()} 读到的帧的密文长度。
+     */
+    public int sealedLength() {
+        return sealedLength;
+    }
+
+    /**
+     * 最近一次 {@link #readHeader()} 读到的帧头，解密时作为附加数据。
+     */
+    public byte[] lastHeader() {
+        return receiveHeader.clone();
+    }
+
+    /**
+     * 读取当前帧的密文并用本连接的会话密钥解密到 {@link #frameBuffer()}，压缩过的帧同时解压。
+     * 下一次读取会覆盖其内容。
+     *
+     * @return 明文长度。
+     */
+    public int readPayload() throws Exception {
+        int len = readCiphertext();
+        long start = System.nanoTime();
+        int n = open(len);
+        metrics.decrypted(System.nanoTime() - start);
+        return n;
+    }
+
+    /**
+     * 读取当前帧的密文并解密到 dst（可以是直接缓冲区），dst 的位置随之前移。
+     * <p>
+     * dst 容纳不下明文时抛出 {@link BufferOverflowException}，当前帧保留，可以换用更大的缓冲区再次调用：
+     * 未压缩的帧在读取密文之前检查；压缩帧解压后才知道长度，明文暂存在 {@link #frameBuffer()} 中。
+     *
+     * @return 明文长度。
+     */
+    public int readPayload(ByteBuffer dst) throws Exception {
+        if (compressed) {
+            if (inflatedLength < 0)
+                inflatedLength = readPayload();
+            int n = inflatedLength;
+            if (dst.remaining() < n) {
+                throw new BufferOverflowException();
+            }
+            dst.put(plainBuffer, 0, n);
+            inflatedLength = -1;
+            return n;
+        }
+        if (dst.remaining() < sealedLength - CipherSession.TAG_LENGTH) {
+            throw new BufferOverflowException();
+        }
+        int len = readCiphertext();
+        long start = System.nanoTime();
+        receiveView.limit(len).position(0);
+        int n = cipherSession.decrypt(receiveHeader, receiveView, dst);
+        metrics.decrypted(System.nanoTime() - start);
+        return n;
+    }
+
+    /**
+     * 读取当前帧的明文到从 pool 借出的缓冲区，返回时已 flip，用完后须归还给 pool。
+     */
+    public ByteBuffer readPayload(BufferPool pool) throws Exception {
+        if (compressed) {
+            int n = inflatedLength < 0 ? readPayload() : inflatedLength;
+            inflatedLength = -1;
+            ByteBuffer buffer = pool.acquire(n);
+            buffer.put(plainBuffer, 0, n).flip();
+            return buffer;
+        }
+        ByteBuffer buffer = pool.acquire(sealedLength - CipherSession.TAG_LENGTH);
+        try {
+            readPayload(buffer);
+        } catch (Exception e) {
+            pool.release(buffer);
+            throw e;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private int readCiphertext() throws IOException {
+        int len = sealedLength;
+        if (receiveBuffer.length < len) {
+            receiveBuffer = new byte[len];
+            receiveView = ByteBuffer.wrap(receiveBuffer);
+        }
+        in.readFully(receiveBuffer, 0, len);
+        return len;
+    }
+
+    /**
+     * 解密 receiveBuffer 中的密文，压缩过的帧同时解压，明文写入 plainBuffer。
+     */
+    private int open(int len) throws Exception {
+        if (!compressed) {
+            if (plainBuffer.length < len)
+                plainBuffer = new byte[len];
+            return cipherSession.decrypt(receiveHeader, receiveBuffer, 0, len, plainBuffer, 0);
+        }
+
+        if (inflateBuffer.length < len)
+            inflateBuffer = new byte[len];
+        int n = cipherSession.decrypt(receiveHeader, receiveBuffer, 0, len, inflateBuffer, 0);
+        int plainLength = FrameCompressor.decompressedLength(inflateBuffer, 0, n);
+        if (plainLength > MAX_FRAME_LENGTH) {
+            throw new IOException("解压后的帧过长: " + plainLength);
+        }
+        if (plainBuffer.length < plainLength)
+            plainBuffer = new byte[plainLength];
+        if (decompressor == null)
+            decompressor = new FrameCompressor(Deflater.NO_COMPRESSION);
+        return decompressor.decompress(inflateBuffer, 0, n, plainBuffer, 0);
+    }
+
+    /**
+     * 读取当前帧的密文到 dst，dst 至少需要 {@link #sealedLength()} 字节。
+     */
+    public void readSealed(byte[] dst) throws IOException {
+        in.readFully(dst, 0, sealedLength);
+    }
+
+    /**
+     * 读取并丢弃当前帧的密文。
+     */
+    public void skipPayload() throws IOException {
+        int remaining = sealedLength;
+        while (remaining > 0) {
+            int n = in.skipBytes(remaining);
+            if (n <= 0) {
+                in.readByte(); // 到达流末尾时抛出 EOFException
+                n = 1;
+            }
+            remaining -= n;
+        }
+    }
+
+    /**
+     * 最近一次 {@link #readPayload()} 解密出的明文所在的缓冲区。
+     */
+    public byte[] frameBuffer() {
+        return plainBuffer;
+    }
+
+    public String readString() throws Exception {
+        int len = readPayload(); // readPayload 可能换用更大的 plainBuffer
+        return Utf8.decode(plainBuffer, 0, len);
+    }
+
+    /**
+     * 读取下一帧，要求其类型为 expected，解密后返回明文长度。
+     */
+    public int readFrame(FrameType expected) throws Exception {
+        FrameType type = readHeader();
+        if (type != expected) {
+            throw new IOException("期望 " + expected + " 帧，收到 " + type);
+        }
+        return readPayload();
+    }
+
+    private static void writeLength(byte[] dst, int len) {
+        dst[0] = (byte) (len >>> 24);
+        dst[1] = (byte) (len >>> 16);
+        dst[2] = (byte) (len >>> 8);
+        dst[3] = (byte) len;
+    }
+
+    /**
+     * 开启或关闭合并写出。开启后小于 threshold 的帧先进入缓冲区，累计到 threshold 字节时写出；
+     * 更大的帧连同之前缓冲的内容直接写出。调用方负责在没有更多帧时调用 {@link #flush()}。
+     * 由本端控制写出时机后，关闭套接字的 Nagle 算法，刷出的内容立即发送。
+     *
+     * @param threshold 缓冲区大小（字节），0 表示每帧立即写出。
+     */
+    public void setCoalescing(int threshold) throws IOException {
+        writeLock.lock();
+        try {
+            flush();
+            coalesceBuffer = threshold > 0 ? new byte[threshold] : null;
+            socket.setTcpNoDelay(true);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 写出缓冲区中合并的帧。
+     */
+    public void flush() throws IOException {
+        writeLock.lock();
+        try {
+            if (buffered > 0) {
+                out.write(coalesceBuffer, 0, buffered);
+                metrics.socketWrite();
+                buffered = 0;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 缓冲区中尚未写出的字节数。不加锁，可以在持有其他锁时调用。
+     */
+    public int bufferedBytes() {
+        return buffered;
+    }
+
+    private void emit(byte[] data, int off, int len) throws IOException {
+        if (coalesceBuffer == null) {
+            out.write(data, off, len);
+            metrics.socketWrite();
+            return;
+        }
+        if (buffered + len > coalesceBuffer.length) {
+            flush();
+        }
+        if (len >= coalesceBuffer.length) {
+            // 大帧（例如文件内容）直接写出，不复制
+            out.write(data, off, len);
+            metrics.socketWrite();
+            return;
+        }
+        System.arraycopy(data, off, coalesceBuffer, buffered, len);
+        buffered += len;
+        if (buffered == coalesceBuffer.length) {
+            flush();
+        }
+    }
+
+    private void ensureSendCapacity(int size) {
+        if (sendBuffer.length < size) {
+            sendBuffer = new byte[size];
+            sendView = ByteBuffer.wrap(sendBuffer);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -1,8 +1,8 @@
 import java.io.*;
 import java.net.Socket;
-import java.security.*;
-import java.security.spec.X509EncodedKeySpec;
-import java.util.Base64;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.crypto.SecretKey;
 
 public class SecureClient {
@@ -10,108 +10,220 @@ public class SecureClient {
     private DataOutputStream out;
     private DataInputStream in;
     private SecretKey aesKey;
+    private Metrics metrics;
+    private SecureChannel channel;
+    private FrameScheduler scheduler;
+    private FileTransfer fileTransfer;
+    private ParallelFileTransfer parallelTransfer;
+    /** 按群组 ID 索引的当前群组密钥，由接收线程更新 */
+    private final Map<Integer, GroupKey> groupKeys = new ConcurrentHashMap<>();
+    private byte[] groupBuffer = new byte[0];
+    private byte[] groupPlain = new byte[0];
+    private MessageReceiver receiver;
 
     public SecureClient(String host, int port) throws Exception {
         connect(host, port);
     }
 
     private void connect(String host, int port) throws Exception {
-        KeyPair keyPair = CryptoUtil.generateRSAKeyPair();
         socket = new Socket(host, port);
         out = new DataOutputStream(socket.getOutputStream());
         in = new DataInputStream(socket.getInputStream());
 
-        // 发送客户端公钥和签名
-        String pubKeyStr = Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded());
-        String signature = CryptoUtil.sign(pubKeyStr, keyPair.getPrivate());
-        out.writeUTF(pubKeyStr);
-        out.writeUTF(signature);
-
-        // 接收服务器公钥和签名
-        String serverPubKeyStr = in.readUTF();
-        String serverSignature = in.readUTF();
-
-        PublicKey serverPubKey = KeyFactory.getInstance("RSA")
-                .generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(serverPubKeyStr)));
-
-        if (!CryptoUtil.verify(serverPubKeyStr, serverSignature, serverPubKey)) {
-            throw new SecurityException("服务器身份验证失败");
+        metrics = Metrics.connection("client");
+        long start = System.nanoTime();
+        try {
+            aesKey = Handshake.client(in, out, HandshakeMode.fromSystemProperty(), host + ":" + port);
+        } catch (Exception e) {
+            metrics.close();
+            throw e;
         }
-
-        // 使用服务器公钥加密 AES 密钥并发送
-        aesKey = CryptoUtil.generateAESKey();
-        byte[] encryptedAesKey = CryptoUtil.encryptRSA(aesKey.getEncoded(), serverPubKey);
-        out.writeInt(encryptedAesKey.length);
-        out.write(encryptedAesKey);
+        metrics.handshake(System.nanoTime() - start);
+        channel = new SecureChannel(socket, in, out, new CipherSession(aesKey, true), metrics);
+        scheduler = new FrameScheduler(channel);
+        scheduler.send(FrameType.SETTINGS, 0, channel.settings());
+        fileTransfer = new FileTransfer(channel, scheduler);
+        parallelTransfer = new ParallelFileTransfer(channel, scheduler, aesKey, () -> new Socket(host, port), true);
+        receiver = new MessageReceiver(channel, scheduler, fileTransfer, parallelTransfer, this::handleGroupFrame);
 
         System.out.println("连接成功，通信已加密");
     }
 
+    /**
+     * 排队发送一条消息，由写线程优先于文件数据写出。
+     */
     public void sendMessage(String msg) throws Exception {
-        byte[] encrypted = CryptoUtil.encryptAES(msg, aesKey);
-        out.writeInt(encrypted.length);
-        out.write(encrypted);
+        scheduler.sendMessage(msg);
+    }
+
+    /**
+     * 排队发送 msg 中剩余的全部字节作为一条消息，返回前已复制，调用方可以立即复用 msg。
+     */
+    public void sendMessage(ByteBuffer msg) throws Exception {
+        scheduler.send(FrameType.MESSAGE, 0, msg);
+    }
+
+    /**
+     * 立即写出已合并但尚未发送的消息，见 {@link FrameScheduler#flush()}。
+     */
+    public void flush() {
+        scheduler.flush();
     }
 
     public String receiveMessage() throws Exception {
-        int length = in.readInt();
-        byte[] encrypted = new byte[length];
-        in.readFully(encrypted);
-        String message = CryptoUtil.decryptAES(encrypted, aesKey);
-
-        // 文件接收逻辑
-        if (message.equals("[FILE]")) {
-            String fileName = CryptoUtil.decryptAES(readEncrypted(), aesKey);
-            long fileSize = Long.parseLong(CryptoUtil.decryptAES(readEncrypted(), aesKey));
-
-            File receivedFile = new File("received_" + fileName);
-            try (FileOutputStream fos = new FileOutputStream(receivedFile)) {
-                long remaining = fileSize;
-                while (remaining > 0) {
-                    int chunkLen = in.readInt();
-                    byte[] chunkEncrypted = new byte[chunkLen];
-                    in.readFully(chunkEncrypted);
-                    byte[] chunk = CryptoUtil.decryptAESBytes(chunkEncrypted, aesKey);
-                    fos.write(chunk);
-                    remaining -= chunk.length;
-                }
-            }
-
-            return "收到文件: " + fileName;
+        return receiver.receiveMessage();
+    }
+
+    /**
+     * 接收下一条消息，以 UTF-8 字节写入 dst，见 {@link MessageReceiver#receiveMessage(ByteBuffer)}。
+     *
+     * @return 写入 dst 的字节数。
+     */
+    public int receiveMessage(ByteBuffer dst) throws Exception {
+        return receiver.receiveMessage(dst);
+    }
+
+    /**
+     * 接收下一条消息到从 {@link BufferPool#shared()} 借出的缓冲区，返回时已 flip，用完后须归还。
+     */
+    public ByteBuffer receivePooledMessage() throws Exception {
+        return receiver.receivePooledMessage();
+    }
+
+    /**
+     * 请求加入群组，服务端随后下发群组密钥，之后 {@link #receiveMessage()} 会返回该群组的消息。
+     */
+    public void joinGroup(String name) throws Exception {
+        scheduler.send(FrameType.GROUP_JOIN, 0, utf(name));
+    }
+
+    public void leaveGroup(String name) throws Exception {
+        scheduler.send(FrameType.GROUP_LEAVE, 0, utf(name));
+        groupKeys.values().removeIf(key -> key.getName().equals(name));
+    }
+
+    /**
+     * 向已加入的群组发送一条消息，由服务端加密一次后转发给所有成员（包括自己）。
+     */
+    public void sendGroupMessage(String name, String msg) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(name);
+        bytes.write(Utf8.encode(msg));
+        scheduler.send(FrameType.GROUP_SEND, 0, bytes.toByteArray());
+    }
+
+    private static byte[] utf(String value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(value);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 接收线程上的群组帧：GROUP_KEY 更新群组密钥，GROUP_MESSAGE 作为消息交给上层。
+     */
+    private String handleGroupFrame(FrameType type) throws Exception {
+        if (type == FrameType.GROUP_KEY) {
+            int len = channel.readPayload();
+            GroupKey key = GroupKey.decode(channel.streamId(), channel.frameBuffer(), len);
+            groupKeys.put(key.getGroupId(), key);
+            return null;
         }
+        return readGroupMessage();
+    }
 
-        return message;
+    /**
+     * 读取并用群组密钥解密当前的 GROUP_MESSAGE 帧。
+     *
+     * @return "[群组名] 消息"；已经退出的群组在途的消息返回 null。
+     */
+    private String readGroupMessage() throws Exception {
+        int len = channel.sealedLength();
+        if (groupBuffer.length < len) {
+            groupBuffer = new byte[len];
+            groupPlain = new byte[len];
+        }
+        channel.readSealed(groupBuffer);
+        GroupKey key = groupKeys.get(channel.streamId());
+        if (key == null)
+            return null;
+        long start = System.nanoTime();
+        int n = key.open(channel.lastHeader(), groupBuffer, 0, len, groupPlain, 0);
+        metrics.decrypted(System.nanoTime() - start);
+        return "[" + key.getName() + "] " + Utf8.decode(groupPlain, 0, n);
     }
 
+    /**
+     * 发送一个文件，全部内容写出后返回。发送期间消息照常收发，也可以在其他线程上同时发送其他文件。
+     */
     public void sendFile(File file) throws Exception {
-        // 1. 发送文件标识头
-        sendMessage("[FILE]");
-
-        // 2. 发送文件名和文件大小（加密）
-        sendMessage(file.getName());
-        sendMessage(String.valueOf(file.length()));
-
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                byte[] actualBytes = new byte[bytesRead];
-                System.arraycopy(buffer, 0, actualBytes, 0, bytesRead);
-                byte[] encryptedChunk = CryptoUtil.encryptAESBytes(actualBytes, aesKey);
-                out.writeInt(encryptedChunk.length);
-                out.write(encryptedChunk);
-            }
-        }
+        fileTransfer.send(file);
+    }
+
+    /**
+     * 发送一个文件并报告进度，中断调用线程可以取消，见 {@link FileTransfer#send(File, FileTransfer.Progress)}。
+     */
+    public void sendFile(File file, FileTransfer.Progress progress) throws Exception {
+        fileTransfer.send(file, progress);
+    }
+
+    /**
+     * 把文件切分为多个区间，经由多条子连接并行发送。
+     *
+     * @param file  要发送的文件。
+     * @param lanes 子连接数。
+     * @throws Exception 如果任一子连接失败。
+     */
+    public void sendFileParallel(File file, int lanes) throws Exception {
+        parallelTransfer.send(file, lanes);
     }
 
-    private byte[] readEncrypted() throws IOException {
-        int len = in.readInt();
-        byte[] data = new byte[len];
-        in.readFully(data);
-        return data;
+    /**
+     * 并行发送并报告进度，中断调用线程可以取消。
+     */
+    public void sendFileParallel(File file, int lanes, FileTransfer.Progress progress) throws Exception {
+        parallelTransfer.send(file, lanes, progress);
+    }
+
+    /**
+     * 设置发送文件时每帧的明文大小。
+     *
+     * @param frameSize 帧大小，取值范围见 {@link FileTransfer#setFrameSize(int)}。
+     */
+    public void setFileFrameSize(int frameSize) {
+        fileTransfer.setFrameSize(frameSize);
+        parallelTransfer.setFrameSize(frameSize);
+    }
+
+    /**
+     * 最近一次文件收发的分阶段统计，尚无时返回 null。
+     */
+    public TransferStats getLastTransferStats() {
+        return fileTransfer.getLastStats();
+    }
+
+    /**
+     * 本连接的收发统计，见 {@link Metrics}。
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 本连接的发送队列水位和发送额度，生产者可以注册 {@link FlowControl.Listener} 或用
+     * {@link FlowControl#awaitWritable()} 等待对方跟上。
+     */
+    public FlowControl getFlowControl() {
+        return channel.getFlowControl();
     }
 
     public void close() throws IOException {
-        socket.close();
+        if (metrics != null)
+            metrics.close();
+        if (scheduler != null) {
+            fileTransfer.close();
+            scheduler.close();
+        } else {
+            socket.close();
+        }
     }
 }
@@ -1,10 +1,7 @@
 import java.io.*;
 import java.net.*;
-import java.security.*;
-import java.security.spec.X509EncodedKeySpec;
-import java.util.Base64;
+import java.nio.ByteBuffer;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
 
 public class SecureServer {
     private ServerSocket serverSocket;
@@ -12,112 +9,181 @@ public class SecureServer {
     private DataInputStream in;
     private DataOutputStream out;
     private SecretKey aesKey;
+    private Metrics metrics;
+    private SecureChannel channel;
+    private FrameScheduler scheduler;
+    private FileTransfer fileTransfer;
+    private ParallelFileTransfer parallelTransfer;
+    private MessageReceiver receiver;
 
     public SecureServer(int port) throws Exception {
         serverSocket = new ServerSocket(port);
         System.out.println("服务器监听端口 " + port + "...");
     }
 
+    /**
+     * 在一个已经接受的连接上完成握手，用于多客户端服务端中的单个会话。
+     * 该实例不持有监听套接字，{@link #close()} 只关闭这个连接。
+     *
+     * @param socket 已接受的客户端连接。
+     * @throws Exception 如果握手失败。
+     */
+    public SecureServer(Socket socket) throws Exception {
+        handshake(socket);
+    }
+
     public void acceptConnection() throws Exception {
-        KeyPair serverKeyPair = CryptoUtil.generateRSAKeyPair();
+        handshake(serverSocket.accept());
+    }
 
-        socket = serverSocket.accept();
+    private void handshake(Socket socket) throws Exception {
+        this.socket = socket;
         in = new DataInputStream(socket.getInputStream());
         out = new DataOutputStream(socket.getOutputStream());
 
-        // 身份验证（略）
-        String clientPubKeyStr = in.readUTF();
-        String clientSignature = in.readUTF();
-        PublicKey clientPubKey = KeyFactory.getInstance("RSA").generatePublic(
-                new X509EncodedKeySpec(Base64.getDecoder().decode(clientPubKeyStr)));
-
-        if (!CryptoUtil.verify(clientPubKeyStr, clientSignature, clientPubKey)) {
-            throw new SecurityException("客户端身份验证失败");
+        metrics = Metrics.connection("server");
+        long start = System.nanoTime();
+        try {
+            aesKey = Handshake.server(in, out);
+        } catch (Exception e) {
+            metrics.close();
+            throw e;
         }
-        System.out.println("客户端身份已验证");
+        metrics.handshake(System.nanoTime() - start);
+        channel = new SecureChannel(socket, in, out, new CipherSession(aesKey, false), metrics);
+        scheduler = new FrameScheduler(channel);
+        scheduler.send(FrameType.SETTINGS, 0, channel.settings());
+        fileTransfer = new FileTransfer(channel, scheduler);
+        // 只有自己持有监听套接字时才能接受并行传输的子连接
+        ParallelFileTransfer.LaneConnector connector = serverSocket == null ? null : () -> {
+            serverSocket.setSoTimeout(ParallelFileTransfer.LANE_TIMEOUT);
+            try {
+                return serverSocket.accept();
+            } finally {
+                serverSocket.setSoTimeout(0);
+            }
+        };
+        parallelTransfer = new ParallelFileTransfer(channel, scheduler, aesKey, connector, false);
+        receiver = new MessageReceiver(channel, scheduler, fileTransfer, parallelTransfer, null);
+
+        System.out.println("安全连接已建立");
+    }
 
-        // 发送公钥和签名
-        String serverPubKeyStr = Base64.getEncoder().encodeToString(serverKeyPair.getPublic().getEncoded());
-        String serverSignature = CryptoUtil.sign(serverPubKeyStr, serverKeyPair.getPrivate());
-        out.writeUTF(serverPubKeyStr);
-        out.writeUTF(serverSignature);
+    /**
+     * 排队发送一条消息，由写线程优先于文件数据写出。
+     */
+    public void sendMessage(String msg) throws Exception {
+        scheduler.sendMessage(msg);
+    }
 
-        // 接收 AES 密钥
-        int len = in.readInt();
-        byte[] encryptedAesKey = new byte[len];
-        in.readFully(encryptedAesKey);
-        byte[] aesKeyBytes = CryptoUtil.decryptRSA(encryptedAesKey, serverKeyPair.getPrivate());
-        aesKey = new SecretKeySpec(aesKeyBytes, "AES");
+    /**
+     * 排队发送 msg 中剩余的全部字节作为一条消息，返回前已复制，调用方可以立即复用 msg。
+     */
+    public void sendMessage(ByteBuffer msg) throws Exception {
+        scheduler.send(FrameType.MESSAGE, 0, msg);
+    }
 
-        System.out.println("安全连接已建立");
+    /**
+     * 立即写出已合并但尚未发送的消息，见 {@link FrameScheduler#flush()}。
+     */
+    public void flush() {
+        scheduler.flush();
     }
 
     public String receiveMessage() throws Exception {
-        int length = in.readInt();
-        byte[] encrypted = new byte[length];
-        in.readFully(encrypted);
-        String message = CryptoUtil.decryptAES(encrypted, aesKey);
-
-        // 文件标识
-        if (message.equals("[FILE]")) {
-            String fileName = CryptoUtil.decryptAES(readEncrypted(), aesKey);
-            long fileSize = Long.parseLong(CryptoUtil.decryptAES(readEncrypted(), aesKey));
-
-            File outputFile = new File("received_" + fileName);
-            try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-                long remaining = fileSize;
-                while (remaining > 0) {
-                    int chunkLen = in.readInt();
-                    byte[] chunkEncrypted = new byte[chunkLen];
-                    in.readFully(chunkEncrypted);
-                    byte[] chunk = CryptoUtil.decryptAESBytes(chunkEncrypted, aesKey);
-                    fos.write(chunk);
-                    remaining -= chunk.length;
-                }
-            }
-
-            return "收到文件: " + fileName;
-        }
+        return receiver.receiveMessage();
+    }
 
-        return message;
+    /**
+     * 接收下一条消息，以 UTF-8 字节写入 dst，见 {@link MessageReceiver#receiveMessage(ByteBuffer)}。
+     *
+     * @return 写入 dst 的字节数。
+     */
+    public int receiveMessage(ByteBuffer dst) throws Exception {
+        return receiver.receiveMessage(dst);
     }
 
-    public void sendMessage(String msg) throws Exception {
-        byte[] encrypted = CryptoUtil.encryptAES(msg, aesKey);
-        out.writeInt(encrypted.length);
-        out.write(encrypted);
+    /**
+     * 接收下一条消息到从 {@link BufferPool#shared()} 借出的缓冲区，返回时已 flip，用完后须归还。
+     */
+    public ByteBuffer receivePooledMessage() throws Exception {
+        return receiver.receivePooledMessage();
     }
 
+    /**
+     * 发送一个文件，全部内容写出后返回。发送期间消息照常收发，也可以在其他线程上同时发送其他文件。
+     */
     public void sendFile(File file) throws Exception {
-        // 1. 发送文件标识头
-        sendMessage("[FILE]");
-
-        // 2. 发送文件名 + 文件大小（加密发送）
-        sendMessage(file.getName());
-        sendMessage(String.valueOf(file.length()));
-
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                byte[] actualBytes = new byte[bytesRead];
-                System.arraycopy(buffer, 0, actualBytes, 0, bytesRead);
-                byte[] encryptedChunk = CryptoUtil.encryptAESBytes(actualBytes, aesKey);
-                out.writeInt(encryptedChunk.length);
-                out.write(encryptedChunk);
-            }
-        }
+        fileTransfer.send(file);
+    }
+
+    /**
+     * 发送一个文件并报告进度，中断调用线程可以取消，见 {@link FileTransfer#send(File, FileTransfer.Progress)}。
+     */
+    public void sendFile(File file, FileTransfer.Progress progress) throws Exception {
+        fileTransfer.send(file, progress);
+    }
+
+    /**
+     * 把文件切分为多个区间，经由多条子连接并行发送。
+     *
+     * @param file  要发送的文件。
+     * @param lanes 子连接数。
+     * @throws Exception 如果任一子连接失败。
+     */
+    public void sendFileParallel(File file, int lanes) throws Exception {
+        parallelTransfer.send(file, lanes);
+    }
+
+    /**
+     * 并行发送并报告进度，中断调用线程可以取消。
+     */
+    public void sendFileParallel(File file, int lanes, FileTransfer.Progress progress) throws Exception {
+        parallelTransfer.send(file, lanes, progress);
+    }
+
+    /**
+     * 设置发送文件时每帧的明文大小。
+     *
+     * @param frameSize 帧大小，取值范围见 {@link FileTransfer#setFrameSize(int)}。
+     */
+    public void setFileFrameSize(int frameSize) {
+        fileTransfer.setFrameSize(frameSize);
+        parallelTransfer.setFrameSize(frameSize);
+    }
+
+    /**
+     * 最近一次文件收发的分阶段统计，尚无时返回 null。
+     */
+    public TransferStats getLastTransferStats() {
+        return fileTransfer.getLastStats();
+    }
+
+    /**
+     * 本连接的收发统计，见 {@link Metrics}。
+     */
+    public Metrics getMetrics() {
+        return metrics;
     }
 
-    private byte[] readEncrypted() throws IOException {
-        int len = in.readInt();
-        byte[] data = new byte[len];
-        in.readFully(data);
-        return data;
+    /**
+     * 本连接的发送队列水位和发送额度，生产者可以注册 {@link FlowControl.Listener} 或用
+     * {@link FlowControl#awaitWritable()} 等待对方跟上。
+     */
+    public FlowControl getFlowControl() {
+        return channel.getFlowControl();
     }
 
     public void close() throws IOException {
-        socket.close();
-        serverSocket.close();
+        if (metrics != null)
+            metrics.close();
+        if (scheduler != null) {
+            fileTransfer.close();
+            scheduler.close();
+        } else {
+            socket.close();
+        }
+        if (serverSocket != null)
+            serverSocket.close();
     }
 }
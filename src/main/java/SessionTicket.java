@@ -0,0 +1,59 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.SecretKey;
+
+/**
+ * 客户端保存的会话票据，按服务端地址（host:port）索引，进程内的所有 {@link SecureClient} 共享。
+ * <p>
+ * 票据内容对客户端不透明，客户端只需保存它和对应的恢复秘密。每张票据只能使用一次，
+ * 不论恢复成功与否都会从存储中取出，恢复成功后服务端会签发新的票据。
+ * 通过系统属性 {@code -Dsecure.ticket=false} 让客户端总是执行完整握手。
+ */
+public class SessionTicket {
+    public static final String PROPERTY = "secure.ticket";
+
+    private static final Map<String, SessionTicket> store = new ConcurrentHashMap<>();
+
+    private final byte[] ticket;
+    private final SecretKey resumptionSecret;
+    private final long expiresAt;
+
+    SessionTicket(byte[] ticket, SecretKey resumptionSecret, long expiresAt) {
+        this.ticket = ticket;
+        this.resumptionSecret = resumptionSecret;
+        this.expiresAt = expiresAt;
+    }
+
+    public byte[] getTicket() {
+        return ticket;
+    }
+
+    public SecretKey getResumptionSecret() {
+        return resumptionSecret;
+    }
+
+    public static boolean isEnabled() {
+        return !"false".equalsIgnoreCase(System.getProperty(PROPERTY));
+    }
+
+    static void save(String peer, SessionTicket ticket) {
+        store.put(peer, ticket);
+    }
+
+    /**
+     * 取出 peer 的未过期票据，没有时返回 null。
+     */
+    static SessionTicket take(String peer) {
+        SessionTicket ticket = store.remove(peer);
+        if (ticket == null || ticket.expiresAt < System.currentTimeMillis())
+            return null;
+        return ticket;
+    }
+
+    /**
+     * 丢弃所有已保存的票据。
+     */
+    public static void clear() {
+        store.clear();
+    }
+}
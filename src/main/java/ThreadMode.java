@@ -0,0 +1,81 @@
+import java.lang.reflect.Method;
+
+/**
+ * 连接处理线程模式：平台线程或虚拟线程。
+ * <p>
+ * 通过系统属性 {@code -Dsecure.threads=virtual|platform} 选择，默认使用平台线程。
+ * 虚拟线程需要 JDK 21 及以上版本；在更低版本上运行时会提示并退回平台线程，
+ * 因此同一份构建可以在不同 JDK 上对比两种模式的内存占用和上下文切换次数。
+ */
+public enum ThreadMode {
+    PLATFORM, VIRTUAL;
+
+    public static final String PROPERTY = "secure.threads";
+
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            // JDK 21 之前没有虚拟线程
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_UNSTARTED = unstarted;
+    }
+
+    /**
+     * 读取系统属性 {@value #PROPERTY} 决定线程模式。
+     */
+    public static ThreadMode fromSystemProperty() {
+        String value = System.getProperty(PROPERTY, "platform");
+        ThreadMode mode = "virtual".equalsIgnoreCase(value) ? VIRTUAL : PLATFORM;
+        if (mode == VIRTUAL && !isVirtualSupported()) {
+            System.out.println("当前 JDK 不支持虚拟线程，改用平台线程");
+            return PLATFORM;
+        }
+        return mode;
+    }
+
+    public static boolean isVirtualSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * 按当前模式创建一个尚未启动的线程。
+     *
+     * @param name 线程名称。
+     * @param task 线程要执行的任务。
+     * @return 未启动的线程。
+     */
+    public Thread newThread(String name, Runnable task) {
+        if (this == VIRTUAL && isVirtualSupported()) {
+            try {
+                Object builder = OF_VIRTUAL.invoke(null);
+                builder = BUILDER_NAME.invoke(builder, name);
+                return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("创建虚拟线程失败", e);
+            }
+        }
+        return new Thread(task, name);
+    }
+
+    /**
+     * 按当前模式创建并启动一个线程。
+     */
+    public Thread start(String name, Runnable task) {
+        Thread thread = newThread(name, task);
+        thread.start();
+        return thread;
+    }
+}
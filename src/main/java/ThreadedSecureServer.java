@@ -0,0 +1,86 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 每个连接一个线程的多客户端安全服务端。
+ * <p>
+ * 沿用 {@link SecureServer} 的阻塞式协议代码：每个接受的连接在独立线程上完成握手，
+ * 然后交给 {@link SessionHandler} 处理收发循环。线程类型由 {@link ThreadMode} 决定，
+ * 使用虚拟线程时可以在少量平台线程上承载大量空闲会话。
+ */
+public class ThreadedSecureServer implements Closeable {
+    /**
+     * 会话处理器，在该连接自己的线程上调用，返回后连接被关闭。
+     */
+    public interface SessionHandler {
+        void handle(long sessionId, SecureServer session) throws Exception;
+    }
+
+    private final ServerSocket serverSocket;
+    private final ThreadMode threadMode;
+    private final AtomicLong nextSessionId = new AtomicLong(1);
+
+    public ThreadedSecureServer(int port, ThreadMode threadMode) throws IOException {
+        this.serverSocket = new ServerSocket(port);
+        this.threadMode = threadMode;
+        System.out.println("服务器监听端口 " + port + "（" + threadMode + " 线程模式）...");
+    }
+
+    public ThreadMode getThreadMode() {
+        return threadMode;
+    }
+
+    /**
+     * 在调用线程上循环接受连接，直到服务端被关闭。
+     *
+     * @param handler 每个会话的处理器。
+     * @throws IOException 如果接受连接时发生错误。
+     */
+    public void serve(SessionHandler handler) throws IOException {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                if (serverSocket.isClosed())
+                    return;
+                throw e;
+            }
+            long id = nextSessionId.getAndIncrement();
+            threadMode.start("secure-session-" + id, () -> runSession(id, socket, handler));
+        }
+    }
+
+    private void runSession(long id, Socket socket, SessionHandler handler) {
+        SecureServer session = null;
+        try {
+            session = new SecureServer(socket);
+            handler.handle(id, session);
+        } catch (EOFException e) {
+            // 对端已断开
+        } catch (Exception e) {
+            if (!"Socket closed".equalsIgnoreCase(e.getMessage())) {
+                System.out.println("会话 #" + id + " 异常结束: " + e.getMessage());
+            }
+        } finally {
+            try {
+                if (session != null)
+                    session.close();
+                else
+                    socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
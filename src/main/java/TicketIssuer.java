@@ -0,0 +1,152 @@
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 服务端的会话票据签发与兑现。
+ * <p>
+ * 完整握手成功后，服务端把恢复秘密、票据 ID 和过期时间用只有自己知道的票据密钥（AES-GCM，随机 IV）加密成票据交给客户端。
+ * 客户端重连时出示票据，服务端解密即可取回恢复秘密，不需要任何 RSA/X25519 运算。
+ * <p>
+ * 服务端另外在一个有界的 LRU 缓存中登记尚未兑现的票据 ID：每张票据只能兑现一次，缓存满时最早签发的票据被淘汰失效，
+ * 持有被淘汰票据的客户端退回完整握手。票据密钥只保存在内存中，服务端重启后所有旧票据失效。
+ * <p>
+ * 系统属性：{@code -Dsecure.ticket.cache=N} 缓存容量（默认 10000，0 表示不签发票据），
+ * {@code -Dsecure.ticket.lifetime=秒} 票据有效期（默认 3600）。
+ */
+public class TicketIssuer {
+    public static final String CACHE_PROPERTY = "secure.ticket.cache";
+    public static final String LIFETIME_PROPERTY = "secure.ticket.lifetime";
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+    public static final int DEFAULT_LIFETIME_SECONDS = 3600;
+    /** 票据的最大长度，防止异常对端让服务端分配过大的缓冲区 */
+    static final int MAX_TICKET_LENGTH = 256;
+
+    private static final int ID_LENGTH = 16;
+    private static final int IV_LENGTH = 12;
+    private static final int SECRET_LENGTH = 16;
+    private static final int TAG_BITS = 128;
+
+    private static volatile TicketIssuer shared;
+    private static volatile boolean sharedResolved;
+
+    private final SecretKey ticketKey;
+    private final int lifetimeSeconds;
+    private final SecureRandom random = new SecureRandom();
+    /** 票据 ID（十六进制）到过期时间，按签发顺序淘汰 */
+    private final Map<String, Long> outstanding;
+
+    public TicketIssuer(int cacheSize, int lifetimeSeconds) throws Exception {
+        this.ticketKey = CryptoUtil.generateAESKey();
+        this.lifetimeSeconds = lifetimeSeconds;
+        this.outstanding = new LinkedHashMap<String, Long>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * 进程内共享的签发者，通过 {@value #CACHE_PROPERTY}=0 关闭时返回 null。
+     */
+    public static TicketIssuer shared() throws Exception {
+        if (!sharedResolved) {
+            synchronized (TicketIssuer.class) {
+                if (!sharedResolved) {
+                    int cacheSize = Integer.getInteger(CACHE_PROPERTY, DEFAULT_CACHE_SIZE);
+                    if (cacheSize > 0) {
+                        shared = new TicketIssuer(cacheSize,
+                                Integer.getInteger(LIFETIME_PROPERTY, DEFAULT_LIFETIME_SECONDS));
+                    }
+                    sharedResolved = true;
+                }
+            }
+        }
+        return shared;
+    }
+
+    public int getLifetimeSeconds() {
+        return lifetimeSeconds;
+    }
+
+    /**
+     * 为恢复秘密签发一张新票据并登记到缓存。
+     */
+    public byte[] issue(SecretKey resumptionSecret) throws Exception {
+        byte[] id = new byte[ID_LENGTH];
+        random.nextBytes(id);
+        long expiresAt = System.currentTimeMillis() + lifetimeSeconds * 1000L;
+        ByteBuffer plain = ByteBuffer.allocate(ID_LENGTH + 8 + SECRET_LENGTH);
+        plain.put(id).putLong(expiresAt).put(resumptionSecret.getEncoded());
+
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, ticketKey, new GCMParameterSpec(TAG_BITS, iv));
+        byte[] sealed = cipher.doFinal(plain.array());
+
+        synchronized (outstanding) {
+            outstanding.put(hex(id), expiresAt);
+        }
+        byte[] ticket = Arrays.copyOf(iv, IV_LENGTH + sealed.length);
+        System.arraycopy(sealed, 0, ticket, IV_LENGTH, sealed.length);
+        return ticket;
+    }
+
+    /**
+     * 兑现一张票据，成功后该票据作废。
+     *
+     * @return 票据中的恢复秘密；票据被篡改、已过期、已兑现或已被淘汰时返回 null。
+     */
+    public SecretKey redeem(byte[] ticket) {
+        if (ticket.length <= IV_LENGTH)
+            return null;
+        ByteBuffer plain;
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, ticketKey, new GCMParameterSpec(TAG_BITS, ticket, 0, IV_LENGTH));
+            plain = ByteBuffer.wrap(cipher.doFinal(ticket, IV_LENGTH, ticket.length - IV_LENGTH));
+        } catch (Exception e) {
+            return null;
+        }
+        if (plain.remaining() != ID_LENGTH + 8 + SECRET_LENGTH)
+            return null;
+        byte[] id = new byte[ID_LENGTH];
+        plain.get(id);
+        long expiresAt = plain.getLong();
+        byte[] secret = new byte[SECRET_LENGTH];
+        plain.get(secret);
+
+        Long registered;
+        synchronized (outstanding) {
+            registered = outstanding.remove(hex(id));
+        }
+        if (registered == null || registered != expiresAt || expiresAt < System.currentTimeMillis())
+            return null;
+        return new SecretKeySpec(secret, "AES");
+    }
+
+    /**
+     * 缓存中尚未兑现的票据数。
+     */
+    public int outstanding() {
+        synchronized (outstanding) {
+            return outstanding.size();
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,80 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.Properties;
+
+/**
+ * 断点续传的检查点日志，保存在部分接收的文件旁边（received_&lt;文件名&gt;.ckpt）。
+ * <p>
+ * 记录传输 ID、文件大小、帧大小和已校验偏移量。已校验偏移量之前的数据都已通过 AES-GCM 认证并刷到磁盘，
+ * 重连后发送方从这个偏移量继续发送。日志先写临时文件再原子替换，写到一半崩溃也不会留下损坏的记录。
+ */
+public class TransferJournal {
+    private final Path path;
+    private final Path tempPath;
+    private String transferId;
+    private long fileSize;
+    private int frameSize;
+
+    public TransferJournal(File target) {
+        this.path = new File(target.getPath() + ".ckpt").toPath();
+        this.tempPath = new File(target.getPath() + ".ckpt.tmp").toPath();
+    }
+
+    /**
+     * 查询同一传输上次中断时的已校验偏移量。日志不存在、属于其他传输或已损坏时返回 0。
+     *
+     * @param target 目标文件，偏移量不会超过它的当前长度。
+     */
+    public long verifiedOffset(String transferId, long fileSize, int frameSize, File target) {
+        if (!Files.exists(path))
+            return 0;
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            props.load(in);
+            if (!transferId.equals(props.getProperty("transferId"))
+                    || fileSize != Long.parseLong(props.getProperty("fileSize"))
+                    || frameSize != Integer.parseInt(props.getProperty("frameSize"))) {
+                return 0;
+            }
+            long offset = Long.parseLong(props.getProperty("offset"));
+            if (offset < 0 || offset > fileSize || offset > target.length() || offset % frameSize != 0) {
+                return 0;
+            }
+            return offset;
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 开始（或继续）一次传输，记录初始偏移量。
+     */
+    public void begin(String transferId, long fileSize, int frameSize, long offset) throws IOException {
+        this.transferId = transferId;
+        this.fileSize = fileSize;
+        this.frameSize = frameSize;
+        checkpoint(offset);
+    }
+
+    /**
+     * 记录新的已校验偏移量。调用前必须已把该偏移量之前的数据刷到磁盘。
+     */
+    public void checkpoint(long offset) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("transferId", transferId);
+        props.setProperty("fileSize", String.valueOf(fileSize));
+        props.setProperty("frameSize", String.valueOf(frameSize));
+        props.setProperty("offset", String.valueOf(offset));
+        try (OutputStream out = Files.newOutputStream(tempPath)) {
+            props.store(out, null);
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 传输完成，删除日志。
+     */
+    public void complete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+}
@@ -0,0 +1,236 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 后台文件发送队列：在工作线程上依次执行排队的发送，不占用调用线程（例如 Swing 的事件分发线程）。
+ * <p>
+ * 进度通过 {@link Listener} 报告，回调都提交给构造时传入的界面执行器（Swing 中为
+ * {@code SwingUtilities::invokeLater}）。每个传输的进度最多每 {@value #PROGRESS_INTERVAL} 毫秒报告一次，
+ * 不论帧多小、文件多快都不会塞满界面线程。
+ * <p>
+ * 同时进行的发送数由 {@code -Dsecure.file.workers} 指定（默认 {@value #DEFAULT_WORKERS}），
+ * 同一连接上的多个文件在帧层面交错传输，聊天消息仍然优先写出。
+ */
+public class TransferManager implements Closeable {
+    public static final String WORKERS_PROPERTY = "secure.file.workers";
+    public static final int DEFAULT_WORKERS = 2;
+    /** 两次进度报告之间的最短间隔（毫秒） */
+    static final long PROGRESS_INTERVAL = 200;
+
+    /**
+     * 实际执行发送的操作，例如 {@code client::sendFile}。中断执行线程表示取消。
+     */
+    public interface Sender {
+        void send(File file, FileTransfer.Progress progress) throws Exception;
+    }
+
+    /**
+     * 传输状态的回调，都在界面执行器上调用。
+     */
+    public interface Listener {
+        /** 传输开始执行或进度有变化 */
+        void onProgress(Transfer transfer);
+
+        /** 传输结束，状态为 DONE、FAILED 或 CANCELLED；失败时 error 不为 null */
+        void onFinished(Transfer transfer, Exception error);
+    }
+
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    /**
+     * 一个排队或进行中的发送。
+     */
+    public final class Transfer implements FileTransfer.Progress {
+        private final int id;
+        private final File file;
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong lastReport = new AtomicLong();
+        private volatile long total;
+        private final AtomicReference<State> state = new AtomicReference<>(State.QUEUED);
+        private volatile long startedAt;
+        private volatile double bytesPerSecond;
+        /** 上次报告时的字节数和时刻，用于计算最近一段时间的速率 */
+        private long reportedBytes;
+        private long reportedAt;
+        /** 正在执行本传输的工作线程，只在持有本对象的锁时读写 */
+        private Thread runner;
+
+        private Transfer(int id, File file) {
+            this.id = id;
+            this.file = file;
+            this.total = file.length();
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public State getState() {
+            return state.get();
+        }
+
+        public long getSent() {
+            return sent.get();
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        /** 最近一个报告间隔内的发送速率，字节每秒 */
+        public double getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        /** 已完成的百分比，0 到 100 */
+        public int getPercent() {
+            return total == 0 ? 100 : (int) (sent.get() * 100 / total);
+        }
+
+        /**
+         * 取消传输：排队中的直接移出队列，进行中的中断发送线程，对方会收到中止通知。
+         */
+        public void cancel() {
+            if (state.compareAndSet(State.QUEUED, State.CANCELLED)) {
+                // 尚未开始，轮到它时工作线程直接跳过，由这里报告结束
+                finish(State.CANCELLED, null);
+                return;
+            }
+            synchronized (this) {
+                if (runner != null)
+                    runner.interrupt();
+            }
+        }
+
+        @Override
+        public void update(long sent, long total) {
+            // 并行传输时多个子连接线程并发报告，只保留最大值
+            this.sent.accumulateAndGet(sent, Math::max);
+            this.total = total;
+            long now = System.nanoTime();
+            long last = lastReport.get();
+            if (now - last >= PROGRESS_INTERVAL * 1_000_000 && lastReport.compareAndSet(last, now)) {
+                synchronized (this) {
+                    long bytes = this.sent.get();
+                    if (reportedAt != 0 && now > reportedAt) {
+                        bytesPerSecond = (bytes - reportedBytes) * 1e9 / (now - reportedAt);
+                    }
+                    reportedBytes = bytes;
+                    reportedAt = now;
+                }
+                ui.execute(() -> listener.onProgress(this));
+            }
+        }
+
+        private void run() {
+            synchronized (this) {
+                // 状态和 runner 在同一个锁内发布：cancel() 的 CAS 失败后进入锁时一定能看到 runner
+                if (!state.compareAndSet(State.QUEUED, State.RUNNING))
+                    return;
+                runner = Thread.currentThread();
+                startedAt = System.nanoTime();
+                reportedAt = startedAt;
+            }
+            lastReport.set(startedAt);
+            ui.execute(() -> listener.onProgress(this));
+            try {
+                sender.send(file, this);
+                // 整个传输的平均速率
+                long elapsed = System.nanoTime() - startedAt;
+                bytesPerSecond = elapsed == 0 ? 0 : sent.get() * 1e9 / elapsed;
+                finish(State.DONE, null);
+            } catch (InterruptedException | InterruptedIOException | ClosedByInterruptException e) {
+                finish(State.CANCELLED, null);
+            } catch (Exception e) {
+                // 取消时中断也可能表现为连接或文件上的其他异常
+                boolean cancelled = Thread.currentThread().isInterrupted();
+                finish(cancelled ? State.CANCELLED : State.FAILED, cancelled ? null : e);
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                    // 清除可能残留的中断状态，工作线程还要执行后续任务
+                    Thread.interrupted();
+                }
+            }
+        }
+
+        private void finish(State state, Exception error) {
+            this.state.set(state);
+            transfers.remove(id);
+            ui.execute(() -> listener.onFinished(this, error));
+        }
+    }
+
+    private final Sender sender;
+    private final Listener listener;
+    private final Executor ui;
+    private final ExecutorService workers;
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final Map<Integer, Transfer> transfers = new ConcurrentHashMap<>();
+
+    /**
+     * @param sender   执行发送的操作。
+     * @param listener 进度和结束回调。
+     * @param ui       执行回调的执行器，例如 {@code SwingUtilities::invokeLater}。
+     */
+    public TransferManager(Sender sender, Listener listener, Executor ui) {
+        this(sender, listener, ui, Integer.getInteger(WORKERS_PROPERTY, DEFAULT_WORKERS));
+    }
+
+    public TransferManager(Sender sender, Listener listener, Executor ui, int workerThreads) {
+        this.sender = sender;
+        this.listener = listener;
+        this.ui = ui;
+        ThreadMode threadMode = ThreadMode.fromSystemProperty();
+        AtomicInteger threadId = new AtomicInteger(1);
+        this.workers = Executors.newFixedThreadPool(workerThreads, r -> {
+            Thread thread = threadMode.newThread("file-sender-" + threadId.getAndIncrement(), r);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 把文件加入发送队列，立即返回。
+     */
+    public Transfer submit(File file) {
+        Transfer transfer = new Transfer(nextId.getAndIncrement(), file);
+        transfers.put(transfer.id, transfer);
+        workers.execute(transfer::run);
+        return transfer;
+    }
+
+    /**
+     * 排队和进行中的传输数。
+     */
+    public int getActiveCount() {
+        return transfers.size();
+    }
+
+    /**
+     * 取消所有传输并停止工作线程。
+     */
+    @Override
+    public void close() {
+        for (Transfer transfer : transfers.values()) {
+            transfer.cancel();
+        }
+        workers.shutdownNow();
+    }
+}
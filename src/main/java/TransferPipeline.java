@@ -0,0 +1,174 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 文件传输的三段流水线。
+ * <p>
+ * 磁盘、加解密、网络三个阶段各自在独立线程上运行，阶段之间通过有界队列传递池化的 {@link Block}，
+ * 块用完后回到空闲池。磁盘慢时网络仍在发送已加密的块，加解密也可以占用另一个核心。
+ * 每个阶段都统计处理字节数、忙碌时间和输入队列深度，用于判断哪个阶段限制了整体吞吐。
+ */
+public class TransferPipeline {
+    public static final int DEFAULT_DEPTH = 4;
+
+    /**
+     * 流水线中传递的缓冲区，同时持有明文和密文两个数组，按需扩容后复用。
+     */
+    public static final class Block {
+        byte[] plain;
+        byte[] sealed;
+        int plainLength;
+        int sealedLength;
+        /** 明文在加密前是否压缩过 */
+        boolean compressed;
+        /** 接收方：明文解密的目标缓冲区，来自 {@link FileSink#buffer(long, int)} */
+        ByteBuffer target;
+        /** 该块明文的叶子哈希任务，见 {@link TreeHash}，块回到空闲池前必须完成 */
+        ForkJoinTask<?> digest;
+
+        Block(int frameSize) {
+            plain = new byte[frameSize];
+            sealed = new byte[CipherSession.sealedLength(frameSize)];
+        }
+
+        void ensureSealedCapacity(int size) {
+            if (sealed.length < size)
+                sealed = new byte[size];
+            if (plain.length < size)
+                plain = new byte[size];
+        }
+    }
+
+    /**
+     * 流水线的一个阶段。
+     */
+    public interface Stage {
+        /**
+         * 处理一个块。
+         *
+         * @return 对第一个阶段而言，返回 false 表示数据已经读完，此时该块不会向下游传递；其他阶段的返回值被忽略。
+         */
+        boolean process(Block block) throws Exception;
+    }
+
+    /** 结束标记，沿队列向下游传递 */
+    private static final Block END = new Block(0);
+
+    private final int frameSize;
+    private final int depth;
+
+    public TransferPipeline(int frameSize) {
+        this(frameSize, DEFAULT_DEPTH);
+    }
+
+    /**
+     * @param frameSize 每块明文的初始容量。
+     * @param depth     块池大小，也是阶段间队列的容量。
+     */
+    public TransferPipeline(int frameSize, int depth) {
+        this.frameSize = frameSize;
+        this.depth = depth;
+    }
+
+    /**
+     * 运行一次传输，三个阶段都完成后返回。任何阶段失败都会中止其余阶段并把异常抛给调用方。
+     *
+     * @param names  三个阶段的名称，用于统计输出。
+     * @param stages 依次为数据源、变换、数据汇。
+     * @return 本次传输的统计信息。
+     * @throws Exception 任一阶段抛出的异常。
+     */
+    public TransferStats run(String[] names, Stage... stages) throws Exception {
+        if (stages.length != 3 || names.length != 3) {
+            throw new IllegalArgumentException("流水线需要三个阶段");
+        }
+        BlockingQueue<Block> free = new ArrayBlockingQueue<>(depth);
+        for (int i = 0; i < depth; i++) {
+            free.add(new Block(frameSize));
+        }
+        BlockingQueue<Block> firstToSecond = new ArrayBlockingQueue<>(depth);
+        BlockingQueue<Block> secondToThird = new ArrayBlockingQueue<>(depth);
+
+        TransferStats stats = new TransferStats(names);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[3];
+        threads[0] = worker(0, names[0], stats, stages[0], free, firstToSecond, failure, threads);
+        threads[1] = worker(1, names[1], stats, stages[1], firstToSecond, secondToThird, failure, threads);
+        threads[2] = worker(2, names[2], stats, stages[2], secondToThird, free, failure, threads);
+
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            // 等各阶段退出后再返回，调用方随后发出的中止帧之后不会再有本次传输的数据
+            for (Thread thread : threads) {
+                while (thread.isAlive()) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException ignored) {
+                        // 继续等待
+                    }
+                }
+            }
+            throw e;
+        }
+        stats.finish(System.nanoTime() - start);
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return stats;
+    }
+
+    private static Thread worker(int index, String name, TransferStats stats, Stage stage, BlockingQueue<Block> input,
+            BlockingQueue<Block> output, AtomicReference<Exception> failure, Thread[] threads) {
+        TransferStats.StageStats stageStats = stats.stage(index);
+        boolean source = index == 0;
+        boolean sink = index == threads.length - 1;
+        Runnable task = () -> {
+            try {
+                while (true) {
+                    stageStats.sampleQueue(input.size());
+                    Block block = input.take();
+                    if (block == END) {
+                        // 最后一个阶段的输出是空闲池，不需要再传递结束标记
+                        if (!sink)
+                            output.put(END);
+                        return;
+                    }
+                    long begin = System.nanoTime();
+                    boolean more = stage.process(block);
+                    stageStats.record(Math.max(block.plainLength, block.sealedLength), System.nanoTime() - begin);
+                    if (source && !more) {
+                        output.put(END);
+                        return;
+                    }
+                    output.put(block);
+                }
+            } catch (InterruptedException e) {
+                // 其他阶段失败，已被中止
+            } catch (Exception e) {
+                if (failure.compareAndSet(null, e)) {
+                    for (Thread t : threads) {
+                        if (t != Thread.currentThread())
+                            t.interrupt();
+                    }
+                }
+            }
+        };
+        Thread thread = new Thread(task, "pipeline-" + name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
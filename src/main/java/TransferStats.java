@@ -0,0 +1,127 @@
+/**
+ * 一次文件传输的分阶段统计：每个阶段的字节数、忙碌时间、吞吐量和输入队列深度。
+ * <p>
+ * 每个阶段只由自己的线程写入，传输结束、所有阶段线程退出后再读取。
+ */
+public class TransferStats {
+
+    /**
+     * 单个阶段的统计。
+     */
+    public static final class StageStats {
+        private final String name;
+        private long bytes;
+        private long blocks;
+        private long busyNanos;
+        private long queueSamples;
+        private long queueDepthSum;
+        private int maxQueueDepth;
+
+        StageStats(String name) {
+            this.name = name;
+        }
+
+        void record(long processedBytes, long nanos) {
+            bytes += processedBytes;
+            blocks++;
+            busyNanos += nanos;
+        }
+
+        void sampleQueue(int depth) {
+            queueSamples++;
+            queueDepthSum += depth;
+            if (depth > maxQueueDepth)
+                maxQueueDepth = depth;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getBlocks() {
+            return blocks;
+        }
+
+        public long getBusyNanos() {
+            return busyNanos;
+        }
+
+        /**
+         * 该阶段单独运行时能达到的吞吐量（MB/s），即字节数除以忙碌时间。
+         */
+        public double getThroughputMBps() {
+            return busyNanos == 0 ? 0 : bytes / 1e6 / (busyNanos / 1e9);
+        }
+
+        public double getAverageQueueDepth() {
+            return queueSamples == 0 ? 0 : (double) queueDepthSum / queueSamples;
+        }
+
+        public int getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+    }
+
+    private final StageStats[] stages;
+    private long elapsedNanos;
+
+    public TransferStats(String... names) {
+        stages = new StageStats[names.length];
+        for (int i = 0; i < names.length; i++) {
+            stages[i] = new StageStats(names[i]);
+        }
+    }
+
+    public StageStats stage(int index) {
+        return stages[index];
+    }
+
+    public int stageCount() {
+        return stages.length;
+    }
+
+    void finish(long elapsedNanos) {
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * 整体吞吐量（MB/s），以最后一个阶段处理的字节数计算。
+     */
+    public double getThroughputMBps() {
+        long bytes = stages[stages.length - 1].bytes;
+        return elapsedNanos == 0 ? 0 : bytes / 1e6 / (elapsedNanos / 1e9);
+    }
+
+    /**
+     * 忙碌时间最长的阶段，即限制本次传输吞吐的阶段。
+     */
+    public StageStats getBottleneck() {
+        StageStats slowest = stages[0];
+        for (StageStats stage : stages) {
+            if (stage.busyNanos > slowest.busyNanos)
+                slowest = stage;
+        }
+        return slowest;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("整体 %.1f MB/s，耗时 %.2f s", getThroughputMBps(), elapsedNanos / 1e9));
+        for (StageStats stage : stages) {
+            sb.append(String.format("；%s %.1f MB/s 忙碌 %.0f%% 队列 %.1f/%d", stage.name, stage.getThroughputMBps(),
+                    elapsedNanos == 0 ? 0 : 100.0 * stage.busyNanos / elapsedNanos,
+                    stage.getAverageQueueDepth(), stage.maxQueueDepth));
+        }
+        sb.append("；瓶颈: ").append(getBottleneck().name);
+        return sb.toString();
+    }
+}
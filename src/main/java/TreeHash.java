@@ -0,0 +1,227 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * 文件内容的 Merkle 树哈希，随传输边收发边计算，传输结束时不必再把文件读一遍。
+ * <p>
+ * 文件按固定大小的叶子切分（文件传输中就是帧大小），叶子哈希为 SHA-256(0x00 || 数据)，
+ * 相邻两个节点合并为 SHA-256(0x01 || 左 || 右)，某层节点数为奇数时最后一个直接上移，与 RFC 6962 相同；
+ * 空文件的根是空串的 SHA-256。叶子在 {@link ForkJoinPool#commonPool()} 上并行计算，
+ * 调用方提交后可以继续加密或写盘，在复用缓冲区前等待对应的任务完成即可。
+ * <p>
+ * 叶子必须按位置顺序提交。已完成的叶子随即并入一个栈，栈中是按大小递减排列的完整子树的根，
+ * 最多 64 个，因此状态与文件大小无关，对方声明的大小再大也不会预先分配内存。
+ */
+public final class TreeHash {
+    public static final int HASH_LENGTH = 32;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    /** 一棵包含 2^level 个叶子的完整子树的根 */
+    private static final class Node {
+        final byte[] hash;
+        final int level;
+
+        Node(byte[] hash, int level) {
+            this.hash = hash;
+            this.level = level;
+        }
+    }
+
+    private final long size;
+    private final int leafSize;
+    /** 下一个叶子的位置 */
+    private long next;
+    /** 已提交、尚未并入栈的任务，按位置排列；每个任务得出一串按大小递减排列的子树 */
+    private final ArrayDeque<ForkJoinTask<Node[]>> pending = new ArrayDeque<>();
+    private final ArrayList<Node> stack = new ArrayList<>();
+
+    public TreeHash(long size, int leafSize) {
+        if (size < 0 || leafSize <= 0) {
+            throw new IllegalArgumentException("非法的树哈希参数: " + size + "/" + leafSize);
+        }
+        this.size = size;
+        this.leafSize = leafSize;
+    }
+
+    /**
+     * 提交从 position 开始的一个叶子，position 必须紧接上一个叶子，data 中剩余的字节必须恰好是该叶子的全部内容。
+     * 返回的任务完成前调用方不得修改 data 的内容；data 的位置不会被改变。
+     */
+    public ForkJoinTask<?> leaf(long position, ByteBuffer data) {
+        ByteBuffer view = data.duplicate();
+        synchronized (this) {
+            check(position, data.remaining());
+            next = position + data.remaining();
+            ForkJoinTask<Node[]> task = ForkJoinPool.commonPool().submit(() -> new Node[] { new Node(hashLeaf(view), 0) });
+            pending.add(task);
+            drain();
+            return task;
+        }
+    }
+
+    /**
+     * 在后台从 file 读出 [0, end) 并计算这些叶子，用于续传时已跳过或已收到的部分。须在提交任何叶子之前调用。
+     */
+    public synchronized void hashFile(File file, long end) {
+        if (next != 0 || end < 0 || end > size || (end % leafSize != 0 && end != size)) {
+            throw new IllegalArgumentException("区间没有对齐到叶子: " + end);
+        }
+        if (end == 0)
+            return;
+        long count = (end + leafSize - 1) / leafSize;
+        next = end;
+        pending.add(ForkJoinPool.commonPool().submit(() -> {
+            // 按 count 的二进制位拆成若干完整子树，正好是逐个并入叶子后栈中的内容
+            Node[] nodes = new Node[Long.bitCount(count)];
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long from = 0;
+                int i = 0;
+                for (int level = 63 - Long.numberOfLeadingZeros(count); level >= 0; level--) {
+                    if ((count & (1L << level)) == 0)
+                        continue;
+                    nodes[i++] = new Node(new FileLeaves(channel, from, from + (1L << level)).invoke(), level);
+                    from += 1L << level;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return nodes;
+        }));
+    }
+
+    /**
+     * 等待所有已提交的叶子完成并计算根。
+     *
+     * @throws IOException 如果有叶子没有提交，或后台读文件失败。
+     */
+    public byte[] root() throws IOException {
+        while (true) {
+            ForkJoinTask<Node[]> head;
+            synchronized (this) {
+                head = pending.peek();
+            }
+            if (head == null)
+                break;
+            try {
+                head.join();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            synchronized (this) {
+                drain();
+            }
+        }
+        synchronized (this) {
+            if (next != size) {
+                throw new IOException("树哈希缺少叶子");
+            }
+            if (stack.isEmpty()) {
+                return SHA256.get().digest();
+            }
+            // 从最小的子树开始向左合并，等同于逐层合并时奇数节点上移
+            MessageDigest digest = SHA256.get();
+            byte[] root = stack.get(stack.size() - 1).hash;
+            for (int i = stack.size() - 2; i >= 0; i--) {
+                root = merge(digest, stack.get(i).hash, root);
+            }
+            return root;
+        }
+    }
+
+    /**
+     * 把队首已经完成的任务依次并入栈，两个相同大小的子树合并为上一层。调用方持有本对象的锁。
+     */
+    private void drain() {
+        ForkJoinTask<Node[]> head;
+        while ((head = pending.peek()) != null && head.isDone() && !head.isCompletedAbnormally()) {
+            pending.poll();
+            MessageDigest digest = SHA256.get();
+            for (Node node : head.join()) {
+                while (!stack.isEmpty() && stack.get(stack.size() - 1).level == node.level) {
+                    Node left = stack.remove(stack.size() - 1);
+                    node = new Node(merge(digest, left.hash, node.hash), node.level + 1);
+                }
+                stack.add(node);
+            }
+        }
+    }
+
+    private void check(long position, int length) {
+        if (position != next || position >= size || length != Math.min(leafSize, size - position)) {
+            throw new IllegalArgumentException("叶子没有对齐或不连续: " + position + "+" + length);
+        }
+    }
+
+    private static byte[] hashLeaf(ByteBuffer data) {
+        MessageDigest digest = SHA256.get();
+        digest.update((byte) 0);
+        digest.update(data);
+        return digest.digest();
+    }
+
+    private static byte[] merge(MessageDigest digest, byte[] left, byte[] right) {
+        digest.update((byte) 1);
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+
+    /**
+     * 叶子数为 2 的幂的区间 [from, to) 的子树根：对半拆分，每个叶子按位置读入自己的缓冲区后计算。
+     */
+    private final class FileLeaves extends RecursiveTask<byte[]> {
+        private static final long serialVersionUID = 1L;
+        private final FileChannel channel;
+        private final long from;
+        private final long to;
+
+        FileLeaves(FileChannel channel, long from, long to) {
+            this.channel = channel;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected byte[] compute() {
+            if (to - from > 1) {
+                long mid = (from + to) >>> 1;
+                FileLeaves right = new FileLeaves(channel, mid, to);
+                right.fork();
+                byte[] left = new FileLeaves(channel, from, mid).compute();
+                return merge(SHA256.get(), left, right.join());
+            }
+            long position = from * leafSize;
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(leafSize, size - position));
+            try {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException("文件在计算哈希时被截断");
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffer.flip();
+            return hashLeaf(buffer);
+        }
+    }
+}
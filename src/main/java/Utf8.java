@@ -0,0 +1,113 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 消息正文的 UTF-8 编解码。所有字符串消息都按 UTF-8 传输，不依赖平台默认字符集。
+ * <p>
+ * 编码直接写入调用方的缓冲区，不产生中间数组；解码除返回的字符串外只使用线程内复用的缓冲区。
+ * 非法的代理字符编码为 '?'，非法的 UTF-8 序列解码为替换字符，与 {@link String#getBytes} 和
+ * {@code new String(bytes, UTF_8)} 的行为一致。
+ */
+public final class Utf8 {
+    private static final ThreadLocal<CharsetDecoder> DECODER = ThreadLocal.withInitial(() -> StandardCharsets.UTF_8
+            .newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE));
+    private static final ThreadLocal<CharBuffer[]> CHARS = ThreadLocal.withInitial(() -> new CharBuffer[1]);
+
+    private Utf8() {
+    }
+
+    /**
+     * s 的 UTF-8 编码长度。
+     */
+    public static int encodedLength(CharSequence s) {
+        int len = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                len += 1;
+            } else if (c < 0x800) {
+                len += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                len += 4;
+                i++;
+            } else {
+                len += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * 把 s 编码写入 dst，位置随之前移。dst 空间不足时抛出 {@link BufferOverflowException}，不写入任何字节。
+     *
+     * @return 写入的字节数。
+     */
+    public static int encode(CharSequence s, ByteBuffer dst) {
+        int len = encodedLength(s);
+        if (dst.remaining() < len) {
+            throw new BufferOverflowException();
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dst.put((byte) c);
+            } else if (c < 0x800) {
+                dst.put((byte) (0xC0 | (c >> 6)));
+                dst.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                dst.put((byte) (0xF0 | (cp >> 18)));
+                dst.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                dst.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                dst.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                dst.put((byte) '?');
+            } else {
+                dst.put((byte) (0xE0 | (c >> 12)));
+                dst.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                dst.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        return len;
+    }
+
+    public static byte[] encode(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 解码 src 中剩余的全部字节，位置移到 limit。
+     */
+    public static String decode(ByteBuffer src) {
+        if (src.hasArray()) {
+            String s = new String(src.array(), src.arrayOffset() + src.position(), src.remaining(),
+                    StandardCharsets.UTF_8);
+            src.position(src.limit());
+            return s;
+        }
+        CharBuffer[] holder = CHARS.get();
+        // UTF-8 每字节最多解出一个 char
+        if (holder[0] == null || holder[0].capacity() < src.remaining()) {
+            holder[0] = CharBuffer.allocate(Math.max(src.remaining(), 256));
+        }
+        CharBuffer chars = holder[0];
+        chars.clear();
+        CharsetDecoder decoder = DECODER.get();
+        decoder.reset();
+        decoder.decode(src, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        return chars.toString();
+    }
+
+    public static String decode(byte[] data, int off, int len) {
+        return new String(data, off, len, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,22 @@
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void pooledBuffersAreReused() {
+        BufferPool pool = new BufferPool(64, 2);
+        ByteBuffer first = pool.acquire(10);
+        assertTrue(first.isDirect());
+        assertEquals(10, first.limit());
+        pool.release(first);
+        assertSame(first, pool.acquire());
+        assertEquals(64, first.limit());
+        // 超出缓冲区大小的请求单独分配，归还时不入池
+        pool.release(pool.acquire(100));
+        assertEquals(0, pool.getPooledCount());
+        assertEquals(2, pool.getAllocatedCount());
+    }
+}
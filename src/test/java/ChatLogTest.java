@@ -0,0 +1,89 @@
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.JList;
+import javax.swing.JScrollPane;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+import org.junit.Test;
+
+public class ChatLogTest {
+
+    @Test
+    public void keepsOnlyTheLatestLines() throws Exception {
+        ChatLog log = new ChatLog(3);
+        List<String> events = new ArrayList<>();
+        log.addListDataListener(new ListDataListener() {
+            @Override
+            public void intervalAdded(ListDataEvent e) {
+                events.add("+" + e.getIndex0() + ".." + e.getIndex1());
+            }
+
+            @Override
+            public void intervalRemoved(ListDataEvent e) {
+                events.add("-" + e.getIndex0() + ".." + e.getIndex1());
+            }
+
+            @Override
+            public void contentsChanged(ListDataEvent e) {
+                events.add("~");
+            }
+        });
+
+        SwingUtilities.invokeAndWait(() -> {
+            log.append("a");
+            log.append("b");
+            log.flush();
+            log.append("c\nd");
+            log.flush();
+        });
+        assertEquals(3, log.getSize());
+        assertEquals("b", log.getElementAt(0));
+        assertEquals("d", log.getElementAt(2));
+        // 每批只通知一次添加，挤出旧行时先通知一次删除
+        assertEquals("[+0..1, -0..0, +1..2]", events.toString());
+
+        SwingUtilities.invokeAndWait(() -> {
+            for (int i = 0; i < 100; i++) {
+                log.append("x" + i);
+            }
+            log.flush();
+        });
+        assertEquals(3, log.getSize());
+        assertEquals("x97", log.getElementAt(0));
+        assertEquals("x99", log.getElementAt(2));
+    }
+
+    @Test
+    public void wrapsLongLinesAndCopiesThemWhole() throws Exception {
+        ChatLog log = new ChatLog(100);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append("长消息");
+        }
+        String longLine = sb.toString();
+        String[] copied = new String[1];
+        SwingUtilities.invokeAndWait(() -> {
+            JScrollPane view = log.createView();
+            view.setSize(200, 100);
+            view.doLayout();
+            log.append("短\n" + longLine);
+            log.flush();
+            JList<?> list = (JList<?>) view.getViewport().getView();
+            list.setSelectionInterval(0, log.getSize() - 1);
+            copied[0] = log.selectedText();
+        });
+        // 超出可见宽度的行折成多行，每行都能完整显示
+        assertTrue(log.getSize() > 2);
+        assertEquals("短", log.getElementAt(0));
+        StringBuilder rows = new StringBuilder();
+        for (int i = 1; i < log.getSize(); i++) {
+            rows.append(log.getElementAt(i));
+        }
+        assertEquals(longLine, rows.toString());
+        // 复制时折行处重新连成一行
+        assertEquals("短\n" + longLine, copied[0]);
+    }
+}
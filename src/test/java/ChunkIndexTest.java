@@ -0,0 +1,69 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+public class ChunkIndexTest {
+
+    @Test
+    public void insertionOnlyChangesNearbyChunks() throws Exception {
+        byte[] data = new byte[8 * 1024 * 1024];
+        new Random(3).nextBytes(data);
+        File before = write(data);
+        byte[] edited = new byte[data.length + 100];
+        System.arraycopy(data, 0, edited, 0, 4 * 1024 * 1024);
+        System.arraycopy(data, 4 * 1024 * 1024, edited, 4 * 1024 * 1024 + 100, 4 * 1024 * 1024);
+        File after = write(edited);
+
+        List<ChunkIndex.Chunk> old = ChunkIndex.chunk(before);
+        List<ChunkIndex.Chunk> chunks = ChunkIndex.chunk(after);
+        Set<ByteBuffer> known = new HashSet<>();
+        for (ChunkIndex.Chunk chunk : old) {
+            assertTrue(chunk.length <= ChunkIndex.MAX_CHUNK);
+            known.add(chunk.key());
+        }
+        int changed = 0;
+        long total = 0;
+        for (ChunkIndex.Chunk chunk : chunks) {
+            assertEquals(total, chunk.offset);
+            total += chunk.length;
+            if (!known.contains(chunk.key()))
+                changed++;
+        }
+        assertEquals(edited.length, total);
+        assertTrue("变化的块数: " + changed, changed <= 2);
+    }
+
+    @Test
+    public void savedIndexIsReusedUntilFileChanges() throws Exception {
+        byte[] data = new byte[1024 * 1024];
+        new Random(4).nextBytes(data);
+        File file = write(data);
+        List<ChunkIndex.Chunk> chunks = ChunkIndex.load(file);
+        assertTrue(ChunkIndex.indexFile(file).isFile());
+
+        List<ChunkIndex.Chunk> loaded = ChunkIndex.load(file);
+        assertEquals(chunks.size(), loaded.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            assertEquals(chunks.get(i).offset, loaded.get(i).offset);
+            assertArrayEquals(chunks.get(i).hash, loaded.get(i).hash);
+        }
+
+        Files.write(file.toPath(), new byte[10]);
+        assertEquals(1, ChunkIndex.load(file).size());
+        ChunkIndex.indexFile(file).delete();
+    }
+
+    private static File write(byte[] data) throws Exception {
+        File file = File.createTempFile("chunks", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+}
@@ -0,0 +1,82 @@
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+import org.junit.Test;
+
+public class CipherSessionTest {
+
+    @Test
+    public void roundTripsInBothDirections() throws Exception {
+        SecretKey key = CryptoUtil.generateAESKey();
+        CipherSession client = new CipherSession(key, true);
+        CipherSession server = new CipherSession(key, false);
+
+        byte[] plain = "你好, secure world".getBytes("UTF-8");
+        byte[] sealed = new byte[CipherSession.sealedLength(plain.length) + 3];
+        byte[] opened = new byte[sealed.length];
+
+        for (int i = 0; i < 3; i++) {
+            int n = client.encrypt(plain, 0, plain.length, sealed, 3);
+            assertEquals(CipherSession.sealedLength(plain.length), n);
+            int m = server.decrypt(sealed, 3, n, opened, 0);
+            assertEquals(plain.length, m);
+            assertEquals("你好, secure world", new String(opened, 0, m, "UTF-8"));
+
+            n = server.encrypt(plain, 0, plain.length, sealed, 0);
+            m = client.decrypt(sealed, 0, n, opened, 0);
+            assertEquals(plain.length, m);
+        }
+    }
+
+    @Test
+    public void byteBufferApiWritesIntoCallerBuffer() throws Exception {
+        SecretKey key = CryptoUtil.generateAESKey();
+        CipherSession client = new CipherSession(key, true);
+        CipherSession server = new CipherSession(key, false);
+
+        ByteBuffer in = ByteBuffer.allocateDirect(4096);
+        for (int i = 0; i < 4096; i++) {
+            in.put((byte) i);
+        }
+        in.flip();
+        ByteBuffer sealed = ByteBuffer.allocateDirect(CipherSession.sealedLength(4096));
+        client.encrypt(in, sealed);
+        sealed.flip();
+
+        ByteBuffer opened = ByteBuffer.allocate(4096);
+        assertEquals(4096, server.decrypt(sealed, opened));
+        opened.flip();
+        for (int i = 0; i < 4096; i++) {
+            assertEquals((byte) i, opened.get());
+        }
+    }
+
+    @Test(expected = AEADBadTagException.class)
+    public void rejectsReplayedFrame() throws Exception {
+        SecretKey key = CryptoUtil.generateAESKey();
+        CipherSession client = new CipherSession(key, true);
+        CipherSession server = new CipherSession(key, false);
+
+        byte[] plain = "once".getBytes("UTF-8");
+        byte[] sealed = new byte[CipherSession.sealedLength(plain.length)];
+        byte[] opened = new byte[sealed.length];
+        int n = client.encrypt(plain, 0, plain.length, sealed, 0);
+        server.decrypt(sealed, 0, n, opened, 0);
+        // 同一帧第二次出现时 IV 已经前移，校验必须失败
+        server.decrypt(sealed, 0, n, opened, 0);
+    }
+
+    @Test(expected = AEADBadTagException.class)
+    public void rejectsOwnDirection() throws Exception {
+        SecretKey key = CryptoUtil.generateAESKey();
+        CipherSession client = new CipherSession(key, true);
+        CipherSession otherClient = new CipherSession(key, true);
+
+        byte[] plain = "reflected".getBytes("UTF-8");
+        byte[] sealed = new byte[CipherSession.sealedLength(plain.length)];
+        int n = client.encrypt(plain, 0, plain.length, sealed, 0);
+        otherClient.decrypt(sealed, 0, n, new byte[n], 0);
+    }
+}
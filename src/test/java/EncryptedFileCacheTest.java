@@ -0,0 +1,69 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import org.junit.Test;
+
+public class EncryptedFileCacheTest {
+
+    @Test
+    public void cachedChunksOpenWithDistributedHeader() throws Exception {
+        File dir = Files.createTempDirectory("cache").toFile();
+        File file = new File(dir, "data.bin");
+        byte[] content = new byte[EncryptedFileCache.CHUNK_SIZE + 1000];
+        new Random(1).nextBytes(content);
+        Files.write(file.toPath(), content);
+
+        EncryptedFileCache cache = new EncryptedFileCache(new File(dir, "cache"), Long.MAX_VALUE);
+        EncryptedFileCache.Entry entry = cache.acquire(file);
+        assertSame(entry, cache.acquire(file));
+        assertEquals(2, entry.chunkCount());
+        assertEquals(entry.cacheFile.length(), cache.getTotalBytes());
+
+        byte[] encoded = entry.header();
+        EncryptedFileCache.Header header = EncryptedFileCache.Header.decode(encoded, encoded.length);
+        byte[] sealed = Files.readAllBytes(entry.cacheFile.toPath());
+        byte[] plain = new byte[header.chunkSize];
+        Cipher cipher = EncryptedFileCache.newCipher();
+        int offset = (int) entry.chunkOffset(1);
+        int n = EncryptedFileCache.openChunk(cipher, header.key, header.contentId, header.size, 1,
+                Arrays.copyOfRange(sealed, offset, offset + entry.chunkLength(1)), entry.chunkLength(1), plain);
+        assertArrayEquals(Arrays.copyOfRange(content, header.chunkSize, content.length), Arrays.copyOf(plain, n));
+
+        // 块序号不符时认证失败
+        try {
+            EncryptedFileCache.openChunk(cipher, header.key, header.contentId, header.size, 0,
+                    Arrays.copyOfRange(sealed, offset, offset + entry.chunkLength(1)), entry.chunkLength(1), plain);
+            fail("调换的块应被拒绝");
+        } catch (AEADBadTagException expected) {
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsDeletedAfterRelease() throws Exception {
+        File dir = Files.createTempDirectory("cache").toFile();
+        File a = write(dir, "a.bin", 1000);
+        File b = write(dir, "b.bin", 1000);
+        EncryptedFileCache cache = new EncryptedFileCache(new File(dir, "cache"), 1500);
+
+        EncryptedFileCache.Entry first = cache.acquire(a);
+        EncryptedFileCache.Entry second = cache.acquire(b);
+        // a 被淘汰，但仍在使用，释放后才删除缓存文件
+        assertTrue(first.cacheFile.exists());
+        first.release();
+        assertFalse(first.cacheFile.exists());
+        assertTrue(second.cacheFile.exists());
+        assertNotSame(first, cache.acquire(a));
+    }
+
+    private static File write(File dir, String name, int size) throws IOException {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), new byte[size]);
+        return file;
+    }
+}
@@ -0,0 +1,68 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Test;
+
+public class FileSinkTest {
+    private static final int FRAME = 64 * 1024;
+
+    @After
+    public void resetMode() {
+        System.clearProperty(FileSink.MODE_PROPERTY);
+    }
+
+    @Test
+    public void channelSinkWritesPreallocatedFile() throws Exception {
+        receive("channel");
+    }
+
+    @Test
+    public void mappedSinkWritesPreallocatedFile() throws Exception {
+        receive("mmap");
+    }
+
+    @Test
+    public void resumeKeepsReceivedPrefix() throws Exception {
+        File target = new File(Files.createTempDirectory("sink").toFile(), "received_a.bin");
+        byte[] content = new byte[3 * FRAME];
+        new Random(2).nextBytes(content);
+        try (FileSink sink = FileSink.open(target, content.length, 0, FRAME, null)) {
+            put(sink, content, 0);
+        }
+        FileSink sink = FileSink.open(target, content.length, FRAME, FRAME, null);
+        put(sink, content, FRAME);
+        put(sink, content, 2 * FRAME);
+        sink.finish();
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    private void receive(String mode) throws Exception {
+        System.setProperty(FileSink.MODE_PROPERTY, mode);
+        File target = new File(Files.createTempDirectory("sink").toFile(), "received_a.bin");
+        Files.write(target.toPath(), new byte[10 * FRAME]); // 旧内容必须被丢弃
+        byte[] content = new byte[2 * FRAME + 1000];
+        new Random(1).nextBytes(content);
+
+        FileSink sink = FileSink.open(target, content.length, 0, FRAME, null);
+        assertEquals(content.length, target.length());
+        for (int position = 0; position < content.length; position += FRAME) {
+            put(sink, content, position);
+            sink.advance(Math.min(content.length, position + FRAME));
+        }
+        sink.finish();
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    private static void put(FileSink sink, byte[] content, int position) throws Exception {
+        int length = Math.min(FRAME, content.length - position);
+        ByteBuffer buffer = sink.buffer(position, length);
+        assertEquals(length, buffer.remaining());
+        buffer.put(Arrays.copyOfRange(content, position, position + length));
+        sink.write(buffer, position);
+    }
+}
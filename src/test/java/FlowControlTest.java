@@ -0,0 +1,68 @@
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class FlowControlTest {
+
+    @Test
+    public void writabilityFollowsWatermarksWithHysteresis() throws Exception {
+        FlowControl flow = new FlowControl(100, 40, 1000, 0);
+        List<Boolean> changes = new ArrayList<>();
+        flow.setListener(changes::add);
+
+        flow.enqueued(60);
+        flow.enqueued(50);
+        assertFalse(flow.isWritable());
+        flow.dequeued(60);
+        // 50 字节仍高于低水位
+        assertFalse(flow.isWritable());
+        flow.dequeued(20);
+        assertTrue(flow.isWritable());
+        assertEquals(Arrays.asList(false, true), changes);
+        assertEquals(30, flow.getQueuedBytes());
+    }
+
+    @Test
+    public void enqueueBeyondHardLimitFails() throws Exception {
+        FlowControl flow = new FlowControl(100, 40, 200, 0);
+        flow.enqueued(150);
+        try {
+            flow.enqueued(100);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(150, flow.getQueuedBytes());
+    }
+
+    @Test
+    public void creditIsSpentAndReturned() throws Exception {
+        FlowControl flow = new FlowControl(100, 40, 200, 0);
+        flow.sent(1000);
+        assertTrue("对方声明窗口之前不限制", flow.hasCredit());
+
+        flow.peerSettings(true, 100);
+        flow.sent(60);
+        assertTrue(flow.hasCredit());
+        flow.sent(60);
+        assertFalse(flow.hasCredit());
+        flow.granted(30);
+        assertTrue(flow.hasCredit());
+    }
+
+    @Test
+    public void updateIsSentAfterQuarterOfWindow() {
+        FlowControl flow = new FlowControl(100, 40, 200, 400);
+        flow.received(150);
+        assertEquals("对方尚未声明认识 WINDOW_UPDATE", 0, flow.takeUpdate());
+        flow.peerSettings(true, 0);
+        assertEquals(150, flow.takeUpdate());
+        flow.received(50);
+        assertEquals(0, flow.takeUpdate());
+        flow.received(50);
+        assertEquals(100, flow.takeUpdate());
+    }
+}
@@ -0,0 +1,47 @@
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import org.junit.Test;
+
+public class FrameCompressorTest {
+
+    @Test
+    public void compressibleFrameRoundTrips() throws Exception {
+        byte[] data = new byte[64 * 1024];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ("2024-01-01 INFO request handled\n".charAt(i % 32));
+        }
+        FrameCompressor compressor = new FrameCompressor(Deflater.BEST_SPEED);
+        int n = compressor.compress(data, 0, data.length);
+        assertTrue(n > 0 && n < data.length / 10);
+
+        byte[] compressed = Arrays.copyOf(compressor.buffer(), n);
+        assertEquals(data.length, FrameCompressor.decompressedLength(compressed, 0, n));
+        byte[] out = new byte[data.length];
+        assertEquals(data.length, new FrameCompressor(Deflater.NO_COMPRESSION).decompress(compressed, 0, n, out, 0));
+        assertArrayEquals(data, out);
+    }
+
+    @Test
+    public void randomAndShortFramesAreNotCompressed() {
+        byte[] data = new byte[64 * 1024];
+        new Random(1).nextBytes(data);
+        FrameCompressor compressor = new FrameCompressor(Deflater.BEST_SPEED);
+        assertEquals(-1, compressor.compress(data, 0, data.length));
+        assertEquals(-1, compressor.compress(new byte[FrameCompressor.MIN_LENGTH - 1], 0,
+                FrameCompressor.MIN_LENGTH - 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptedFrameIsRejected() throws Exception {
+        byte[] data = new byte[4096];
+        FrameCompressor compressor = new FrameCompressor(Deflater.BEST_SPEED);
+        int n = compressor.compress(data, 0, data.length);
+        byte[] compressed = Arrays.copyOf(compressor.buffer(), n);
+        compressed[3]++; // 记录的原始长度与实际不符
+        compressor.decompress(compressed, 0, n, new byte[data.length + 1], 0);
+    }
+}
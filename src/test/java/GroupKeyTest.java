@@ -0,0 +1,43 @@
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import org.junit.Test;
+
+public class GroupKeyTest {
+
+    @Test
+    public void distributedKeyOpensMessagesAndRejectsReplay() throws Exception {
+        GroupKey sender = GroupKey.generate(7, "room", 3);
+        byte[] encoded = sender.encode();
+        GroupKey member = GroupKey.decode(7, encoded, encoded.length);
+        assertEquals("room", member.getName());
+        assertEquals(3, member.getEpoch());
+
+        byte[] aad = SecureChannel.header(FrameType.GROUP_MESSAGE, 7);
+        byte[] plain = "hello room".getBytes();
+        byte[] first = new byte[GroupKey.sealedLength(plain.length)];
+        byte[] second = new byte[first.length];
+        assertEquals(first.length, sender.seal(aad, plain, 0, plain.length, first, 0));
+        sender.seal(aad, plain, 0, plain.length, second, 0);
+
+        byte[] out = new byte[plain.length];
+        assertEquals(plain.length, member.open(aad, first, 0, first.length, out, 0));
+        assertArrayEquals(plain, out);
+        member.open(aad, second, 0, second.length, out, 0);
+        try {
+            member.open(aad, first, 0, first.length, out, 0);
+            fail("重放的消息应被拒绝");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void oldEpochIsRejected() throws Exception {
+        GroupKey old = GroupKey.generate(1, "room", 1);
+        GroupKey current = GroupKey.generate(1, "room", 2);
+        byte[] aad = SecureChannel.header(FrameType.GROUP_MESSAGE, 1);
+        byte[] sealed = new byte[GroupKey.sealedLength(1)];
+        old.seal(aad, new byte[1], 0, 1, sealed, 0);
+        current.open(aad, sealed, 0, sealed.length, new byte[1], 0);
+    }
+}
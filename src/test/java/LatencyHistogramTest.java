@@ -0,0 +1,41 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentilesStayWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 10000; micros++) {
+            histogram.record(micros * 1000);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertWithin(5_000_000, histogram.percentile(50));
+        assertWithin(9_900_000, histogram.percentile(99));
+        assertEquals(10_000_000, histogram.percentile(100));
+
+        LatencyHistogram.Summary summary = histogram.summary();
+        assertEquals(5000.5, summary.getMean(), 0.01);
+        assertEquals(10000, summary.getMax(), 0);
+    }
+
+    @Test
+    public void bucketRoundTripsValue() {
+        for (long value : new long[] { 0, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE / 3 }) {
+            assertWithin(value, LatencyHistogram.valueOf(LatencyHistogram.bucketOf(value)));
+        }
+    }
+
+    @Test
+    public void emptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(99));
+        assertEquals("无", histogram.summary().toString());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(expected + " ≈ " + actual,
+                Math.abs(actual - expected) <= expected / LatencyHistogram.SUB_BUCKETS);
+    }
+}
@@ -0,0 +1,75 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class MessageHistoryTest {
+    private static final long HOUR = 3600_000L;
+
+    @Test
+    public void replaysOneConversationAcrossSegmentsAndReopen() throws Exception {
+        File dir = Files.createTempDirectory("history").toFile();
+        // 每段 64 KB，约一千条消息就会换段；alice 先密集后稀疏，后半段回放要靠索引跳过 bob 的记录
+        MessageHistory history = open(dir, 0);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            String conversation = i % (i < 1500 ? 10 : 150) == 0 ? "alice" : "bob";
+            String text = "消息 " + i;
+            history.append(conversation, i % 3 == 0, text);
+            if (conversation.equals("alice"))
+                expected.add((i % 3 == 0 ? "> " : "< ") + text);
+        }
+        history.close();
+        assertTrue(dir.list((d, name) -> name.endsWith(".log")).length > 2);
+
+        history = open(dir, 0);
+        history.append("alice", true, "重连后");
+        expected.add("> 重连后");
+        List<String> replayed = new ArrayList<>();
+        history.replay("alice", 0, (time, outgoing, text) -> replayed.add((outgoing ? "> " : "< ") + text));
+        assertEquals(expected, replayed);
+
+        List<String> none = new ArrayList<>();
+        history.replay("carol", 0, (time, outgoing, text) -> none.add(text));
+        assertTrue(none.isEmpty());
+        history.replay("alice", System.currentTimeMillis() + HOUR, (time, outgoing, text) -> none.add(text));
+        assertTrue(none.isEmpty());
+        history.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void tamperedRecordIsRejected() throws Exception {
+        File dir = Files.createTempDirectory("history").toFile();
+        MessageHistory history = open(dir, 0);
+        history.append("alice", false, "原文");
+        history.close();
+        File log = dir.listFiles((d, name) -> name.endsWith(".log"))[0];
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 1);
+        }
+        open(dir, 0).replay("alice", 0, (time, outgoing, text) -> fail("不应解出被篡改的记录"));
+    }
+
+    @Test
+    public void expiredSegmentsAreDeleted() throws Exception {
+        File dir = Files.createTempDirectory("history").toFile();
+        open(dir, 0).close();
+        open(dir, 0).close();
+        Thread.sleep(50);
+        open(dir, 20).close();
+        // 只剩新打开的段和它之前一段（结束时间在保留期内）
+        assertEquals(2, dir.list((d, name) -> name.endsWith(".log")).length);
+    }
+
+    private static MessageHistory open(File dir, long retentionMillis) throws Exception {
+        return new MessageHistory(dir, new File(dir, "history.key"), 64 * 1024, HOUR, retentionMillis);
+    }
+}
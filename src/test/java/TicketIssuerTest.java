@@ -0,0 +1,47 @@
+import static org.junit.Assert.*;
+
+import javax.crypto.SecretKey;
+import org.junit.Test;
+
+public class TicketIssuerTest {
+
+    @Test
+    public void ticketRedeemsOnlyOnce() throws Exception {
+        TicketIssuer issuer = new TicketIssuer(16, 60);
+        SecretKey secret = CryptoUtil.generateAESKey();
+        byte[] ticket = issuer.issue(secret);
+
+        SecretKey redeemed = issuer.redeem(ticket);
+        assertNotNull(redeemed);
+        assertArrayEquals(secret.getEncoded(), redeemed.getEncoded());
+        assertNull(issuer.redeem(ticket));
+    }
+
+    @Test
+    public void tamperedTicketIsRejected() throws Exception {
+        TicketIssuer issuer = new TicketIssuer(16, 60);
+        byte[] ticket = issuer.issue(CryptoUtil.generateAESKey());
+        ticket[ticket.length - 1] ^= 1;
+        assertNull(issuer.redeem(ticket));
+        assertNull(new TicketIssuer(16, 60).redeem(issuer.issue(CryptoUtil.generateAESKey())));
+    }
+
+    @Test
+    public void oldestTicketIsEvictedWhenCacheIsFull() throws Exception {
+        TicketIssuer issuer = new TicketIssuer(2, 60);
+        byte[] first = issuer.issue(CryptoUtil.generateAESKey());
+        byte[] second = issuer.issue(CryptoUtil.generateAESKey());
+        byte[] third = issuer.issue(CryptoUtil.generateAESKey());
+
+        assertEquals(2, issuer.outstanding());
+        assertNull(issuer.redeem(first));
+        assertNotNull(issuer.redeem(second));
+        assertNotNull(issuer.redeem(third));
+    }
+
+    @Test
+    public void expiredTicketIsRejected() throws Exception {
+        TicketIssuer issuer = new TicketIssuer(16, -1);
+        assertNull(issuer.redeem(issuer.issue(CryptoUtil.generateAESKey())));
+    }
+}
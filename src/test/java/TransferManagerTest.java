@@ -0,0 +1,54 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class TransferManagerTest {
+    private final List<String> finished = new CopyOnWriteArrayList<>();
+    private final CountDownLatch done = new CountDownLatch(3);
+
+    private final TransferManager.Listener listener = new TransferManager.Listener() {
+        @Override
+        public void onProgress(TransferManager.Transfer transfer) {
+        }
+
+        @Override
+        public void onFinished(TransferManager.Transfer transfer, Exception error) {
+            finished.add(transfer.getFile().getName() + ":" + transfer.getState());
+            done.countDown();
+        }
+    };
+
+    @Test
+    public void queuedAndRunningTransfersCanBeCancelled() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        TransferManager manager = new TransferManager((file, progress) -> {
+            if (file.getName().equals("slow")) {
+                started.countDown();
+                for (long sent = 0;; sent++) {
+                    progress.update(sent, Long.MAX_VALUE);
+                    Thread.sleep(10); // 被取消时抛出 InterruptedException
+                }
+            }
+            progress.update(100, 100);
+        }, listener, Runnable::run, 1);
+
+        TransferManager.Transfer slow = manager.submit(new File("slow"));
+        TransferManager.Transfer queued = manager.submit(new File("queued"));
+        TransferManager.Transfer fast = manager.submit(new File("fast"));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(TransferManager.State.RUNNING, slow.getState());
+
+        queued.cancel();
+        slow.cancel();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[queued:CANCELLED, slow:CANCELLED, fast:DONE]", finished.toString());
+        assertEquals(100, fast.getPercent());
+        assertEquals(0, manager.getActiveCount());
+        manager.close();
+    }
+}
@@ -0,0 +1,122 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+import org.junit.Test;
+
+public class TreeHashTest {
+    private static final int LEAF = 1024;
+
+    @Test
+    public void oddNodeIsPromoted() throws Exception {
+        byte[] data = random(2 * LEAF + 100);
+        TreeHash tree = new TreeHash(data.length, LEAF);
+        tree.leaf(0, ByteBuffer.wrap(data, 0, LEAF));
+        tree.leaf(LEAF, ByteBuffer.wrap(data, LEAF, LEAF));
+        tree.leaf(2 * LEAF, ByteBuffer.wrap(data, 2 * LEAF, 100));
+
+        byte[] left = node(leaf(data, 0, LEAF), leaf(data, LEAF, LEAF));
+        assertArrayEquals(node(left, leaf(data, 2 * LEAF, 100)), tree.root());
+    }
+
+    @Test
+    public void resumedPrefixHashedFromFileMatchesStreamedRoot() throws Exception {
+        byte[] data = random(5 * LEAF + 7);
+        File file = File.createTempFile("tree", ".bin");
+        Files.write(file.toPath(), data);
+
+        TreeHash streamed = new TreeHash(data.length, LEAF);
+        for (int position = 0; position < data.length; position += LEAF) {
+            streamed.leaf(position, ByteBuffer.wrap(data, position, Math.min(LEAF, data.length - position))).join();
+        }
+        TreeHash resumed = new TreeHash(data.length, LEAF);
+        resumed.hashFile(file, 3 * LEAF);
+        for (int position = 3 * LEAF; position < data.length; position += LEAF) {
+            resumed.leaf(position, ByteBuffer.wrap(data, position, Math.min(LEAF, data.length - position)));
+        }
+        assertArrayEquals(streamed.root(), resumed.root());
+
+        data[4 * LEAF] ^= 1;
+        Files.write(file.toPath(), data);
+        TreeHash changed = new TreeHash(data.length, LEAF);
+        changed.hashFile(file, data.length);
+        assertFalse(MessageDigest.isEqual(streamed.root(), changed.root()));
+        file.delete();
+    }
+
+    @Test
+    public void incrementalRootMatchesLevelByLevelTree() throws Exception {
+        for (int leaves = 1; leaves <= 19; leaves++) {
+            byte[] data = random(leaves * LEAF - 1);
+            TreeHash tree = new TreeHash(data.length, LEAF);
+            byte[][] level = new byte[leaves][];
+            for (int i = 0; i < leaves; i++) {
+                int len = Math.min(LEAF, data.length - i * LEAF);
+                tree.leaf(i * LEAF, ByteBuffer.wrap(data, i * LEAF, len));
+                level[i] = leaf(data, i * LEAF, len);
+            }
+            int count = leaves;
+            while (count > 1) {
+                int next = 0;
+                for (int i = 0; i < count; i += 2) {
+                    level[next++] = i + 1 == count ? level[i] : node(level[i], level[i + 1]);
+                }
+                count = next;
+            }
+            assertArrayEquals("叶子数 " + leaves, level[0], tree.root());
+        }
+    }
+
+    @Test
+    public void hugeAnnouncedSizeAllocatesNothingUpFront() throws Exception {
+        TreeHash tree = new TreeHash(1L << 46, 64 * 1024);
+        tree.leaf(0, ByteBuffer.allocate(64 * 1024)).join();
+        try {
+            tree.root();
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void leafOutOfOrderIsRejected() {
+        TreeHash tree = new TreeHash(3 * LEAF, LEAF);
+        tree.leaf(0, ByteBuffer.allocate(LEAF));
+        tree.leaf(2 * LEAF, ByteBuffer.allocate(LEAF));
+    }
+
+    @Test
+    public void emptyFileHasRootOfEmptyString() throws Exception {
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(), new TreeHash(0, LEAF).root());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void misalignedLeafIsRejected() {
+        new TreeHash(3 * LEAF, LEAF).leaf(10, ByteBuffer.allocate(LEAF));
+    }
+
+    private static byte[] leaf(byte[] data, int off, int len) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update((byte) 0);
+        digest.update(data, off, len);
+        return digest.digest();
+    }
+
+    private static byte[] node(byte[] left, byte[] right) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update((byte) 1);
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+
+    private static byte[] random(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
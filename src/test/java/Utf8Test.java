@@ -0,0 +1,38 @@
+import static org.junit.Assert.*;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+public class Utf8Test {
+
+    @Test
+    public void encodingMatchesJdkForAllPlanes() {
+        String[] samples = { "", "hello", "你好，世界", "é ß ñ", "emoji 😀 end", "lone \uD800 surrogate" };
+        ByteBuffer direct = ByteBuffer.allocateDirect(128);
+        for (String s : samples) {
+            byte[] expected = s.getBytes(StandardCharsets.UTF_8);
+            assertEquals(s, expected.length, Utf8.encodedLength(s));
+            direct.clear();
+            assertEquals(expected.length, Utf8.encode(s, direct));
+            direct.flip();
+            byte[] actual = new byte[direct.remaining()];
+            direct.duplicate().get(actual);
+            assertArrayEquals(s, expected, actual);
+            assertEquals(new String(expected, StandardCharsets.UTF_8), Utf8.decode(direct));
+            assertFalse(direct.hasRemaining());
+        }
+    }
+
+    @Test
+    public void overflowWritesNothing() {
+        ByteBuffer small = ByteBuffer.allocate(4);
+        try {
+            Utf8.encode("你好", small);
+            fail("空间不足时应抛出异常");
+        } catch (BufferOverflowException expected) {
+        }
+        assertEquals(0, small.position());
+    }
+}